@@ -0,0 +1,92 @@
+package Client;
+
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import Interface.ShareMarketInterface;
+import Server.ServerInstance;
+import ServerImplementation.ShareMarketImplementation;
+
+// one buyer fires many cross city purchases at once over RMI -> the 3 per week and one type per day rules must still hold
+// starts the three servers in this process (RMI registries 3001-3003, UDP 8001-8003), so no Server may be running:
+//   java Client.CrossCityLimitStressTest [rounds]
+public class CrossCityLimitStressTest {
+
+    private static final String[] TYPES = {ShareMarketImplementation.BONUS, ShareMarketImplementation.EQUITY, ShareMarketImplementation.DIVIDEND};
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        new ServerInstance("NYK");
+        new ServerInstance("LON");
+        new ServerInstance("TOK");
+        ShareMarketInterface nyk = lookup(ServerInstance.SERVER_NEWYORK);
+        ShareMarketInterface lon = lookup(ServerInstance.SERVER_LONDON);
+        ShareMarketInterface tok = lookup(ServerInstance.SERVER_TOKYO);
+
+        // days 08-14 are one week; every day as every type -> 21 purchases that don't break the day rule
+        List<String[]> weekOrders = new ArrayList<>(); // shareID, shareType
+        for (int day = 8; day <= 14; day++) {
+            String shareID = String.format("TOKM%02d1025", day);
+            for (String type : TYPES) {
+                tok.addShare(shareID, type, 1000000);
+                weekOrders.add(new String[]{shareID, type});
+            }
+        }
+        // six Bonus shares of one day in two cities -> only one of them may go through
+        List<String[]> dayOrders = new ArrayList<>();
+        for (String slot : new String[]{"M", "A", "E"}) {
+            tok.addShare("TOK" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            lon.addShare("LON" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            dayOrders.add(new String[]{"TOK" + slot + "201025", ShareMarketImplementation.BONUS});
+            dayOrders.add(new String[]{"LON" + slot + "201025", ShareMarketImplementation.BONUS});
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(weekOrders.size());
+        int failures = 0;
+        int weekMax = 0;
+        int dayMax = 0;
+        for (int round = 0; round < rounds; round++) {
+            int week = purchaseAtOnce(pool, nyk, String.format("NYKB%04d", round), weekOrders);
+            int day = purchaseAtOnce(pool, nyk, String.format("NYKB%04d", 5000 + round), dayOrders);
+            weekMax = Math.max(weekMax, week);
+            dayMax = Math.max(dayMax, day);
+            if (week > 3 || day > 1) {
+                failures++;
+                System.out.println("FAIL round " + round + ": " + week + " cross city purchases in one week, " + day + " of one type on one day");
+            }
+        }
+        pool.shutdown();
+        System.out.println((weekMax <= 3 ? "ok   " : "FAIL ") + rounds + " rounds x " + weekOrders.size() + " parallel purchases, most in one week: " + weekMax + " (limit 3)");
+        System.out.println((dayMax <= 1 ? "ok   " : "FAIL ") + rounds + " rounds x " + dayOrders.size() + " parallel purchases, most of one type on one day: " + dayMax + " (limit 1)");
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static ShareMarketInterface lookup(int serverPort) throws Exception {
+        return (ShareMarketInterface) LocateRegistry.getRegistry(serverPort).lookup(ServerInstance.SHARE_MARKET_REGISTERED_NAME);
+    }
+
+    // all orders released at the same moment, returns how many succeeded
+    private static int purchaseAtOnce(ExecutorService pool, ShareMarketInterface city, String buyerID, List<String[]> orders) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> replies = new ArrayList<>();
+        for (String[] order : orders) {
+            replies.add(pool.submit(() -> {
+                start.await();
+                return city.purchaseShare(buyerID, order[0], order[1], 1);
+            }));
+        }
+        start.countDown();
+        int succeeded = 0;
+        for (Future<String> reply : replies) {
+            if (reply.get().startsWith("Success")) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+}
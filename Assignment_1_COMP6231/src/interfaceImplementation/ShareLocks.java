@@ -0,0 +1,71 @@
+package ServerImplementation;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// striped locks for the servant, keyed by shareID and buyerID instead of one monitor for the whole city
+// when a request needs a buyer and a share at the same time both stripes are taken in index order -> no deadlock
+class ShareLocks {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+
+    ShareLocks() {
+        this(Integer.getInteger("share.lockStripes", DEFAULT_STRIPES));
+    }
+
+    ShareLocks(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public void lockShare(String shareID) {
+        stripes[indexOf(shareID)].lock();
+    }
+
+    public void unlockShare(String shareID) {
+        stripes[indexOf(shareID)].unlock();
+    }
+
+    public void lockBuyer(String buyerID) {
+        stripes[indexOf(buyerID)].lock();
+    }
+
+    public void unlockBuyer(String buyerID) {
+        stripes[indexOf(buyerID)].unlock();
+    }
+
+    public void lockBuyerAndShare(String buyerID, String shareID) {
+        int first  = indexOf(buyerID);
+        int second = indexOf(shareID);
+        if (first == second) {
+            stripes[first].lock();
+            return;
+        }
+        stripes[Math.min(first, second)].lock();
+        stripes[Math.max(first, second)].lock();
+    }
+
+    public void unlockBuyerAndShare(String buyerID, String shareID) {
+        int first  = indexOf(buyerID);
+        int second = indexOf(shareID);
+        if (first == second) {
+            stripes[first].unlock();
+            return;
+        }
+        stripes[Math.max(first, second)].unlock();
+        stripes[Math.min(first, second)].unlock();
+    }
+
+    private int indexOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (stripes.length - 1);
+    }
+}
@@ -27,6 +27,10 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
     private final String serverName;
     private Map<String, Map<String, ShareData>> allShares; //shareType -> (shareID -> ShareData)
     private Map<String, Map<String, List<String>>> buyerShares; // which buyer bought which share  buyerID -> (shareType -> list of shareIDs)
+    // cross city purchases still waiting for the other city, same layout as buyerShares; changed under the buyer lock
+    // the limit checks count them -> parallel purchases of one buyer can't all pass before any of them is recorded
+    private final Map<String, Map<String, List<String>>> pendingShares = new ConcurrentHashMap<>();
+    private final ShareLocks locks = new ShareLocks(); // per share / per buyer locks instead of synchronized methods
 
     // a class for storing the informations of a share
     private static class ShareData {
@@ -119,7 +123,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
 
 
     @Override
-    public synchronized String addShare(String shareID, String shareType, int capacity) throws RemoteException {
+    public String addShare(String shareID, String shareType, int capacity) throws RemoteException {
         try {
             Logger.serverLog(serverID, "Admin", "RMI addShare", "shareID=" + shareID + ", shareType=" + shareType + ", capacity=" + capacity, "request received");
         }
@@ -133,21 +137,28 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
             return response;
         }
 
-        if (allShares.get(shareType).containsKey(shareID)) {
+        ShareData newShare = new ShareData(shareID, shareType, capacity);
+        ShareData existing;
+        locks.lockShare(shareID);
+        try {
+            existing = allShares.get(shareType).putIfAbsent(shareID, newShare);
+        }
+        finally {
+            locks.unlockShare(shareID);
+        }
+        if (existing != null) {
             String resp = "Failed: share " + shareID + " already exists for shareType of " + shareType;
             logResponse("Admin", "addShare", shareID, shareType, resp);
             return resp;
         }
 
-        ShareData newShare = new ShareData(shareID, shareType, capacity);
-        allShares.get(shareType).put(shareID, newShare);
         String response = "Success: share " + shareID + " added with capacity=" + capacity;
         logResponse("Admin", "addShare", shareID, shareType, response);
         return response;
     }
 
     @Override
-    public synchronized String removeShare(String shareID, String shareType) throws RemoteException {
+    public String removeShare(String shareID, String shareType) throws RemoteException {
         try {
             Logger.serverLog(serverID, "Admin", "RMI removeShare", "shareID=" + shareID + ", shareType=" + shareType, "request received");
         }
@@ -160,14 +171,22 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
             return response;
         }
 
-        if (!allShares.get(shareType).containsKey(shareID)) {
+        ShareData removed;
+        locks.lockShare(shareID);
+        try {
+            removed = allShares.get(shareType).remove(shareID);
+        }
+        finally {
+            locks.unlockShare(shareID);
+        }
+        if (removed == null) {
             String response = "Failed: share " + shareID + " does not exist on " + serverName;
             logResponse("Admin", "removeShare", shareID, shareType, response);
             return response;
         }
 
-        allShares.get(shareType).remove(shareID);
         // be careful with the power -> if admin remove -> remove from all buyer even if they have it
+        // the share is already gone from allShares so nobody can buy it again while we clean the buyers one by one
         removeShareFromBuyers(shareType, shareID);
         String response = "Success: share " + shareID + " removed from " + serverName;
         logResponse("Admin", "removeShare", shareID, shareType, response);
@@ -175,7 +194,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
     }
 
     @Override
-    public synchronized String listShareAvailability(String shareType) throws RemoteException {
+    public String listShareAvailability(String shareType) throws RemoteException {
         try {
             Logger.serverLog(serverID, "Admin", "RMI listShareAvailability", "shareType=" + shareType, "request received");
         }
@@ -191,7 +210,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         }
         else {
             for (ShareData share : localMap.values()) {
-                sb.append(share.toString()).append(" \n");
+                sb.append(describeShare(share)).append(" \n");
             }
             sb.append("\n");
         }
@@ -216,7 +235,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
     }
 
     @Override
-    public synchronized String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) throws RemoteException {
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) throws RemoteException {
         try {
             Logger.serverLog(serverID, buyerID, "RMI purchaseShare", "shareID=" + shareID + ", shareType=" + shareType + ", shareCount=" + shareCount, "request received");
         }
@@ -231,73 +250,93 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
-            if (exceededCrossCityLimit(buyerID, shareID)) {
-                String failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
-                logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-                return failMsg;
+            String failMsg = null;
+            locks.lockBuyer(buyerID);
+            try {
+                if (exceededCrossCityLimit(buyerID, shareID)) {
+                    failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
+                }
+                // condition: one share type per day
+                else if (TodayPurchased(buyerID, shareType, shareID)) {
+                    failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+                }
+                else {
+                    reservePending(buyerID, shareType, shareID, shareCount);
+                }
             }
-            // condition: one share type per day
-            if (TodayPurchased(buyerID, shareType, shareID)) {
-                String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            if (failMsg != null) {
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
 
+            // no lock is held while we wait for the other city
             String extra = shareID + "-" + shareCount;
             String res = sendUDPMessage(getServerPort(shareID.substring(0,3)), "purchaseShare", buyerID, shareType, extra);
-            if (res.startsWith("Success")) {
-                for (int i = 0; i < shareCount; i++) {
-                    addBuyerRecord(buyerID, shareType, shareID);
+            // the reservation goes either way, a success becomes a record
+            locks.lockBuyer(buyerID);
+            try {
+                releasePending(buyerID, shareType, shareID, shareCount);
+                if (res.startsWith("Success")) {
+                    for (int i = 0; i < shareCount; i++) {
+                        addBuyerRecord(buyerID, shareType, shareID);
+                    }
                 }
-//                System.out.println("buyer id recoards is:" + buyerShares);
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
             }
             logResponse(buyerID, "purchaseShare", shareID, shareType, res);
             return res;
         }
 
         // it's your own city
-        if (TodayPurchased(buyerID, shareType, shareID)) {
-            String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        String response;
+        locks.lockBuyerAndShare(buyerID, shareID);
+        try {
+            response = purchaseLocalShare(buyerID, shareID, shareType, shareCount);
         }
-        
-        if (!allShares.get(shareType).containsKey(shareID)) {
-            String failMsg = "Failed: share " + shareID + " not found in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        finally {
+            locks.unlockBuyerAndShare(buyerID, shareID);
+        }
+        logResponse(buyerID, "purchaseShare", shareID, shareType, response);
+        return response;
+    }
+
+    // caller holds the buyer and share locks
+    private String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount) {
+        if (TodayPurchased(buyerID, shareType, shareID)) {
+            return "Failed: " + buyerID + " already purchased this share type today.";
         }
+
         ShareData share = allShares.get(shareType).get(shareID);
+        if (share == null) {
+            return "Failed: share " + shareID + " not found in " + serverName;
+        }
         int available = share.getShareRemainCapacity();
         if (available <= 0) {
-            String failMsg = "Failed: share " + shareID + " is full in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: share " + shareID + " is full in " + serverName;
         }
         int realPurchase = Math.min(shareCount, available);
         int result = share.addBuyerPurchase(buyerID, realPurchase);
         if (result == ShareData.SHARE_FULL) {
-            String failMsg = "Failed: share " + shareID + " is full.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: share " + shareID + " is full.";
         }
         else if (result == ShareData.ALREADY_REGISTERED) {
-            String failMsg = "Failed: " + buyerID + " already purchased " + shareID + ".";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: " + buyerID + " already purchased " + shareID + ".";
         }
 
         // save to buyerShares
         for (int i = 0; i < realPurchase; i++) {
             addBuyerRecord(buyerID, shareType, shareID);
         }
-        String successMsg = "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
-        logResponse(buyerID, "purchaseShare", shareID, shareType, successMsg);
-        return successMsg;
+        return "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
     }
 
     @Override
-    public synchronized String getShares(String buyerID) throws RemoteException {
+    public String getShares(String buyerID) throws RemoteException {
         try {
             Logger.serverLog(serverID, buyerID, "RMI getShares", "", "request received");
         }
@@ -305,10 +344,22 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
             e.printStackTrace();
         }
 
+        String resp;
+        locks.lockBuyer(buyerID);
+        try {
+            resp = describeBuyerShares(buyerID);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
+        logResponse(buyerID, "getShares", "N/A", "N/A", resp);
+        return resp;
+    }
+
+    // caller holds the buyer lock
+    private String describeBuyerShares(String buyerID) {
         if (!buyerShares.containsKey(buyerID)) {
-            String res = "No shares found for buyer " + buyerID;
-            logResponse(buyerID, "getShares", "N/A", "N/A", res);
-            return res;
+            return "No shares found for buyer " + buyerID;
         }
         StringBuilder sb = new StringBuilder("Shares for " + buyerID + ":\n");
         Map<String, List<String>> stMap = buyerShares.get(buyerID);
@@ -328,13 +379,11 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
                 sb.append("\t").append(e.getKey()).append("\tcount: ").append(e.getValue()).append("\n");
             }
         }
-        String resp = sb.toString();
-        logResponse(buyerID, "getShares", "N/A", "N/A", resp);
-        return resp;
+        return sb.toString();
     }
 
     @Override
-    public synchronized String sellShare(String buyerID, String shareID, int shareCount) throws RemoteException {
+    public String sellShare(String buyerID, String shareID, int shareCount) throws RemoteException {
         try {
             Logger.serverLog(serverID, buyerID, "RMI sellShare", "shareID=" + shareID + ", shareCount=" + shareCount, "request received");
         }
@@ -347,30 +396,47 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
             String extra = shareID + "-" + shareCount;
             String resp  = sendUDPMessage(getServerPort(shareID.substring(0,3)), "sellShare", buyerID, "N/A", extra);
             if (resp.startsWith("Success")) {
-                removeSharesFromBuyer(buyerID, shareID, shareCount);
+                locks.lockBuyer(buyerID);
+                try {
+                    removeSharesFromBuyer(buyerID, shareID, shareCount);
+                }
+                finally {
+                    locks.unlockBuyer(buyerID);
+                }
             }
             logResponse(buyerID, "sellShare", shareID, "N/A", resp);
             return resp;
         }
         //buyer has it?
-        String st = findShareTypeForBuyer(buyerID, shareID);
+        String st;
+        int buyerShareRemoved = 0;
+        locks.lockBuyerAndShare(buyerID, shareID);
+        try {
+            st = findShareTypeForBuyer(buyerID, shareID);
+            if (st != null) {
+                buyerShareRemoved = removeSharesFromBuyer(buyerID, shareID, shareCount);
+                ShareData shareData = allShares.get(st).get(shareID);
+                if (shareData != null) {
+                    shareData.removeBuyerPurchase(buyerID, buyerShareRemoved);
+                }
+            }
+        }
+        finally {
+            locks.unlockBuyerAndShare(buyerID, shareID);
+        }
         if (st == null) {
             String failMsg = "Failed: " + buyerID + " does not own " + shareID;
             logResponse(buyerID, "sellShare", shareID, "N/A", failMsg);
             return failMsg;
         }
 
-        int buyerShareRemoved = removeSharesFromBuyer(buyerID, shareID, shareCount);
-//        System.out.println("remove from buyer share:  " + buyerShareRemoved);
-        ShareData shareData = allShares.get(st).get(shareID);
-        int removedCount = shareData.removeBuyerPurchase(buyerID, buyerShareRemoved);
         String successMsg = "Success: " + buyerID + " sold " + buyerShareRemoved + " of share " + shareID;
         logResponse(buyerID, "sellShare", shareID, st, successMsg);
         return successMsg;
     }
 
 
-    public synchronized String listShareAvailabilityUDP(String shareType) {
+    public String listShareAvailabilityUDP(String shareType) {
         StringBuilder sb = new StringBuilder();
         sb.append(serverName).append(" [").append(shareType).append("]:\n");
         Map<String, ShareData> map = allShares.get(shareType);
@@ -379,14 +445,14 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         }
         else {
             for (ShareData sd : map.values()) {
-                sb.append(sd.toString()).append(" \n ");
+                sb.append(describeShare(sd)).append(" \n ");
             }
         }
         sb.append("\n");
         return sb.toString();
     }
 
-    public synchronized String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
+    public String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
@@ -399,7 +465,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         }
     }
 
-    public synchronized String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
+    public String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
@@ -411,6 +477,17 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         }
     }
 
+    // buyerCounts is only touched under the share lock, so take it while printing
+    private String describeShare(ShareData share) {
+        locks.lockShare(share.shareID);
+        try {
+            return share.toString();
+        }
+        finally {
+            locks.unlockShare(share.shareID);
+        }
+    }
+
     // find server name from share id
     private String detectShareServer(String shareID) {
         String prefix = shareID.substring(0,3).toUpperCase();
@@ -476,6 +553,48 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
     }
 
 
+    // caller holds the buyer lock
+    private void reservePending(String buyerID, String shareType, String shareID, int shareCount) {
+        pendingShares.putIfAbsent(buyerID, new ConcurrentHashMap<>());
+        pendingShares.get(buyerID).putIfAbsent(shareType, new ArrayList<>());
+        List<String> shareList = pendingShares.get(buyerID).get(shareType);
+        for (int i = 0; i < shareCount; i++) {
+            shareList.add(shareID);
+        }
+    }
+
+    // caller holds the buyer lock
+    private void releasePending(String buyerID, String shareType, String shareID, int shareCount) {
+        Map<String, List<String>> typeMap = pendingShares.get(buyerID);
+        List<String> shareList = typeMap.get(shareType);
+        for (int i = 0; i < shareCount; i++) {
+            shareList.remove(shareID);
+        }
+        if (shareList.isEmpty()) {
+            typeMap.remove(shareType);
+        }
+        if (typeMap.isEmpty()) {
+            pendingShares.remove(buyerID);
+        }
+    }
+
+    // share ids the buyer holds plus the ones of its cross city purchases still on the way, shareType null -> every type
+    private List<String> heldAndPending(String buyerID, String shareType) {
+        List<String> ids = new ArrayList<>();
+        for (Map<String, Map<String, List<String>>> records : Arrays.asList(buyerShares, pendingShares)) {
+            Map<String, List<String>> typeMap = records.get(buyerID);
+            if (typeMap == null) {
+                continue;
+            }
+            for (Map.Entry<String, List<String>> e : typeMap.entrySet()) {
+                if (shareType == null || e.getKey().equals(shareType)) {
+                    ids.addAll(e.getValue());
+                }
+            }
+        }
+        return ids;
+    }
+
     private int removeSharesFromBuyer(String buyerID, String shareID, int shareCount) {
         if (!buyerShares.containsKey(buyerID))
             return 0;
@@ -495,9 +614,15 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
     // admin wants to remove it even if the buyer has it
     private void removeShareFromBuyers(String shareType, String shareID) {
         for (String buyerID : buyerShares.keySet()) {
-            Map<String, List<String>> typeMap = buyerShares.get(buyerID);
-            if (typeMap.containsKey(shareType)) {
-                typeMap.get(shareType).removeIf(id -> id.equalsIgnoreCase(shareID));
+            locks.lockBuyer(buyerID);
+            try {
+                Map<String, List<String>> typeMap = buyerShares.get(buyerID);
+                if (typeMap != null && typeMap.containsKey(shareType)) {
+                    typeMap.get(shareType).removeIf(id -> id.equalsIgnoreCase(shareID));
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
             }
         }
     }
@@ -521,17 +646,13 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         int year  = Integer.parseInt("20" + shareID.substring(8, 10));
         int thisWeek = (day - 1) / 7;
         int BuyFromOtherCities = 0;
-        Map<String, List<String>> stMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        for (String st : stMap.keySet()) {
-//            System.out.println("haaaa : " + st);
-            for (String sID : stMap.get(st)) {
-                int d2 = Integer.parseInt(sID.substring(4, 6));
-                int m2 = Integer.parseInt(sID.substring(6, 8));
-                int y2 = Integer.parseInt("20" + sID.substring(8, 10));
-                int w2 = (d2 - 1) / 7;
-                if (m2 == month && y2 == year && w2 == thisWeek) {
-                    BuyFromOtherCities++;
-                }
+        for (String sID : heldAndPending(buyerID, null)) {
+            int d2 = Integer.parseInt(sID.substring(4, 6));
+            int m2 = Integer.parseInt(sID.substring(6, 8));
+            int y2 = Integer.parseInt("20" + sID.substring(8, 10));
+            int w2 = (d2 - 1) / 7;
+            if (m2 == month && y2 == year && w2 == thisWeek) {
+                BuyFromOtherCities++;
             }
         }
         return (BuyFromOtherCities >= 3);
@@ -542,9 +663,7 @@ public class ShareMarketImplementation extends UnicastRemoteObject implements Sh
         int day   = Integer.parseInt(shareID.substring(4, 6));
         int month = Integer.parseInt(shareID.substring(6, 8));
         int year  = Integer.parseInt("20" + shareID.substring(8, 10));
-        Map<String, List<String>> typeMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        List<String> shareList = typeMap.getOrDefault(shareType, new ArrayList<>());
-        for (String existingID : shareList) {
+        for (String existingID : heldAndPending(buyerID, shareType)) {
             int d2 = Integer.parseInt(existingID.substring(4, 6));
             int m2 = Integer.parseInt(existingID.substring(6, 8));
             int y2 = Integer.parseInt("20" + existingID.substring(8, 10));
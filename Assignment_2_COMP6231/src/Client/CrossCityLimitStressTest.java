@@ -0,0 +1,93 @@
+package Client;
+
+import ServerInterface.ServerObjectInterface;
+import ServerInterface.ServerObjectInterfaceHelper;
+import interfaceImplementation.ShareMarketImplementation;
+import org.omg.CORBA.ORB;
+import org.omg.CosNaming.NamingContextExt;
+import org.omg.CosNaming.NamingContextExtHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// one buyer fires many cross city purchases at once over CORBA -> the 3 per week and one type per day rules must still hold
+// needs the name service and Server running, like the Client (buyer ids NYKB1xxx are used):
+//   java Client.CrossCityLimitStressTest -ORBInitialPort 1050 -ORBInitialHost localhost [rounds]
+public class CrossCityLimitStressTest {
+
+    private static final String[] TYPES = {ShareMarketImplementation.BONUS, ShareMarketImplementation.EQUITY, ShareMarketImplementation.DIVIDEND};
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length % 2 == 1 ? Integer.parseInt(args[args.length - 1]) : 20;
+        ORB orb = ORB.init(args, null);
+        NamingContextExt ncRef = NamingContextExtHelper.narrow(orb.resolve_initial_references("NameService"));
+        ServerObjectInterface nyk = ServerObjectInterfaceHelper.narrow(ncRef.resolve_str("NYK"));
+        ServerObjectInterface lon = ServerObjectInterfaceHelper.narrow(ncRef.resolve_str("LON"));
+        ServerObjectInterface tok = ServerObjectInterfaceHelper.narrow(ncRef.resolve_str("TOK"));
+
+        // days 08-14 are one week; every day as every type -> 21 purchases that don't break the day rule
+        // addShare of a share that is there already just fails -> the test can run again on the same servers
+        List<String[]> weekOrders = new ArrayList<>(); // shareID, shareType
+        for (int day = 8; day <= 14; day++) {
+            String shareID = String.format("TOKM%02d1025", day);
+            for (String type : TYPES) {
+                tok.addShare(shareID, type, 1000000);
+                weekOrders.add(new String[]{shareID, type});
+            }
+        }
+        // six Bonus shares of one day in two cities -> only one of them may go through
+        List<String[]> dayOrders = new ArrayList<>();
+        for (String slot : new String[]{"M", "A", "E"}) {
+            tok.addShare("TOK" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            lon.addShare("LON" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            dayOrders.add(new String[]{"TOK" + slot + "201025", ShareMarketImplementation.BONUS});
+            dayOrders.add(new String[]{"LON" + slot + "201025", ShareMarketImplementation.BONUS});
+        }
+
+        // new buyers every run, the servers keep the ones of the last run
+        int firstBuyer = (int) (System.currentTimeMillis() / 1000 % 400) * 20;
+        ExecutorService pool = Executors.newFixedThreadPool(weekOrders.size());
+        int failures = 0;
+        int weekMax = 0;
+        int dayMax = 0;
+        for (int round = 0; round < rounds; round++) {
+            int week = purchaseAtOnce(pool, nyk, String.format("NYKB1%03d", (firstBuyer + round) % 1000), weekOrders);
+            int day = purchaseAtOnce(pool, nyk, String.format("NYKB2%03d", (firstBuyer + round) % 1000), dayOrders);
+            weekMax = Math.max(weekMax, week);
+            dayMax = Math.max(dayMax, day);
+            if (week > 3 || day > 1) {
+                failures++;
+                System.out.println("FAIL round " + round + ": " + week + " cross city purchases in one week, " + day + " of one type on one day");
+            }
+        }
+        pool.shutdown();
+        System.out.println((weekMax <= 3 ? "ok   " : "FAIL ") + rounds + " rounds x " + weekOrders.size() + " parallel purchases, most in one week: " + weekMax + " (limit 3)");
+        System.out.println((dayMax <= 1 ? "ok   " : "FAIL ") + rounds + " rounds x " + dayOrders.size() + " parallel purchases, most of one type on one day: " + dayMax + " (limit 1)");
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // all orders released at the same moment, returns how many succeeded
+    private static int purchaseAtOnce(ExecutorService pool, ServerObjectInterface city, String buyerID, List<String[]> orders) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> replies = new ArrayList<>();
+        for (String[] order : orders) {
+            replies.add(pool.submit(() -> {
+                start.await();
+                return city.purchaseShare(buyerID, order[0], order[1], 1);
+            }));
+        }
+        start.countDown();
+        int succeeded = 0;
+        for (Future<String> reply : replies) {
+            if (reply.get().startsWith("Success")) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+}
@@ -25,6 +25,10 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     private final String serverName;
     private Map<String, Map<String, ShareData>> allShares; //shareType -> (shareID -> ShareData)
     private Map<String, Map<String, List<String>>> buyerShares; // which buyer bought which share  buyerID -> (shareType -> list of shareIDs)
+    // cross city purchases still waiting for the other city, same layout as buyerShares; changed under the buyer lock
+    // the limit checks count them -> parallel purchases of one buyer can't all pass before any of them is recorded
+    private final Map<String, Map<String, List<String>>> pendingShares = new ConcurrentHashMap<>();
+    private final ShareLocks locks = new ShareLocks(); // per share / per buyer locks instead of synchronized methods
     private ORB orb;
     
     private static class ShareData {
@@ -122,7 +126,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     }
 
     @Override
-    public synchronized String addShare(String shareID, String shareType, int capacity) {
+    public String addShare(String shareID, String shareType, int capacity) {
         try {
             Logger.serverLog(serverID, "Admin", "  addShare", "shareID=" + shareID + ", shareType=" + shareType + ", capacity=" + capacity, "request received");
         }
@@ -136,21 +140,28 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
             return response;
         }
 
-        if (allShares.get(shareType).containsKey(shareID)) {
+        ShareData newShare = new ShareData(shareID, shareType, capacity);
+        ShareData existing;
+        locks.lockShare(shareID);
+        try {
+            existing = allShares.get(shareType).putIfAbsent(shareID, newShare);
+        }
+        finally {
+            locks.unlockShare(shareID);
+        }
+        if (existing != null) {
             String resp = "Failed: share " + shareID + " already exists for shareType of " + shareType;
             logResponse("Admin", "addShare", shareID, shareType, resp);
             return resp;
         }
 
-        ShareData newShare = new ShareData(shareID, shareType, capacity);
-        allShares.get(shareType).put(shareID, newShare);
         String response = "Success: share " + shareID + " added with capacity=" + capacity;
         logResponse("Admin", "addShare", shareID, shareType, response);
         return response;
     }
 
     @Override
-    public synchronized String removeShare(String shareID, String shareType) {
+    public String removeShare(String shareID, String shareType) {
         try {
             Logger.serverLog(serverID, "Admin", "  removeShare", "shareID=" + shareID + ", shareType=" + shareType, "request received");
         }
@@ -163,14 +174,22 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
             return response;
         }
 
-        if (!allShares.get(shareType).containsKey(shareID)) {
+        ShareData removed;
+        locks.lockShare(shareID);
+        try {
+            removed = allShares.get(shareType).remove(shareID);
+        }
+        finally {
+            locks.unlockShare(shareID);
+        }
+        if (removed == null) {
             String response = "Failed: share " + shareID + " does not exist on " + serverName;
             logResponse("Admin", "removeShare", shareID, shareType, response);
             return response;
         }
 
-        allShares.get(shareType).remove(shareID);
         // be careful with the power -> if admin remove -> remove from all buyer even if they have it
+        // the share is already gone from allShares so nobody can buy it again while we clean the buyers one by one
         removeShareFromBuyers(shareType, shareID);
         String response = "Success: share " + shareID + " removed from " + serverName;
         logResponse("Admin", "removeShare", shareID, shareType, response);
@@ -178,7 +197,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     }
 
     @Override
-    public synchronized String listShareAvailability(String shareType) {
+    public String listShareAvailability(String shareType) {
         try {
             Logger.serverLog(serverID, "Admin", "  listShareAvailability", "shareType=" + shareType, "request received");
         }
@@ -194,7 +213,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         }
         else {
             for (ShareData share : localMap.values()) {
-                sb.append(share.toString()).append(" \n");
+                sb.append(describeShare(share)).append(" \n");
             }
             sb.append("\n");
         }
@@ -219,7 +238,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     }
 
     @Override
-    public synchronized String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
         try {
             Logger.serverLog(serverID, buyerID, "  purchaseShare", "shareID=" + shareID + ", shareType=" + shareType + ", shareCount=" + shareCount, "request received");
         }
@@ -234,73 +253,93 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
-            if (exceededCrossCityLimit(buyerID, shareID)) {
-                String failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
-                logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-                return failMsg;
+            String failMsg = null;
+            locks.lockBuyer(buyerID);
+            try {
+                if (exceededCrossCityLimit(buyerID, shareID)) {
+                    failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
+                }
+                // condition: one share type per day
+                else if (TodayPurchased(buyerID, shareType, shareID)) {
+                    failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+                }
+                else {
+                    reservePending(buyerID, shareType, shareID, shareCount);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
             }
-            // condition: one share type per day
-            if (TodayPurchased(buyerID, shareType, shareID)) {
-                String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+            if (failMsg != null) {
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
 
+            // no lock is held while we wait for the other city
             String extra = shareID + "-" + shareCount;
             String res = sendUDPMessage(getServerPort(shareID.substring(0,3)), "purchaseShare", buyerID, shareType, extra);
-            if (res.startsWith("Success")) {
-                for (int i = 0; i < shareCount; i++) {
-                    addBuyerRecord(buyerID, shareType, shareID);
+            // the reservation goes either way, a success becomes a record
+            locks.lockBuyer(buyerID);
+            try {
+                releasePending(buyerID, shareType, shareID, shareCount);
+                if (res.startsWith("Success")) {
+                    for (int i = 0; i < shareCount; i++) {
+                        addBuyerRecord(buyerID, shareType, shareID);
+                    }
                 }
-//                System.out.println("buyer id recoards is:" + buyerShares);
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
             }
             logResponse(buyerID, "purchaseShare", shareID, shareType, res);
             return res;
         }
 
         // it's your own city
-        if (TodayPurchased(buyerID, shareType, shareID)) {
-            String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        String response;
+        locks.lockBuyerAndShare(buyerID, shareID);
+        try {
+            response = purchaseLocalShare(buyerID, shareID, shareType, shareCount);
         }
+        finally {
+            locks.unlockBuyerAndShare(buyerID, shareID);
+        }
+        logResponse(buyerID, "purchaseShare", shareID, shareType, response);
+        return response;
+    }
 
-        if (!allShares.get(shareType).containsKey(shareID)) {
-            String failMsg = "Failed: share " + shareID + " not found in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+    // caller holds the buyer and share locks
+    private String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount) {
+        if (TodayPurchased(buyerID, shareType, shareID)) {
+            return "Failed: " + buyerID + " already purchased this share type today.";
         }
+
         ShareData share = allShares.get(shareType).get(shareID);
+        if (share == null) {
+            return "Failed: share " + shareID + " not found in " + serverName;
+        }
         int available = share.getShareRemainCapacity();
         if (available <= 0) {
-            String failMsg = "Failed: share " + shareID + " is full in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: share " + shareID + " is full in " + serverName;
         }
         int realPurchase = Math.min(shareCount, available);
         int result = share.addBuyerPurchase(buyerID, realPurchase);
         if (result == ShareData.SHARE_FULL) {
-            String failMsg = "Failed: share " + shareID + " is full.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: share " + shareID + " is full.";
         }
         else if (result == ShareData.ALREADY_REGISTERED) {
-            String failMsg = "Failed: " + buyerID + " already purchased " + shareID + ".";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: " + buyerID + " already purchased " + shareID + ".";
         }
 
         // save to buyerShares
         for (int i = 0; i < realPurchase; i++) {
             addBuyerRecord(buyerID, shareType, shareID);
         }
-        String successMsg = "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
-        logResponse(buyerID, "purchaseShare", shareID, shareType, successMsg);
-        return successMsg;
+        return "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
     }
 
     @Override
-    public synchronized String getShares(String buyerID) {
+    public String getShares(String buyerID) {
         try {
             Logger.serverLog(serverID, buyerID, "  getShares", "", "request received");
         }
@@ -308,10 +347,22 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
             e.printStackTrace();
         }
 
+        String resp;
+        locks.lockBuyer(buyerID);
+        try {
+            resp = describeBuyerShares(buyerID);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
+        logResponse(buyerID, "getShares", "N/A", "N/A", resp);
+        return resp;
+    }
+
+    // caller holds the buyer lock
+    private String describeBuyerShares(String buyerID) {
         if (!buyerShares.containsKey(buyerID)) {
-            String res = "No shares found for buyer " + buyerID;
-            logResponse(buyerID, "getShares", "N/A", "N/A", res);
-            return res;
+            return "No shares found for buyer " + buyerID;
         }
         StringBuilder sb = new StringBuilder("Shares for " + buyerID + ":\n");
         Map<String, List<String>> stMap = buyerShares.get(buyerID);
@@ -331,13 +382,11 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
                 sb.append("\t").append(e.getKey()).append("\tcount: ").append(e.getValue()).append("\n");
             }
         }
-        String resp = sb.toString();
-        logResponse(buyerID, "getShares", "N/A", "N/A", resp);
-        return resp;
+        return sb.toString();
     }
 
     @Override
-    public synchronized String sellShare(String buyerID, String shareID, int shareCount) {
+    public String sellShare(String buyerID, String shareID, int shareCount) {
         try {
             Logger.serverLog(serverID, buyerID, "  sellShare", "shareID=" + shareID + ", shareCount=" + shareCount, "request received");
         }
@@ -350,30 +399,47 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
             String extra = shareID + "-" + shareCount;
             String resp  = sendUDPMessage(getServerPort(shareID.substring(0,3)), "sellShare", buyerID, "N/A", extra);
             if (resp.startsWith("Success")) {
-                removeSharesFromBuyer(buyerID, shareID, shareCount);
+                locks.lockBuyer(buyerID);
+                try {
+                    removeSharesFromBuyer(buyerID, shareID, shareCount);
+                }
+                finally {
+                    locks.unlockBuyer(buyerID);
+                }
             }
             logResponse(buyerID, "sellShare", shareID, "N/A", resp);
             return resp;
         }
         //buyer has it?
-        String st = findShareTypeForBuyer(buyerID, shareID);
+        String st;
+        int buyerShareRemoved = 0;
+        locks.lockBuyerAndShare(buyerID, shareID);
+        try {
+            st = findShareTypeForBuyer(buyerID, shareID);
+            if (st != null) {
+                buyerShareRemoved = removeSharesFromBuyer(buyerID, shareID, shareCount);
+                ShareData shareData = allShares.get(st).get(shareID);
+                if (shareData != null) {
+                    shareData.removeBuyerPurchase(buyerID, buyerShareRemoved);
+                }
+            }
+        }
+        finally {
+            locks.unlockBuyerAndShare(buyerID, shareID);
+        }
         if (st == null) {
             String failMsg = "Failed: " + buyerID + " does not own " + shareID;
             logResponse(buyerID, "sellShare", shareID, "N/A", failMsg);
             return failMsg;
         }
 
-        int buyerShareRemoved = removeSharesFromBuyer(buyerID, shareID, shareCount);
-//        System.out.println("remove from buyer share:  " + buyerShareRemoved);
-        ShareData shareData = allShares.get(st).get(shareID);
-        int removedCount = shareData.removeBuyerPurchase(buyerID, buyerShareRemoved);
         String successMsg = "Success: " + buyerID + " sold " + buyerShareRemoved + " of share " + shareID;
         logResponse(buyerID, "sellShare", shareID, st, successMsg);
         return successMsg;
     }
 
     @Override
-    public synchronized String swapShare(String buyerID, String oldShareID, String oldShareType, String newShareID, String newShareType) {
+    public String swapShare(String buyerID, String oldShareID, String oldShareType, String newShareID, String newShareType) {
         try {
             Logger.serverLog(serverID, buyerID, " swapShare", "oldShareID=" + oldShareID + ", oldShareType=" + oldShareType + ", newShareID=" + newShareID + ", newShareType=" + newShareType, "request received");
         }
@@ -381,7 +447,14 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
             e.printStackTrace();
         }
 
-        int oldQuantity = getBuyerShareQuantity(buyerID, oldShareID, oldShareType);
+        int oldQuantity;
+        locks.lockBuyer(buyerID);
+        try {
+            oldQuantity = getBuyerShareQuantity(buyerID, oldShareID, oldShareType);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
         if (oldQuantity <= 0) {
             String fail = "Failed: " + buyerID + " does not own share " + oldShareID;
             logResponse(buyerID, "swapShare", oldShareID, oldShareType, fail);
@@ -439,7 +512,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     }
 
 
-    public synchronized String listShareAvailabilityUDP(String shareType) {
+    public String listShareAvailabilityUDP(String shareType) {
         StringBuilder sb = new StringBuilder();
         sb.append(serverName).append(" [").append(shareType).append("]:\n");
         Map<String, ShareData> map = allShares.get(shareType);
@@ -448,14 +521,14 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         }
         else {
             for (ShareData sd : map.values()) {
-                sb.append(sd.toString()).append(" \n ");
+                sb.append(describeShare(sd)).append(" \n ");
             }
         }
         sb.append("\n");
         return sb.toString();
     }
 
-    public synchronized String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
+    public String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
@@ -463,13 +536,24 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         return purchaseShare(buyerID, shareID, shareType, shareCount);
     }
 
-    public synchronized String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
+    public String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
         return sellShare(buyerID, shareID, shareCount);
     }
 
+    // buyerCounts is only touched under the share lock, so take it while printing
+    private String describeShare(ShareData share) {
+        locks.lockShare(share.shareID);
+        try {
+            return share.toString();
+        }
+        finally {
+            locks.unlockShare(share.shareID);
+        }
+    }
+
     private String detectShareServer(String shareID) {
         String prefix = shareID.substring(0,3).toUpperCase();
         switch (prefix) {
@@ -533,6 +617,48 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
     }
 
 
+    // caller holds the buyer lock
+    private void reservePending(String buyerID, String shareType, String shareID, int shareCount) {
+        pendingShares.putIfAbsent(buyerID, new ConcurrentHashMap<>());
+        pendingShares.get(buyerID).putIfAbsent(shareType, new ArrayList<>());
+        List<String> shareList = pendingShares.get(buyerID).get(shareType);
+        for (int i = 0; i < shareCount; i++) {
+            shareList.add(shareID);
+        }
+    }
+
+    // caller holds the buyer lock
+    private void releasePending(String buyerID, String shareType, String shareID, int shareCount) {
+        Map<String, List<String>> typeMap = pendingShares.get(buyerID);
+        List<String> shareList = typeMap.get(shareType);
+        for (int i = 0; i < shareCount; i++) {
+            shareList.remove(shareID);
+        }
+        if (shareList.isEmpty()) {
+            typeMap.remove(shareType);
+        }
+        if (typeMap.isEmpty()) {
+            pendingShares.remove(buyerID);
+        }
+    }
+
+    // share ids the buyer holds plus the ones of its cross city purchases still on the way, shareType null -> every type
+    private List<String> heldAndPending(String buyerID, String shareType) {
+        List<String> ids = new ArrayList<>();
+        for (Map<String, Map<String, List<String>>> records : Arrays.asList(buyerShares, pendingShares)) {
+            Map<String, List<String>> typeMap = records.get(buyerID);
+            if (typeMap == null) {
+                continue;
+            }
+            for (Map.Entry<String, List<String>> e : typeMap.entrySet()) {
+                if (shareType == null || e.getKey().equals(shareType)) {
+                    ids.addAll(e.getValue());
+                }
+            }
+        }
+        return ids;
+    }
+
     private int removeSharesFromBuyer(String buyerID, String shareID, int shareCount) {
         if (!buyerShares.containsKey(buyerID))
             return 0;
@@ -551,9 +677,15 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
 
     private void removeShareFromBuyers(String shareType, String shareID) {
         for (String buyerID : buyerShares.keySet()) {
-            Map<String, List<String>> typeMap = buyerShares.get(buyerID);
-            if (typeMap.containsKey(shareType)) {
-                typeMap.get(shareType).removeIf(id -> id.equalsIgnoreCase(shareID));
+            locks.lockBuyer(buyerID);
+            try {
+                Map<String, List<String>> typeMap = buyerShares.get(buyerID);
+                if (typeMap != null && typeMap.containsKey(shareType)) {
+                    typeMap.get(shareType).removeIf(id -> id.equalsIgnoreCase(shareID));
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
             }
         }
     }
@@ -577,17 +709,13 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         int year  = Integer.parseInt("20" + shareID.substring(8, 10));
         int thisWeek = (day - 1) / 7;
         int BuyFromOtherCities = 0;
-        Map<String, List<String>> stMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        for (String st : stMap.keySet()) {
-//            System.out.println("haaaa : " + st);
-            for (String sID : stMap.get(st)) {
-                int d2 = Integer.parseInt(sID.substring(4, 6));
-                int m2 = Integer.parseInt(sID.substring(6, 8));
-                int y2 = Integer.parseInt("20" + sID.substring(8, 10));
-                int w2 = (d2 - 1) / 7;
-                if (m2 == month && y2 == year && w2 == thisWeek) {
-                    BuyFromOtherCities++;
-                }
+        for (String sID : heldAndPending(buyerID, null)) {
+            int d2 = Integer.parseInt(sID.substring(4, 6));
+            int m2 = Integer.parseInt(sID.substring(6, 8));
+            int y2 = Integer.parseInt("20" + sID.substring(8, 10));
+            int w2 = (d2 - 1) / 7;
+            if (m2 == month && y2 == year && w2 == thisWeek) {
+                BuyFromOtherCities++;
             }
         }
         return (BuyFromOtherCities >= 3);
@@ -598,9 +726,7 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         int day   = Integer.parseInt(shareID.substring(4, 6));
         int month = Integer.parseInt(shareID.substring(6, 8));
         int year  = Integer.parseInt("20" + shareID.substring(8, 10));
-        Map<String, List<String>> typeMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        List<String> shareList = typeMap.getOrDefault(shareType, new ArrayList<>());
-        for (String existingID : shareList) {
+        for (String existingID : heldAndPending(buyerID, shareType)) {
             int d2 = Integer.parseInt(existingID.substring(4, 6));
             int m2 = Integer.parseInt(existingID.substring(6, 8));
             int y2 = Integer.parseInt("20" + existingID.substring(8, 10));
@@ -637,12 +763,18 @@ public class ShareMarketImplementation extends ServerObjectInterfacePOA {
         String city = detectShareServer(newShareID);
         // is that you?
         if (city.equals(serverName)) {
-            //  remove from buyerShares
-            removeSharesFromBuyer(buyerID, newShareID, quantity);
-            //remove from buyerCounts
-            ShareData sd = allShares.get(newShareType).get(newShareID);
-            if (sd != null) {
-                sd.removeBuyerPurchase(buyerID, quantity);
+            locks.lockBuyerAndShare(buyerID, newShareID);
+            try {
+                //  remove from buyerShares
+                removeSharesFromBuyer(buyerID, newShareID, quantity);
+                //remove from buyerCounts
+                ShareData sd = allShares.get(newShareType).get(newShareID);
+                if (sd != null) {
+                    sd.removeBuyerPurchase(buyerID, quantity);
+                }
+            }
+            finally {
+                locks.unlockBuyerAndShare(buyerID, newShareID);
             }
         }
         else {
@@ -0,0 +1,189 @@
+package Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// background writer for Logger: request threads only put the line on a queue,
+// one daemon thread keeps the log files open and writes everything it finds in one go (group flush)
+public class AsyncLogWriter {
+
+    public enum OverflowPolicy {
+        BLOCK,   // wait until the writer made room
+        DROP,    // throw the new line away
+        SAMPLE   // keep 1 out of sampleRate lines while the queue is full, wait for that one
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>(); // lock free
+    private final AtomicInteger size = new AtomicInteger(); // the queue itself has no bound -> we count
+    private final AtomicLong dropped = new AtomicLong();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final Map<String, FileChannel> channels = new HashMap<>(); // only used by the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private static class Entry {
+        final LogRecord record;
+        final boolean binary;
+
+        Entry(LogRecord record, boolean binary) {
+            this.record = record;
+            this.binary = binary;
+        }
+    }
+
+    public AsyncLogWriter(int capacity, OverflowPolicy policy, int sampleRate) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+        writer = new Thread(this::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // logger.queueSize, logger.overflow (block|drop|sample) and logger.sampleRate
+    public static AsyncLogWriter fromSystemProperties() {
+        int capacity = Integer.getInteger("logger.queueSize", 8192);
+        OverflowPolicy policy = OverflowPolicy.valueOf(System.getProperty("logger.overflow", "block").toUpperCase());
+        int sampleRate = Integer.getInteger("logger.sampleRate", 10);
+        return new AsyncLogWriter(capacity, policy, sampleRate);
+    }
+
+    public void append(LogRecord record, boolean binary) {
+        if (!reserveSlot()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.offer(new Entry(record, binary));
+        LockSupport.unpark(writer);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            int current = size.get();
+            if (current < capacity) {
+                if (size.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            // queue is full
+            if (policy == OverflowPolicy.DROP || !running) {
+                return false;
+            }
+            if (policy == OverflowPolicy.SAMPLE && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+    }
+
+    private void drainLoop() {
+        while (running || !queue.isEmpty()) {
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                continue;
+            }
+            writeBatch();
+        }
+        for (FileChannel channel : channels.values()) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // everything that is in the queue right now, written file by file, one write() per full buffer
+    // the timestamp text is made here, on the writer thread, not on the request thread
+    private void writeBatch() {
+        Map<String, ByteArrayOutputStream> perFile = new HashMap<>();
+        StringBuilder line = new StringBuilder(256);
+        Entry next;
+        int taken = 0;
+        while (taken < MAX_BATCH && (next = queue.poll()) != null) {
+            size.decrementAndGet();
+            ByteArrayOutputStream out = perFile.computeIfAbsent(next.record.fileName, f -> new ByteArrayOutputStream(BUFFER_SIZE));
+            byte[] bytes;
+            if (next.binary) {
+                bytes = next.record.toBinary();
+            }
+            else {
+                line.setLength(0);
+                bytes = next.record.appendText(line).append(System.lineSeparator()).toString().getBytes(StandardCharsets.UTF_8);
+            }
+            out.write(bytes, 0, bytes.length);
+            taken++;
+        }
+        for (Map.Entry<String, ByteArrayOutputStream> e : perFile.entrySet()) {
+            try {
+                write(channelFor(e.getKey()), e.getValue().toByteArray());
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private void write(FileChannel channel, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            buffer.clear();
+            int chunk = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, chunk);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            offset += chunk;
+        }
+    }
+
+    private FileChannel channelFor(String fileName) throws IOException {
+        FileChannel channel = channels.get(fileName);
+        if (channel == null) {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            channels.put(fileName, channel);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,43 @@
+package Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// one log line, the timestamp is kept as epoch nanos and only turned into text when the line is written
+final class LogRecord {
+
+    static final byte KIND_CLIENT = 0;
+    static final byte KIND_SERVER = 1;
+
+    final String fileName;
+    final long epochNanos;
+    final byte kind;
+    final String message;
+
+    LogRecord(String fileName, long epochNanos, byte kind, String message) {
+        this.fileName = fileName;
+        this.epochNanos = epochNanos;
+        this.kind = kind;
+        this.message = message;
+    }
+
+    // same text as before: [Server]: DATE: 2025-03-20 10:15:30 AM | ...
+    StringBuilder appendText(StringBuilder sb) {
+        if (kind == KIND_SERVER) {
+            sb.append("[Server]: ");
+        }
+        return sb.append("DATE: ").append(LogTimestamp.format(epochNanos)).append(" | ").append(message);
+    }
+
+    String toText() {
+        return appendText(new StringBuilder(64 + message.length())).toString();
+    }
+
+    // binary layout: epochNanos (8) | kind (1) | length (4) | UTF-8 message
+    byte[] toBinary() {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(13 + text.length);
+        out.putLong(epochNanos).put(kind).putInt(text.length).put(text);
+        return out.array();
+    }
+}
@@ -0,0 +1,46 @@
+package Logger;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+// "yyyy-MM-dd hh:mm:ss a" text for a log line, formatted only when the second changes
+// DateTimeFormatter is thread safe and the cache is one immutable object behind a volatile -> no locking
+final class LogTimestamp {
+
+    static final String PATTERN = "yyyy-MM-dd hh:mm:ss a";
+
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(PATTERN, Locale.getDefault(Locale.Category.FORMAT)).withZone(ZoneId.systemDefault());
+
+    private static volatile Cached last = new Cached(Long.MIN_VALUE, "");
+
+    private static final class Cached {
+        final long epochSecond;
+        final String text;
+
+        Cached(long epochSecond, String text) {
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    private LogTimestamp() {
+    }
+
+    static long nowNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    static String format(long epochNanos) {
+        long second = Math.floorDiv(epochNanos, 1_000_000_000L);
+        Cached cached = last;
+        if (cached.epochSecond == second) {
+            return cached.text;
+        }
+        String text = FORMATTER.format(Instant.ofEpochSecond(second));
+        last = new Cached(second, text);
+        return text;
+    }
+}
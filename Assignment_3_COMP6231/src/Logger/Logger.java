@@ -1,12 +1,10 @@
 package Logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 
 public class Logger {
@@ -14,19 +12,58 @@ public class Logger {
     public static final int LOG_TYPE_SERVER = 1;
     public static final int LOG_TYPE_CLIENT = 0;
 
+    // null -> every call opens, writes and closes the file on the calling thread (old behaviour)
+    // -Dlogger.async=true or enableAsync(...) -> lines go to a background writer
+    private static volatile AsyncLogWriter asyncWriter;
+    // -Dlogger.binary=true -> records go to <log file>.bin as epoch nanos + message instead of text
+    private static volatile boolean binaryFormat = Boolean.getBoolean("logger.binary");
+    private static boolean closeOnExit; // one shutdown hook for whichever writer is current then; guarded by Logger.class
+
+    static {
+        if (Boolean.getBoolean("logger.async")) {
+            enableAsync(AsyncLogWriter.fromSystemProperties());
+        }
+    }
+
+    public static void enableAsync(int queueCapacity, AsyncLogWriter.OverflowPolicy policy, int sampleRate) {
+        enableAsync(new AsyncLogWriter(queueCapacity, policy, sampleRate));
+    }
+
+    private static synchronized void enableAsync(AsyncLogWriter writer) {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+        }
+        // the first writer registers the hook, a replaced one is closed above -> no hook per writer
+        else if (!closeOnExit) {
+            closeOnExit = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                AsyncLogWriter current = asyncWriter;
+                if (current != null) {
+                    current.close();
+                }
+            }, "log-writer-close"));
+        }
+        asyncWriter = writer;
+    }
+
+    public static void setBinaryFormat(boolean binary) {
+        binaryFormat = binary;
+    }
+
+    public static synchronized void disableAsync() {
+        if (asyncWriter != null) {
+            asyncWriter.close();
+            asyncWriter = null;
+        }
+    }
+
     //log for the client
     public static void clientLog(String clientID, String action, String requestParams, String response) throws IOException {
-        FileWriter fileWriter = new FileWriter(getFileName(clientID, LOG_TYPE_CLIENT), true);
-        PrintWriter printWriter = new PrintWriter(fileWriter);
-        printWriter.println("DATE: " + getFormattedDate() + " | Client Action: " + action + " | RequestParameters: " + requestParams + " | Server Response: " + response);
-        printWriter.close();
+        write(getFileName(clientID, LOG_TYPE_CLIENT), LogRecord.KIND_CLIENT, "Client Action: " + action + " | RequestParameters: " + requestParams + " | Server Response: " + response);
     }
 
     public static void clientLog(String clientID, String msg) throws IOException {
-        FileWriter fileWriter = new FileWriter(getFileName(clientID, LOG_TYPE_CLIENT), true);
-        PrintWriter printWriter = new PrintWriter(fileWriter);
-        printWriter.println("DATE: " + getFormattedDate() + " | " + msg);
-        printWriter.close();
+        write(getFileName(clientID, LOG_TYPE_CLIENT), LogRecord.KIND_CLIENT, msg);
     }
 
 
@@ -36,16 +73,30 @@ public class Logger {
             clientID = "ADMIN_OR_UNKNOWN";
         }
 
-        FileWriter fileWriter = new FileWriter(getFileName(serverID, LOG_TYPE_SERVER), true);
-        PrintWriter printWriter = new PrintWriter(fileWriter);
-        printWriter.println("[Server]: DATE: " + getFormattedDate() + " | ClientID: " + clientID + " | RequestType: " + requestType + " | RequestParameters: " + requestParams + " | ServerResponse: " + serverResponse);
-        printWriter.close();
+        write(getFileName(serverID, LOG_TYPE_SERVER), LogRecord.KIND_SERVER, "ClientID: " + clientID + " | RequestType: " + requestType + " | RequestParameters: " + requestParams + " | ServerResponse: " + serverResponse);
     }
 
     public static void serverLog(String serverID, String msg) throws IOException {
-        FileWriter fileWriter = new FileWriter(getFileName(serverID, LOG_TYPE_SERVER), true);
+        write(getFileName(serverID, LOG_TYPE_SERVER), LogRecord.KIND_SERVER, msg);
+    }
+
+    private static void write(String fileName, byte kind, String message) throws IOException {
+        boolean binary = binaryFormat;
+        LogRecord record = new LogRecord(binary ? fileName + ".bin" : fileName, LogTimestamp.nowNanos(), kind, message);
+        AsyncLogWriter writer = asyncWriter;
+        if (writer != null) {
+            writer.append(record, binary);
+            return;
+        }
+        if (binary) {
+            try (FileOutputStream out = new FileOutputStream(record.fileName, true)) {
+                out.write(record.toBinary());
+            }
+            return;
+        }
+        FileWriter fileWriter = new FileWriter(record.fileName, true);
         PrintWriter printWriter = new PrintWriter(fileWriter);
-        printWriter.println("[Server]: DATE: " + getFormattedDate() + " | " + msg);
+        printWriter.println(record.toText());
         printWriter.close();
     }
 
@@ -80,14 +131,4 @@ public class Logger {
         }
         return fileName;
     }
-
-
-
-    private static String getFormattedDate() {
-        Date date = new Date();
-        String strDateFormat = "yyyy-MM-dd hh:mm:ss a";
-        DateFormat dateFormat = new SimpleDateFormat(strDateFormat);
-        return dateFormat.format(date);
-    }
 }
-
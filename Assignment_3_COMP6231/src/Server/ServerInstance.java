@@ -2,11 +2,22 @@ package Server;
 
 import Logger.Logger;
 import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.UdpProtocol;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.xml.ws.Endpoint;
 
 public class ServerInstance {
@@ -43,17 +54,33 @@ public class ServerInstance {
             System.out.println(serverName + " Server Started...");
             Logger.serverLog(serverID, " Server Started...");
             ShareMarketImplementation service = new ShareMarketImplementation(serverID, serverName);
+            // shares and holdings of the last run come back from the write ahead log before anyone can call us
+            service.recover();
 
-            Endpoint endpoint = Endpoint.publish(serverEndpoint, service);
+            Endpoint endpoint = Endpoint.create(service);
+            ExecutorService soapExecutor = newEndpointExecutor(serverID);
+            if (soapExecutor != null) {
+                endpoint.setExecutor(soapExecutor);
+            }
+            endpoint.publish(serverEndpoint);
 
             System.out.println(serverName + " Server is Up & Running");
             Logger.serverLog(serverID, " Server is Up & Running");
 
-            Runnable task = () -> {
-                listenForRequest(service, serverUdpPort, serverName, serverID);
-            };
-            Thread thread = new Thread(task);
-            thread.start();
+            // udp.mode=nio -> the shared selector loop reads this port, else one blocking listener thread per city
+            if ("nio".equalsIgnoreCase(System.getProperty("udp.mode"))) {
+                UdpRequestHandler handler = new UdpRequestHandler(service, serverID);
+                UdpEventLoop.shared().register(serverID, serverUdpPort, handler, newUdpWorkerPool(serverID, new ThreadPoolExecutor.AbortPolicy()));
+                System.out.println(serverName + " UDP Server started at port " + serverUdpPort + " (nio) ...");
+                Logger.serverLog(serverID, "UDP Server started at port " + serverUdpPort + " (nio)");
+            }
+            else {
+                Runnable task = () -> {
+                    listenForRequest(service, serverUdpPort, serverName, serverID);
+                };
+                Thread thread = new Thread(task);
+                thread.start();
+            }
 
         }
         catch (Exception e) {
@@ -65,66 +92,37 @@ public class ServerInstance {
     }
 
 
+    // the receive loop only reads datagrams, the work (servant call + logs + reply) runs on a bounded pool
+    // udp.workers threads (default = cores), udp.queueDepth waiting requests (default 1024),
+    // when both are used up the receive thread runs the request itself -> backpressure instead of dropping
     private static void listenForRequest(ShareMarketImplementation servant, int serverUdpPort, String serverName, String serverID) {
         DatagramSocket socket = null;
+        ExecutorService workers = newUdpWorkerPool(serverID, new ThreadPoolExecutor.CallerRunsPolicy());
+        UdpRequestHandler handler = new UdpRequestHandler(servant, serverID);
         try {
             socket = new DatagramSocket(serverUdpPort);
-            byte[] buffer = new byte[1000];
+            byte[] buffer = new byte[UdpProtocol.RECEIVE_BUFFER_SIZE];
             System.out.println(serverName + " UDP Server started at port " + socket.getLocalPort() + " ...");
             Logger.serverLog(serverID, "UDP Server started at port " + socket.getLocalPort());
 
+            final DatagramSocket replySocket = socket;
             while (true) {
                 DatagramPacket request = new DatagramPacket(buffer, buffer.length);
                 socket.receive(request);
-                String sentence = new String(request.getData(), 0, request.getLength());
-                String[] parts = sentence.split(";");
-                String method    = parts[0];
-                String buyerID   = parts[1];
-                String shareType = parts[2];
-                String raw       = parts[3];
-                String result = "";
-                switch (method.toLowerCase()) {
-                    case "listshareavailability":
-                        Logger.serverLog(serverID, buyerID, "UDP " + method, "shareType=" + shareType, "...");
-                        result = servant.listShareAvailabilityUDP(shareType);
-                        break;
-
-                    case "purchaseshare":
-                        Logger.serverLog(serverID, buyerID, "UDP " + method, "shareType=" + shareType + ", raw=" + raw, "...");
-                        String[] arrPur = raw.split("-");
-                        if (arrPur.length == 2) {
-                            String shareID = arrPur[0];
-                            int shareCount = Integer.parseInt(arrPur[1]);
-                            result = servant.purchaseShare(buyerID, shareID, shareType, shareCount);
-                        }
-                        else {
-                            result = servant.purchaseShare(buyerID, raw, shareType, 1);
-                        }
-                        break;
-
-                    case "sellshare":
-                        Logger.serverLog(serverID, buyerID, "UDP " + method, "shareType=" + shareType + ", raw=" + raw, "...");
-                        String[] arrSell = raw.split("-");
-                        if (arrSell.length == 2) {
-                            String sID = arrSell[0];
-                            int sCount = Integer.parseInt(arrSell[1]);
-                            result = servant.sellShare(buyerID, sID, sCount);
+                // the buffer is reused by the next receive -> each request gets its own copy
+                final byte[] data = Arrays.copyOf(request.getData(), request.getLength());
+                final SocketAddress sender = request.getSocketAddress();
+                workers.execute(() -> {
+                    try {
+                        for (byte[] reply : handler.handle(data, sender)) {
+                            replySocket.send(new DatagramPacket(reply, reply.length, sender));
                         }
-                        else {
-                            result = servant.sellShare(buyerID, raw, 1);
-                        }
-                        break;
-
-                    default:
-                        result = "ERROR: Unknown UDP method " + method;
-                        break;
-                }
-
-                String sendingResult = result + ";";
-                byte[] sendData = sendingResult.getBytes();
-                DatagramPacket reply = new DatagramPacket(sendData, sendData.length, request.getAddress(), request.getPort());
-                socket.send(reply);
-                Logger.serverLog(serverID, buyerID, "UDP reply " + method, "shareType=" + shareType + ", raw=" + raw, sendingResult);
+                    }
+                    catch (Exception e) {
+                        System.err.println("Exception while handling UDP request: " + e.getMessage());
+                        e.printStackTrace(System.out);
+                    }
+                });
             }
 
         }
@@ -137,7 +135,64 @@ public class ServerInstance {
             e.printStackTrace(System.out);
         }
         finally {
+            workers.shutdown();
             if (socket != null) socket.close();
         }
     }
+
+    // soap.executor picks who runs the SOAP requests of this city:
+    //   default      -> whatever the JAX-WS runtime uses (no tuning)
+    //   bounded      -> soap.threads threads (default 2 x cores, requests wait on UDP calls) + soap.queueDepth queue (default 256)
+    //   workstealing -> ForkJoin pool with soap.threads parallelism, unbounded queue
+    //   virtual      -> one virtual thread per request when the JVM has them (21+), else bounded
+    // soap.rejection (bounded only): callerRuns (default, the HTTP dispatcher slows down) or abort (the request is refused)
+    static ExecutorService newEndpointExecutor(String serverID) {
+        String kind = System.getProperty("soap.executor", "default").toLowerCase();
+        int threads = Integer.getInteger("soap.threads", 2 * Runtime.getRuntime().availableProcessors());
+        switch (kind) {
+            case "default":
+                return null;
+            case "workstealing":
+                return Executors.newWorkStealingPool(threads);
+            case "virtual":
+                try {
+                    return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                }
+                catch (ReflectiveOperationException e) {
+                    System.out.println(serverID + ": virtual threads not available on this JVM, using a bounded SOAP pool");
+                    return newBoundedExecutor(serverID, threads);
+                }
+            case "bounded":
+                return newBoundedExecutor(serverID, threads);
+            default:
+                throw new IllegalArgumentException("Unknown soap.executor: " + kind);
+        }
+    }
+
+    private static ExecutorService newBoundedExecutor(String serverID, int threads) {
+        int queueDepth = Integer.getInteger("soap.queueDepth", 256);
+        RejectedExecutionHandler whenFull = "abort".equalsIgnoreCase(System.getProperty("soap.rejection"))
+                ? new ThreadPoolExecutor.AbortPolicy()
+                : new ThreadPoolExecutor.CallerRunsPolicy();
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread t = new Thread(task, serverID + "-soap-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth), factory, whenFull);
+    }
+
+    // the nio loop serves every city on one thread -> it drops when full (AbortPolicy) instead of running the request itself
+    static ExecutorService newUdpWorkerPool(String serverID, RejectedExecutionHandler whenFull) {
+        int threads = Integer.getInteger("udp.workers", Runtime.getRuntime().availableProcessors());
+        int queueDepth = Integer.getInteger("udp.queueDepth", 1024);
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = task -> {
+            Thread t = new Thread(task, serverID + "-udp-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth), factory, whenFull);
+    }
 }
@@ -0,0 +1,176 @@
+package Server;
+
+import Logger.Logger;
+import com.web.service.udp.UdpProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// udp.mode=nio: instead of one blocking listener thread per city, udp.selectors threads (default 1)
+// serve the UDP ports of every city in this JVM with non blocking channels
+// the selector thread only reads, the request itself runs on the executor of its city
+public class UdpEventLoop {
+
+    private static UdpEventLoop shared;
+
+    private final Loop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    // one bound port = one city
+    private static class City {
+        final String serverID;
+        final DatagramChannel channel;
+        final UdpRequestHandler handler;
+        final ExecutorService executor;
+        final AtomicLong rejected = new AtomicLong(); // requests the executor had no room for
+
+        City(String serverID, DatagramChannel channel, UdpRequestHandler handler, ExecutorService executor) {
+            this.serverID = serverID;
+            this.channel  = channel;
+            this.handler  = handler;
+            this.executor = executor;
+        }
+    }
+
+    private static class Loop implements Runnable {
+        private final Selector selector;
+        private final Queue<City> toRegister = new ConcurrentLinkedQueue<>(); // channels are registered on the loop thread
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(UdpProtocol.RECEIVE_BUFFER_SIZE);
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void add(City city) {
+            toRegister.add(city);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    City city;
+                    while ((city = toRegister.poll()) != null) {
+                        city.channel.register(selector, SelectionKey.OP_READ, city);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            drain((City) key.attachment());
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("IOException in UDP event loop: " + e.getMessage());
+                    e.printStackTrace(System.out);
+                }
+                catch (RuntimeException e) {
+                    // a bug, not load -> say so, but keep serving the other ports
+                    System.err.println("Exception in UDP event loop: " + e);
+                    e.printStackTrace(System.out);
+                }
+            }
+        }
+
+        // everything waiting on this port, each datagram copied out of the shared buffer and handed to the city
+        private void drain(City city) throws IOException {
+            SocketAddress sender;
+            while (true) {
+                buffer.clear();
+                sender = city.channel.receive(buffer);
+                if (sender == null) {
+                    return;
+                }
+                buffer.flip();
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+                final SocketAddress from = sender;
+                try {
+                    city.executor.execute(() -> reply(city, data, from));
+                }
+                catch (RejectedExecutionException e) {
+                    // city is overloaded -> drop it, the caller retries
+                    rejected(city);
+                }
+            }
+        }
+
+        // logged the first time and then every 1000th, a full queue drops requests in bursts
+        private void rejected(City city) {
+            long dropped = city.rejected.incrementAndGet();
+            if (dropped == 1 || dropped % 1000 == 0) {
+                try {
+                    Logger.serverLog(city.serverID, "UDP executor full, " + dropped + " requests dropped so far");
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private UdpEventLoop(int selectorCount) throws IOException {
+        loops = new Loop[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            loops[i] = new Loop();
+            Thread t = new Thread(loops[i], "udp-selector-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public static synchronized UdpEventLoop shared() throws IOException {
+        if (shared == null) {
+            shared = new UdpEventLoop(Math.max(1, Integer.getInteger("udp.selectors", 1)));
+        }
+        return shared;
+    }
+
+    // cities are spread over the selector threads round robin
+    public void register(String serverID, int port, UdpRequestHandler handler, ExecutorService executor) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].add(new City(serverID, channel, handler, executor));
+    }
+
+    private static void reply(City city, byte[] data, SocketAddress sender) {
+        try {
+            for (byte[] reply : city.handler.handle(data, sender)) {
+                send(city.channel, ByteBuffer.wrap(reply), sender);
+            }
+        }
+        catch (Exception e) {
+            System.err.println(city.serverID + ": exception while handling UDP request: " + e.getMessage());
+            e.printStackTrace(System.out);
+        }
+    }
+
+    // non blocking send returns 0 while the socket buffer is full (burst of fragments) -> wait a little, then give up
+    private static void send(DatagramChannel channel, ByteBuffer datagram, SocketAddress target) throws IOException {
+        for (int tries = 0; channel.send(datagram, target) == 0; tries++) {
+            if (tries == 100) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+}
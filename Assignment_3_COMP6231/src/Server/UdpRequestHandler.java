@@ -0,0 +1,228 @@
+package Server;
+
+import Logger.Logger;
+import com.web.service.ShareOrder;
+import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.BinaryCodec;
+import com.web.service.udp.UdpProtocol;
+import com.web.service.udp.UdpReply;
+import com.web.service.udp.UdpRequest;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// turns one inter-server datagram (see UdpProtocol / BinaryCodec) into a servant call and the reply datagrams
+// only shared state is the dedup table (concurrent) -> can run on any number of worker threads at once
+public class UdpRequestHandler {
+
+    private final ShareMarketImplementation servant;
+    private final String serverID;
+    // sender + request id -> reply, so a resent purchase / sell is answered again but not executed again
+    // entries live udp.dedupTtlMs (default 60s), the client deadline is far shorter than that
+    private final Map<String, DedupEntry> dedup = new ConcurrentHashMap<>();
+    private final Queue<DedupEntry> dedupOrder = new ConcurrentLinkedQueue<>(); // oldest first, for the cleanup
+    private final long dedupTtlNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("udp.dedupTtlMs", 60000));
+
+    private static class DedupEntry {
+        final String key;
+        final long createdNanos = System.nanoTime();
+        volatile byte[] reply; // whole encoded reply, null while the first copy of the request is still running
+
+        DedupEntry(String key) {
+            this.key = key;
+        }
+    }
+
+    private interface ReplyTask {
+        byte[] run() throws IOException;
+    }
+
+    public UdpRequestHandler(ShareMarketImplementation servant, String serverID) {
+        this.servant = servant;
+        this.serverID = serverID;
+    }
+
+    // one received datagram -> the datagrams to send back (none for a duplicate of a request that is still running)
+    // binary and v2 text requests carry an id that goes back in the reply, which is in the same form as the request;
+    // a big reply is split into fragments; v1 (no id) is still answered as before with one datagram
+    public List<byte[]> handle(byte[] data, SocketAddress sender) throws IOException {
+        if (BinaryCodec.isBinary(data, data.length)) {
+            return handleBinary(data, sender);
+        }
+        String sentence = new String(data);
+        if (UdpProtocol.isResend(sentence)) {
+            return resend(sentence, sender);
+        }
+        if (!UdpProtocol.isV2(sentence)) {
+            return Collections.singletonList(textReply(UdpRequest.parseText(sentence)).getBytes());
+        }
+        long requestId = UdpProtocol.requestId(sentence);
+        if (requestId < 0) {
+            return Collections.singletonList("ERROR: Malformed UDP request;".getBytes());
+        }
+        UdpRequest request = UdpRequest.parseText(UdpProtocol.body(sentence));
+        return once(sender, requestId, () -> UdpProtocol.frame(requestId, textReply(request)).getBytes());
+    }
+
+    private List<byte[]> handleBinary(byte[] data, SocketAddress sender) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        BinaryCodec.Header header = BinaryCodec.readHeader(in);
+        if (header == null || header.kind != BinaryCodec.KIND_REQUEST) {
+            return Collections.emptyList();
+        }
+        long requestId = header.requestId;
+        if (!BinaryCodec.isSupported(header)) {
+            return Collections.singletonList(BinaryCodec.encodeReply(requestId, UdpReply.text("ERROR: unsupported codec version " + header.version)));
+        }
+        UdpRequest request;
+        try {
+            request = BinaryCodec.readRequest(in);
+        }
+        catch (RuntimeException e) {
+            return Collections.singletonList(BinaryCodec.encodeReply(requestId, UdpReply.text("ERROR: Malformed UDP request")));
+        }
+        return once(sender, requestId, () -> BinaryCodec.encodeReply(requestId, dispatch(request, true)));
+    }
+
+    // runs the request the first time its id is seen from that sender, after that answers from the dedup table
+    private List<byte[]> once(SocketAddress sender, long requestId, ReplyTask task) throws IOException {
+        expireDedup();
+        DedupEntry entry = new DedupEntry(sender + "#" + requestId);
+        DedupEntry first = dedup.putIfAbsent(entry.key, entry);
+        if (first != null) {
+            // retry of something we already have: same reply again, or stay quiet until the first run is done
+            byte[] reply = first.reply;
+            return reply == null ? Collections.<byte[]>emptyList() : replyDatagrams(requestId, reply);
+        }
+        dedupOrder.add(entry);
+        boolean done = false;
+        try {
+            entry.reply = task.run();
+            done = true;
+            return replyDatagrams(requestId, entry.reply);
+        }
+        finally {
+            // failed -> let a retry run it again
+            if (!done) {
+                dedup.remove(entry.key, entry);
+            }
+        }
+    }
+
+    private List<byte[]> replyDatagrams(long requestId, byte[] reply) {
+        int total = UdpProtocol.fragmentCount(reply);
+        if (total == 1) {
+            return Collections.singletonList(reply);
+        }
+        List<byte[]> datagrams = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            datagrams.add(UdpProtocol.fragment(requestId, reply, i));
+        }
+        return datagrams;
+    }
+
+    // the caller lost some fragments -> send just those again, from the reply kept for dedup
+    private List<byte[]> resend(String sentence, SocketAddress sender) {
+        long requestId = UdpProtocol.resendRequestId(sentence);
+        DedupEntry entry = requestId < 0 ? null : dedup.get(sender + "#" + requestId);
+        byte[] reply = entry == null ? null : entry.reply;
+        if (reply == null) {
+            return Collections.emptyList();
+        }
+        int total = UdpProtocol.fragmentCount(reply);
+        List<byte[]> datagrams = new ArrayList<>();
+        for (int index : UdpProtocol.resendIndexes(sentence)) {
+            if (index >= 0 && index < total) {
+                datagrams.add(UdpProtocol.fragment(requestId, reply, index));
+            }
+        }
+        return datagrams;
+    }
+
+    private void expireDedup() {
+        long now = System.nanoTime();
+        DedupEntry oldest;
+        while ((oldest = dedupOrder.peek()) != null && now - oldest.createdNanos > dedupTtlNanos) {
+            if (dedupOrder.remove(oldest)) {
+                dedup.remove(oldest.key, oldest);
+            }
+        }
+    }
+
+    // the text protocol ends every reply with ';'
+    private String textReply(UdpRequest request) throws IOException {
+        if (request == null) {
+            return "ERROR: Malformed or unknown UDP request;";
+        }
+        return dispatch(request, false).text() + ";";
+    }
+
+    // structured = the reply goes out binary -> listings as a report instead of the formatted text
+    private UdpReply dispatch(UdpRequest request, boolean structured) throws IOException {
+        String method = request.method.textName();
+        String params = "shareType=" + request.shareType + ", raw=" + (request.report != null ? request.report.toString() : request.extra());
+        Logger.serverLog(serverID, request.callerID, "UDP " + method, params, "...");
+        UdpReply reply;
+        switch (request.method) {
+            case LIST_SHARE_AVAILABILITY:
+                reply = structured
+                        ? UdpReply.report(servant.availabilityReport(request.shareType))
+                        : UdpReply.text(servant.listShareAvailabilityUDP(request.shareType));
+                break;
+
+            case PURCHASE_SHARE:
+                reply = UdpReply.text(servant.purchaseShare(request.callerID, request.shareID, request.shareType, request.count));
+                break;
+
+            case SELL_SHARE:
+                reply = UdpReply.text(servant.sellShare(request.callerID, request.shareID, request.count));
+                break;
+
+            case AVAILABILITY_DELTA:
+                // callerID carries the city that sent the delta
+                reply = UdpReply.text(servant.applyAvailabilityDelta(request.callerID, request.report));
+                break;
+
+            case AVAILABILITY_SNAPSHOT:
+                reply = UdpReply.report(servant.availabilitySnapshot());
+                break;
+
+            // one result per line, in the order of the items
+            case PURCHASE_BATCH:
+                reply = UdpReply.text(String.join("\n", servant.purchaseShares(request.orders.toArray(new ShareOrder[0]))));
+                break;
+
+            case SELL_BATCH:
+                reply = UdpReply.text(String.join("\n", servant.sellShares(request.orders.toArray(new ShareOrder[0]))));
+                break;
+
+            // the two phases of a swapShare coordinated by the calling city
+            case SWAP_PREPARE:
+                reply = UdpReply.text(servant.prepareSwap(request.txId, request.orders));
+                break;
+
+            case SWAP_COMMIT:
+                reply = UdpReply.text(servant.commitSwap(request.txId));
+                break;
+
+            case SWAP_ABORT:
+                reply = UdpReply.text(servant.abortSwap(request.txId));
+                break;
+
+            default:
+                reply = UdpReply.text("ERROR: Unknown UDP method " + method);
+                break;
+        }
+        Logger.serverLog(serverID, request.callerID, "UDP reply " + method, params, reply.toString());
+        return reply;
+    }
+}
@@ -0,0 +1,92 @@
+package com.web.Client;
+
+import com.web.service.ShareOrder;
+import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.BinaryCodec;
+import com.web.service.udp.UdpProtocol;
+import com.web.service.udp.UdpReply;
+import com.web.service.udp.UdpRequest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+// encode + decode cost and bytes on the wire of the inter-city messages, BinaryCodec against the v2 text frames
+// no JMH in this tree -> plain warmed up loops, run it a few times and look at the spread
+//   java com.web.Client.CodecBenchmark [iterations]
+public class CodecBenchmark {
+
+    private static long sink; // keeps the JIT from dropping the work
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        Charset charset = Charset.defaultCharset();
+
+        // a city of 1000 Bonus shares for the listing reply
+        System.setProperty("wal.dir", "");
+        ShareMarketImplementation tok = new ShareMarketImplementation("TOK", ShareMarketImplementation.MARKET_SERVER_TOKYO);
+        tok.recover();
+        for (int i = 0; i < 1000; i++) {
+            tok.addShare(String.format("TOK%c%02d%02d25", "MAE".charAt(i % 3), i / 3 % 28 + 1, i / 84 % 12 + 1), ShareMarketImplementation.BONUS, 100 + i);
+        }
+
+        List<ShareOrder> orders = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            orders.add(new ShareOrder(String.format("NYKB%04d", i), String.format("TOKM%02d1025", i % 28 + 1), ShareMarketImplementation.EQUITY, 1 + i % 5));
+        }
+        UdpRequest purchase = UdpRequest.purchaseShare("NYKB0001", ShareMarketImplementation.EQUITY, "TOKM101025", 5);
+        UdpRequest batch = UdpRequest.purchaseShares("NYK", orders);
+
+        System.out.printf("%-32s %10s %10s %10s%n", "message", "bytes", "encode ns", "decode ns");
+        request("purchase request", purchase, iterations, charset);
+        request("batch request (20 orders)", batch, iterations / 10, charset);
+
+        // listing reply: binary sends the report, text the formatted listing (read as it is, nothing to parse)
+        UdpReply report = UdpReply.report(tok.availabilityReport(ShareMarketImplementation.BONUS));
+        measure("listing reply (1000), bin", iterations / 100,
+                i -> BinaryCodec.encodeReply(i, report),
+                bytes -> {
+                    ByteBuffer in = ByteBuffer.wrap(bytes);
+                    return BinaryCodec.readReply(in, BinaryCodec.readHeader(in).kind);
+                });
+        measure("listing reply (1000), text", iterations / 100,
+                i -> UdpProtocol.frame(i, tok.listShareAvailabilityUDP(ShareMarketImplementation.BONUS) + ";").getBytes(charset),
+                bytes -> UdpProtocol.body(new String(bytes, charset)));
+        System.out.println("sink " + (sink & 1));
+    }
+
+    private static void request(String label, UdpRequest request, int iterations, Charset charset) {
+        measure(label + ", bin", iterations,
+                i -> BinaryCodec.encodeRequest(i, request),
+                bytes -> {
+                    ByteBuffer in = ByteBuffer.wrap(bytes);
+                    BinaryCodec.readHeader(in);
+                    return BinaryCodec.readRequest(in);
+                });
+        measure(label + ", text", iterations,
+                i -> UdpProtocol.frame(i, request.toText()).getBytes(charset),
+                bytes -> UdpRequest.parseText(UdpProtocol.body(new String(bytes, charset))));
+    }
+
+    // warm up with one pass, then time a second one
+    private static void measure(String label, int iterations, Function<Long, byte[]> encode, Function<byte[], Object> decode) {
+        byte[] bytes = encode.apply(1L);
+        long encodeNanos = 0;
+        long decodeNanos = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += encode.apply((long) i).length;
+            }
+            encodeNanos = (System.nanoTime() - start) / iterations;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                sink += System.identityHashCode(decode.apply(bytes));
+            }
+            decodeNanos = (System.nanoTime() - start) / iterations;
+        }
+        System.out.printf("%-32s %10d %10d %10d%n", label, bytes.length, encodeNanos, decodeNanos);
+    }
+}
@@ -0,0 +1,102 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// one buyer fires many cross city purchases at once -> the 3 per week and one type per day rules must still hold,
+// then local purchase / sell throughput for 1, 2, 4, 8 threads (per share / per buyer locks, no servant wide lock)
+//   java com.web.Client.CrossCityLimitStressTest [rounds] [seconds per thread count]
+public class CrossCityLimitStressTest {
+
+    private static final String[] TYPES = {ShareMarketImplementation.BONUS, ShareMarketImplementation.EQUITY, ShareMarketImplementation.DIVIDEND};
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        LocalCities cities = LocalCities.start();
+
+        // days 08-14 are one week bucket; every day as every type -> 21 purchases that don't break the day rule
+        List<String[]> weekOrders = new ArrayList<>(); // shareID, shareType
+        for (int day = 8; day <= 14; day++) {
+            String shareID = String.format("TOKM%02d1025", day);
+            for (String type : TYPES) {
+                cities.tok.addShare(shareID, type, 1000000);
+                weekOrders.add(new String[]{shareID, type});
+            }
+        }
+        // six Bonus shares of one day in two cities -> only one of them may go through
+        List<String[]> dayOrders = new ArrayList<>();
+        for (String slot : new String[]{"M", "A", "E"}) {
+            cities.tok.addShare("TOK" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            cities.lon.addShare("LON" + slot + "201025", ShareMarketImplementation.BONUS, 1000000);
+            dayOrders.add(new String[]{"TOK" + slot + "201025", ShareMarketImplementation.BONUS});
+            dayOrders.add(new String[]{"LON" + slot + "201025", ShareMarketImplementation.BONUS});
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(weekOrders.size());
+        int weekMax = 0;
+        int dayMax = 0;
+        for (int round = 0; round < rounds; round++) {
+            int week = purchaseAtOnce(pool, cities.nyk, String.format("NYKB%04d", round), weekOrders);
+            int day = purchaseAtOnce(pool, cities.nyk, String.format("NYKB%04d", 5000 + round), dayOrders);
+            weekMax = Math.max(weekMax, week);
+            dayMax = Math.max(dayMax, day);
+            if (week > 3 || day > 1) {
+                failures++;
+                System.out.println("FAIL round " + round + ": " + week + " cross city purchases in one week, " + day + " of one type on one day");
+            }
+        }
+        System.out.println((weekMax <= 3 ? "ok   " : "FAIL ") + rounds + " rounds x " + weekOrders.size() + " parallel purchases, most in one week: " + weekMax + " (limit 3)");
+        System.out.println((dayMax <= 1 ? "ok   " : "FAIL ") + rounds + " rounds x " + dayOrders.size() + " parallel purchases, most of one type on one day: " + dayMax + " (limit 1)");
+        pool.shutdown();
+
+        if (seconds > 0) {
+            throughput(cities.nyk, seconds);
+        }
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // all orders released at the same moment, returns how many succeeded
+    private static int purchaseAtOnce(ExecutorService pool, ShareMarketImplementation city, String buyerID, List<String[]> orders) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<String>> replies = new ArrayList<>();
+        for (String[] order : orders) {
+            replies.add(pool.submit(() -> {
+                start.await();
+                return city.purchaseShare(buyerID, order[0], order[1], 1);
+            }));
+        }
+        start.countDown();
+        int succeeded = 0;
+        for (Future<String> reply : replies) {
+            if (reply.get().startsWith("Success")) {
+                succeeded++;
+            }
+        }
+        return succeeded;
+    }
+
+    // each thread buys and sells its own shares for its own buyers -> nothing shared but the servant
+    private static void throughput(ShareMarketImplementation city, int seconds) throws Exception {
+        int maxThreads = 8;
+        for (int t = 0; t < maxThreads; t++) {
+            city.addShare(String.format("NYKM%02d1125", t + 1), ShareMarketImplementation.EQUITY, 1000000);
+        }
+        ThreadScaling.run("local purchase + sell", maxThreads, seconds, thread -> {
+            String shareID = String.format("NYKM%02d1125", thread + 1);
+            String buyerID = String.format("NYKB9%03d", thread);
+            city.purchaseShare(buyerID, shareID, ShareMarketImplementation.EQUITY, 1);
+            city.sellShare(buyerID, shareID, 1);
+            return 2;
+        });
+    }
+}
@@ -0,0 +1,117 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// heap per buyer holding and sustained purchase / sell rate of one city, no UDP and no write ahead log
+// run it on a build before and after a change of the holdings maps to compare them:
+//   java -XX:+UseSerialGC com.web.Client.HoldingsBenchmark [buyers] [holdings per buyer] [seconds] [threads]
+public class HoldingsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int buyers = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int perBuyer = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        System.setProperty("wal.dir", "");
+        ShareMarketImplementation city = new ShareMarketImplementation("NYK", ShareMarketImplementation.MARKET_SERVER_NEWYORK);
+        city.recover();
+
+        // one share per day of many years -> holdings spread over many share ids, no day / week rule in the way (all local)
+        List<String> shareIDs = new ArrayList<>();
+        for (int year = 20; year < 99; year++) {
+            for (int month = 1; month <= 12; month++) {
+                for (int day = 1; day <= 28; day++) {
+                    shareIDs.add(String.format("NYKM%02d%02d%02d", day, month, year));
+                }
+            }
+        }
+        for (String shareID : shareIDs) {
+            city.addShare(shareID, ShareMarketImplementation.EQUITY, 1000000000);
+        }
+
+        long heapBefore = liveHeap();
+        long start = System.nanoTime();
+        for (int b = 0; b < buyers; b++) {
+            String buyerID = buyerID(b);
+            for (int k = 0; k < perBuyer; k++) {
+                city.purchaseShare(buyerID, shareOf(shareIDs, b, k), ShareMarketImplementation.EQUITY, 1 + k % 3);
+            }
+        }
+        long fillMillis = (System.nanoTime() - start) / 1000000;
+        long heapUsed = liveHeap() - heapBefore;
+        long holdings = (long) buyers * perBuyer;
+        System.out.printf("%d holdings: filled in %d ms, live heap +%d MB = %.0f bytes/holding%n",
+                holdings, fillMillis, heapUsed >> 20, heapUsed / (double) holdings);
+
+        // sell a holding and buy it back for random buyers -> the maps shrink and grow all the time
+        long gcCount = -gcCount();
+        long gcMillis = -gcMillis();
+        AtomicLong operations = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            running.add(pool.submit(() -> {
+                while (System.nanoTime() < end) {
+                    int b = random.nextInt(buyers);
+                    int k = random.nextInt(perBuyer);
+                    String shareID = shareOf(shareIDs, b, k);
+                    city.sellShare(buyerID(b), shareID, 3);
+                    city.purchaseShare(buyerID(b), shareID, ShareMarketImplementation.EQUITY, 1 + k % 3);
+                    operations.addAndGet(2);
+                }
+            }));
+        }
+        for (Future<?> f : running) {
+            f.get();
+        }
+        pool.shutdown();
+        gcCount += gcCount();
+        gcMillis += gcMillis();
+        System.out.printf("sustained %d s on %d threads: %.0f ops/s, %d GCs, %d ms in GC (%.1f ms each)%n",
+                seconds, threads, operations.get() / (double) seconds, gcCount, gcMillis, gcCount == 0 ? 0.0 : gcMillis / (double) gcCount);
+        System.exit(0);
+    }
+
+    private static String buyerID(int b) {
+        return String.format("NYKB%06d", b);
+    }
+
+    private static String shareOf(List<String> shareIDs, int b, int k) {
+        return shareIDs.get((b * 7 + k * 101) % shareIDs.size());
+    }
+
+    private static long liveHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += gc.getCollectionCount();
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += gc.getCollectionTime();
+        }
+        return millis;
+    }
+}
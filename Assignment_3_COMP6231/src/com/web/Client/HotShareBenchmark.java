@@ -0,0 +1,90 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// many buyers on one share at once: it must sell out to exactly its capacity, never more,
+// then the purchase + sell rate on that one share for 1, 2, 4, 8 threads
+// both for the capacity claimed under the share's monitor (share.claim=synchronized, the baseline) and with CAS
+//   java com.web.Client.HotShareBenchmark [capacity] [seconds per thread count]
+public class HotShareBenchmark {
+
+    private static final String HOT_SHARE = "NYKM011125";
+    private static final String STEADY_SHARE = "NYKM021125";
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int capacity = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        System.setProperty("wal.dir", "");
+        String[] claims = {"synchronized", "cas"};
+        ShareMarketImplementation[] cities = new ShareMarketImplementation[claims.length];
+        for (int i = 0; i < claims.length; i++) {
+            // read by the catalog recover() opens
+            System.setProperty("share.claim", claims[i]);
+            cities[i] = new ShareMarketImplementation("NYK", ShareMarketImplementation.MARKET_SERVER_NEWYORK);
+            cities[i].recover();
+            cities[i].addShare(STEADY_SHARE, ShareMarketImplementation.EQUITY, 1000000);
+        }
+        // both kinds of share busy before anything is timed -> the one measured first is not the one that pays for the JIT
+        ThreadScaling.warmUp(THREADS, seconds, thread -> purchaseAndSell(cities[thread % cities.length], thread));
+
+        boolean exact = true;
+        for (int i = 0; i < claims.length; i++) {
+            exact &= sellOut(cities[i], claims[i], capacity);
+        }
+        for (int i = 0; i < claims.length; i++) {
+            ShareMarketImplementation city = cities[i];
+            ThreadScaling.run("purchase + sell of one share, " + claims[i] + " claim", THREADS, seconds, thread -> purchaseAndSell(city, thread));
+        }
+        System.exit(exact ? 0 : 1);
+    }
+
+    // steady: every thread buys one unit of the hot share and sells it again, with its own buyer
+    private static int purchaseAndSell(ShareMarketImplementation city, int thread) {
+        String buyerID = String.format("NYKB9%05d", thread);
+        city.purchaseShare(buyerID, STEADY_SHARE, ShareMarketImplementation.EQUITY, 1);
+        city.sellShare(buyerID, STEADY_SHARE, 1);
+        return 2;
+    }
+
+    // twice as many one unit purchases as there are units, every one by another buyer
+    private static boolean sellOut(ShareMarketImplementation city, String claim, int capacity) throws Exception {
+        city.addShare(HOT_SHARE, ShareMarketImplementation.EQUITY, capacity);
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicLong sold = new AtomicLong();
+        List<Future<?>> running = new ArrayList<>();
+        int perThread = 2 * capacity / THREADS;
+        for (int t = 0; t < THREADS; t++) {
+            int first = t * perThread;
+            running.add(pool.submit(() -> {
+                start.await();
+                for (int b = first; b < first + perThread; b++) {
+                    if (city.purchaseShare(String.format("NYKB%06d", b), HOT_SHARE, ShareMarketImplementation.EQUITY, 1).startsWith("Success")) {
+                        sold.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> f : running) {
+            f.get();
+        }
+        long millis = (System.nanoTime() - begin) / 1000000;
+        pool.shutdown();
+        boolean exact = sold.get() == capacity;
+        System.out.printf("%s %s claim, %d threads, %d purchases for %d units: %d sold in %d ms (%.0f purchases/s)%n",
+                exact ? "ok  " : "FAIL", claim, THREADS, 2L * capacity, capacity, sold.get(), millis, 2000.0 * capacity / Math.max(1, millis));
+        return exact;
+    }
+}
@@ -0,0 +1,86 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.BinaryCodec;
+import com.web.service.udp.UdpClient;
+import com.web.service.udp.UdpProtocol;
+import com.web.service.udp.UdpReply;
+import com.web.service.udp.UdpRequest;
+
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+// one availability listing of a city with [shares] shares per type, asked from this process over UDP:
+// every share has to arrive (no truncation), in the binary reply and in the text one, and through the admin listing
+//   java com.web.Client.LargeReplyBenchmark [shares] [rounds]
+public class LargeReplyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int shares = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        // the admin listing asks the cities every time instead of using what they pushed
+        System.setProperty("availability.maxStalenessMs", "0");
+        System.setProperty("udp.listDeadlineMs", "30000");
+        LocalCities cities = LocalCities.start();
+        int added = 0;
+        fill:
+        for (int year = 0; year < 100; year++) {
+            for (int month = 1; month <= 12; month++) {
+                for (int day = 1; day <= 31; day++) {
+                    for (char slot : new char[]{'M', 'A', 'E'}) {
+                        String shareID = String.format("TOK%c%02d%02d%02d", slot, day, month, year);
+                        for (String type : new String[]{ShareMarketImplementation.BONUS, ShareMarketImplementation.EQUITY, ShareMarketImplementation.DIVIDEND}) {
+                            cities.tok.addShare(shareID, type, 10);
+                        }
+                        if (++added == shares) {
+                            break fill;
+                        }
+                    }
+                }
+            }
+        }
+
+        UdpRequest request = UdpRequest.listShareAvailability("NYK", ShareMarketImplementation.BONUS);
+        UdpClient binary = new UdpClient("BENCH", InetAddress.getLoopbackAddress(), 30000, 3, 200, true);
+        UdpClient text = new UdpClient("BENCH", InetAddress.getLoopbackAddress(), 30000, 3, 200, false);
+        int failures = 0;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            UdpReply report = binary.call(ShareMarketImplementation.TOK_PORT, request);
+            long binaryMillis = (System.nanoTime() - start) / 1000000;
+            int binaryEntries = report.isReport() ? report.report().entries.size() : 0;
+            byte[] binaryBytes = BinaryCodec.encodeReply(0, report);
+
+            start = System.nanoTime();
+            String listing = text.call(ShareMarketImplementation.TOK_PORT, request).text();
+            long textMillis = (System.nanoTime() - start) / 1000000;
+            int textEntries = count(listing, "ShareID=TOK");
+            byte[] textBytes = listing.getBytes(Charset.defaultCharset());
+
+            start = System.nanoTime();
+            String admin = cities.nyk.listShareAvailability(ShareMarketImplementation.BONUS);
+            long adminMillis = (System.nanoTime() - start) / 1000000;
+            int adminEntries = count(admin, "ShareID=TOK");
+
+            boolean ok = binaryEntries == shares && textEntries == shares && adminEntries == shares;
+            if (!ok) {
+                failures++;
+            }
+            System.out.printf("%s round %d: binary %d shares, %d KB, %d datagrams, %d ms | text %d shares, %d KB, %d datagrams, %d ms | admin listing %d shares, %d ms%n",
+                    ok ? "ok  " : "FAIL", round, binaryEntries, binaryBytes.length >> 10, UdpProtocol.fragmentCount(binaryBytes), binaryMillis,
+                    textEntries, textBytes.length >> 10, UdpProtocol.fragmentCount(textBytes), textMillis, adminEntries, adminMillis);
+        }
+        binary.close();
+        text.close();
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static int count(String s, String part) {
+        int n = 0;
+        for (int i = s.indexOf(part); i >= 0; i = s.indexOf(part, i + part.length())) {
+            n++;
+        }
+        return n;
+    }
+}
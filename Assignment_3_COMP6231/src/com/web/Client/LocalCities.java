@@ -0,0 +1,61 @@
+package com.web.Client;
+
+import Server.UdpEventLoop;
+import Server.UdpRequestHandler;
+import com.web.service.implimentation.ShareMarketImplementation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// the three cities in this process for the tests and benchmarks: servants + their UDP ports on the nio loop, no SOAP endpoints
+// no write ahead log unless the caller sets wal.dir
+// startLossy: every city listens PROXY_OFFSET above its port, a LossyUdpProxy on the port itself drops datagrams
+final class LocalCities {
+
+    private static final int PROXY_OFFSET = 100;
+
+    final ShareMarketImplementation nyk;
+    final ShareMarketImplementation lon;
+    final ShareMarketImplementation tok;
+    private final Map<String, LossyUdpProxy> proxies = new HashMap<>(); // city -> proxy in front of it, empty without loss
+
+    private LocalCities(double lossRate) throws Exception {
+        if (System.getProperty("wal.dir") == null) {
+            System.setProperty("wal.dir", "");
+        }
+        nyk = start("NYK", ShareMarketImplementation.MARKET_SERVER_NEWYORK, ShareMarketImplementation.NYK_PORT, lossRate);
+        lon = start("LON", ShareMarketImplementation.MARKET_SERVER_LONDON, ShareMarketImplementation.LON_PORT, lossRate);
+        tok = start("TOK", ShareMarketImplementation.MARKET_SERVER_TOKYO, ShareMarketImplementation.TOK_PORT, lossRate);
+    }
+
+    static LocalCities start() throws Exception {
+        return new LocalCities(-1);
+    }
+
+    static LocalCities startLossy(double lossRate) throws Exception {
+        return new LocalCities(lossRate);
+    }
+
+    // what reaches the city and what it answers goes through this one
+    LossyUdpProxy proxy(String serverID) {
+        return proxies.get(serverID);
+    }
+
+    private ShareMarketImplementation start(String serverID, String serverName, int port, double lossRate) throws Exception {
+        ShareMarketImplementation servant = new ShareMarketImplementation(serverID, serverName);
+        servant.recover();
+        ExecutorService workers = Executors.newFixedThreadPool(4, task -> {
+            Thread t = new Thread(task, serverID + "-test-udp-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        if (lossRate >= 0) {
+            proxies.put(serverID, new LossyUdpProxy(serverID, port, port + PROXY_OFFSET, lossRate));
+            port += PROXY_OFFSET;
+        }
+        UdpEventLoop.shared().register(serverID, port, new UdpRequestHandler(servant, serverID), workers);
+        return servant;
+    }
+}
@@ -0,0 +1,182 @@
+package com.web.Client;
+
+import com.web.service.udp.BinaryCodec;
+import com.web.service.udp.UdpMethod;
+import com.web.service.udp.UdpProtocol;
+import com.web.service.udp.UdpRequest;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// sits on a city's udp port in front of the port the servant really listens on and forwards both ways,
+// dropping datagrams on the way -> the retries and the dedup are tried without touching the production send paths
+// drops: a random share of every datagram (lossRate), and on request the first reply to one kind of request
+final class LossyUdpProxy {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final String name;
+    private final DatagramSocket front; // the city's port, what the other cities send to
+    private final SocketAddress backend; // the servant
+    private final Map<SocketAddress, DatagramSocket> links = new ConcurrentHashMap<>(); // one per caller -> the replies find their way back
+    private volatile double lossRate;
+    private final AtomicReference<UdpMethod> dropReplyTo = new AtomicReference<>(); // armed by dropFirstReply
+    private final AtomicLong doomedRequest = new AtomicLong(NONE); // id of the request whose next reply is dropped
+    private final AtomicInteger dropped = new AtomicInteger();
+    private final AtomicInteger droppedReplies = new AtomicInteger();
+
+    LossyUdpProxy(String name, int port, int backendPort, double lossRate) throws IOException {
+        this.name = name;
+        this.lossRate = lossRate;
+        front = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        backend = new InetSocketAddress(InetAddress.getLoopbackAddress(), backendPort);
+        daemon(name + "-proxy", this::forwardRequests);
+    }
+
+    void setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+    }
+
+    // the reply to the next request of this kind is dropped once, its resends get through
+    void dropFirstReply(UdpMethod method) {
+        dropReplyTo.set(method);
+    }
+
+    // random drops, both ways
+    int dropped() {
+        return dropped.get();
+    }
+
+    // replies dropped because of dropFirstReply
+    int droppedReplies() {
+        return droppedReplies.get();
+    }
+
+    private void forwardRequests() {
+        byte[] buffer = new byte[UdpProtocol.RECEIVE_BUFFER_SIZE];
+        while (true) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                front.receive(packet);
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                if (lose()) {
+                    continue;
+                }
+                UdpMethod armed = dropReplyTo.get();
+                if (armed != null) {
+                    long id = requestOf(data, armed);
+                    if (id != NONE && dropReplyTo.compareAndSet(armed, null)) {
+                        doomedRequest.set(id);
+                    }
+                }
+                link(packet.getSocketAddress()).send(new DatagramPacket(data, data.length, backend));
+            }
+            catch (IOException e) {
+                System.err.println(name + " proxy: " + e.getMessage());
+            }
+        }
+    }
+
+    private DatagramSocket link(SocketAddress caller) {
+        return links.computeIfAbsent(caller, address -> {
+            try {
+                DatagramSocket link = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                daemon(name + "-proxy-link", () -> forwardReplies(link, address));
+                return link;
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private void forwardReplies(DatagramSocket link, SocketAddress caller) {
+        byte[] buffer = new byte[UdpProtocol.RECEIVE_BUFFER_SIZE];
+        while (true) {
+            try {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                link.receive(packet);
+                byte[] data = Arrays.copyOf(packet.getData(), packet.getLength());
+                long doomed = doomedRequest.get();
+                if (doomed != NONE && replyId(data) == doomed && doomedRequest.compareAndSet(doomed, NONE)) {
+                    droppedReplies.incrementAndGet();
+                    continue;
+                }
+                if (lose()) {
+                    continue;
+                }
+                front.send(new DatagramPacket(data, data.length, caller));
+            }
+            catch (IOException e) {
+                System.err.println(name + " proxy: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean lose() {
+        if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate) {
+            dropped.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    // id of a binary or v2 text request of that kind, NONE for anything else
+    private static long requestOf(byte[] data, UdpMethod method) {
+        try {
+            if (BinaryCodec.isBinary(data, data.length)) {
+                ByteBuffer in = ByteBuffer.wrap(data);
+                BinaryCodec.Header header = BinaryCodec.readHeader(in);
+                if (header != null && header.kind == BinaryCodec.KIND_REQUEST && BinaryCodec.readRequest(in).method == method) {
+                    return header.requestId;
+                }
+                return NONE;
+            }
+            String text = new String(data, StandardCharsets.UTF_8);
+            long id = UdpProtocol.requestId(text);
+            if (id >= 0 && !UdpProtocol.isResend(text) && UdpRequest.parseText(UdpProtocol.body(text)).method == method) {
+                return id;
+            }
+        }
+        catch (RuntimeException e) {
+            // not a request we can read, never the one to drop
+        }
+        return NONE;
+    }
+
+    private static long replyId(byte[] data) {
+        try {
+            if (UdpProtocol.isFragment(data, data.length)) {
+                return UdpProtocol.parseFragment(data, data.length).requestId;
+            }
+            if (BinaryCodec.isBinary(data, data.length)) {
+                BinaryCodec.Header header = BinaryCodec.readHeader(ByteBuffer.wrap(data));
+                return header == null ? NONE : header.requestId;
+            }
+            long id = UdpProtocol.requestId(new String(data, StandardCharsets.UTF_8));
+            return id < 0 ? NONE : id;
+        }
+        catch (RuntimeException e) {
+            return NONE;
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
@@ -0,0 +1,110 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.UdpMethod;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// the cities talk through LossyUdpProxy, which drops datagrams both ways:
+// 1. TOK's reply to a sell is dropped once -> the resend must be answered from the dedup table, not sold again
+// 2. cross city purchases and sells with lossRate of every datagram dropped: what NYK reports as done must be done
+//    in TOK, and a purchase NYK gave up on must not stay bought in TOK
+//   java -Dudp.timeoutMs=1000 -Dudp.backoffMs=20 com.web.Client.LossyUdpTest [buyers] [lossRate]
+public class LossyUdpTest {
+
+    private static final String SHARE = "TOKM101025";
+    private static final String SELL_SHARE = "TOKA101025";
+    private static final int UNITS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int buyers = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        double lossRate = args.length > 1 ? Double.parseDouble(args[1]) : 0.2;
+        // short backoff -> all udp.retries (default 3) fit into the deadline; set before the UDP classes read them
+        if (System.getProperty("udp.timeoutMs") == null) {
+            System.setProperty("udp.timeoutMs", "1000");
+        }
+        if (System.getProperty("udp.backoffMs") == null) {
+            System.setProperty("udp.backoffMs", "20");
+        }
+        LocalCities cities = LocalCities.startLossy(0);
+        LossyUdpProxy tokProxy = cities.proxy("TOK");
+        int failures = 0;
+
+        // 1. one lost reply to a sell, nothing else lost
+        String seller = "NYKB9000";
+        cities.tok.addShare(SELL_SHARE, ShareMarketImplementation.BONUS, 10);
+        cities.nyk.purchaseShare(seller, SELL_SHARE, ShareMarketImplementation.BONUS, UNITS);
+        tokProxy.dropFirstReply(UdpMethod.SELL_SHARE);
+        String sold1 = cities.nyk.sellShare(seller, SELL_SHARE, 1);
+        failures += report(sold1.startsWith("Success") && tokProxy.droppedReplies() == 1,
+                "sell answered after its first reply was dropped (" + tokProxy.droppedReplies() + " dropped): " + sold1);
+        failures += report(cities.tok.listShareAvailability(ShareMarketImplementation.BONUS).contains("ShareID=" + SELL_SHARE + ", Type=Bonus, Capacity=10, Purchased=1,"),
+                "resent sell released the unit once, TOK has " + SELL_SHARE + " Purchased=1 of " + UNITS);
+        failures += report(cities.tok.getShares(seller).contains(SELL_SHARE + "\tcount: 1"), seller + " holds 1 of " + SELL_SHARE + " in TOK");
+
+        // 2. every datagram may be lost
+        for (String city : new String[]{"NYK", "LON", "TOK"}) {
+            cities.proxy(city).setLossRate(lossRate);
+        }
+        cities.tok.addShare(SHARE, ShareMarketImplementation.BONUS, UNITS * buyers);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<String>> purchases = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int b = 0; b < buyers; b++) {
+            String buyerID = String.format("NYKB%04d", b);
+            purchases.add(pool.submit(() -> cities.nyk.purchaseShare(buyerID, SHARE, ShareMarketImplementation.BONUS, UNITS)));
+        }
+        int bought = 0;
+        int lost = 0;
+        int sold = 0;
+        List<String> gaveUp = new ArrayList<>();
+        List<Future<String>> sells = new ArrayList<>();
+        for (int b = 0; b < buyers; b++) {
+            String buyerID = String.format("NYKB%04d", b);
+            if (purchases.get(b).get().startsWith("Success")) {
+                bought++;
+                if (!cities.tok.getShares(buyerID).contains(SHARE + "\tcount: " + UNITS)) {
+                    lost++;
+                }
+                sells.add(pool.submit(() -> cities.nyk.sellShare(buyerID, SHARE, UNITS)));
+            }
+            else {
+                // no reply after every retry: TOK may have done it, NYK sells it back there
+                gaveUp.add(buyerID);
+            }
+        }
+        for (Future<String> sell : sells) {
+            if (sell.get().startsWith("Success")) {
+                sold++;
+            }
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+        pool.shutdown();
+        // the sell backs run on their own, give them their retries
+        List<String> stillHeld = new ArrayList<>(gaveUp);
+        long deadline = System.currentTimeMillis() + 20000;
+        while (!stillHeld.isEmpty() && System.currentTimeMillis() < deadline) {
+            stillHeld.removeIf(buyerID -> !cities.tok.getShares(buyerID).contains(SHARE));
+            Thread.sleep(100);
+        }
+
+        failures += report(lost == 0, "purchases reported done but missing in TOK: " + lost);
+        failures += report(stillHeld.isEmpty(), "purchases given up but still bought in TOK: " + stillHeld.size() + " of " + gaveUp.size());
+        System.out.printf("lossRate %s (%d datagrams dropped), timeout %s ms, backoff %s ms: %d of %d purchases and %d of %d sells answered (%d gave up), %d ms%n",
+                lossRate, cities.proxy("NYK").dropped() + cities.proxy("LON").dropped() + tokProxy.dropped(), System.getProperty("udp.timeoutMs"),
+                System.getProperty("udp.backoffMs"), bought, buyers, sold, bought, gaveUp.size(), millis);
+        String left = cities.tok.listShareAvailability(ShareMarketImplementation.BONUS);
+        System.out.println("TOK afterwards: " + left.replace("\n", " | "));
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static int report(boolean ok, String message) {
+        System.out.println((ok ? "ok   " : "FAIL ") + message);
+        return ok ? 0 : 1;
+    }
+}
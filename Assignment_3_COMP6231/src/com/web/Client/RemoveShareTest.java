@@ -0,0 +1,53 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+
+// removeShare of one type must leave the same share id of another type alone
+// runs one city in process, no UDP and no write ahead log:  java com.web.Client.RemoveShareTest
+public class RemoveShareTest {
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("wal.dir", "");
+        ShareMarketImplementation nyk = new ShareMarketImplementation("NYK", "NEWYORK");
+        nyk.recover();
+
+        nyk.addShare("NYKM101025", ShareMarketImplementation.EQUITY, 10);
+        nyk.addShare("NYKM101025", ShareMarketImplementation.BONUS, 10);
+        check("buy equity", nyk.purchaseShare("NYKB0001", "NYKM101025", ShareMarketImplementation.EQUITY, 2), "Success");
+        check("buy bonus", nyk.purchaseShare("NYKB0001", "NYKM101025", ShareMarketImplementation.BONUS, 3), "Success");
+
+        check("remove bonus", nyk.removeShare("NYKM101025", ShareMarketImplementation.BONUS), "Success");
+        String shares = nyk.getShares("NYKB0001");
+        contains("equity kept", shares, "Type [Equity]:\n\tNYKM101025\tcount: 2", true);
+        contains("bonus gone", shares, "Bonus", false);
+
+        // the day counter of Bonus went with the holding -> another Bonus share of that day can be bought
+        nyk.addShare("NYKA101025", ShareMarketImplementation.BONUS, 10);
+        check("bonus same day", nyk.purchaseShare("NYKB0001", "NYKA101025", ShareMarketImplementation.BONUS, 1), "Success");
+
+        // the Equity holder is still indexed -> removing the Equity share takes it
+        check("remove equity", nyk.removeShare("NYKM101025", ShareMarketImplementation.EQUITY), "Success");
+        contains("equity gone", nyk.getShares("NYKB0001"), "NYKM101025", false);
+        contains("other bonus kept", nyk.getShares("NYKB0001"), "NYKA101025\tcount: 1", true);
+
+        System.out.println(failures == 0 ? "ALL OK" : "FAILURES: " + failures);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(String label, String response, String expectedStart) {
+        report(label, response, response.startsWith(expectedStart));
+    }
+
+    private static void contains(String label, String response, String part, boolean expected) {
+        report(label, response, response.contains(part) == expected);
+    }
+
+    private static void report(String label, String response, boolean ok) {
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "ok   " : "FAIL ") + label + " -> " + response.replace("\n", "\\n"));
+    }
+}
@@ -0,0 +1,54 @@
+package com.web.Client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// the 1, 2, 4 .. maxThreads loop of the throughput benchmarks: every thread repeats its step for the given time,
+// the rate of each thread count is printed under the title
+final class ThreadScaling {
+
+    // one round of thread number `thread` (0 .. threads - 1), returns how many operations it did
+    interface Step {
+        int run(int thread) throws Exception;
+    }
+
+    private ThreadScaling() {
+    }
+
+    static void run(String title, int maxThreads, int seconds, Step step) throws Exception {
+        System.out.println(title + ", " + Runtime.getRuntime().availableProcessors() + " cores:");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("  %d threads: %.0f ops/s%n", threads, measure(threads, seconds, step) / (double) seconds);
+        }
+    }
+
+    // same steps, nothing printed -> what is compared later runs JIT compiled
+    static void warmUp(int threads, int seconds, Step step) throws Exception {
+        measure(threads, seconds, step);
+    }
+
+    private static long measure(int threads, int seconds, Step step) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        AtomicLong operations = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            running.add(pool.submit(() -> {
+                while (System.nanoTime() < end) {
+                    operations.addAndGet(step.run(thread));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> f : running) {
+            f.get();
+        }
+        pool.shutdown();
+        return operations.get();
+    }
+}
@@ -0,0 +1,68 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+import com.web.service.udp.UdpClient;
+import com.web.service.udp.UdpRequest;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+// round trip of one small inter-city call (Bonus listing of a city with 3 shares) from this process to TOK:
+//   socket per call -> what sendUDPMessage did: new DatagramSocket + address lookup + 1000 byte buffer, text request
+//   pooled          -> the shared UdpClient: connected channels kept per city, reused buffers, request id matching
+//   java com.web.Client.UdpLatencyBenchmark [calls]
+public class UdpLatencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        LocalCities cities = LocalCities.start();
+        for (String slot : new String[]{"M", "A", "E"}) {
+            cities.tok.addShare("TOK" + slot + "101025", ShareMarketImplementation.BONUS, 10);
+        }
+        UdpRequest request = UdpRequest.listShareAvailability("NYK", ShareMarketImplementation.BONUS);
+        UdpClient client = new UdpClient("BENCH");
+
+        // both warmed up first, then measured
+        for (int round = 0; round < 2; round++) {
+            boolean measure = round == 1;
+            long[] fresh = new long[calls];
+            for (int i = 0; i < calls; i++) {
+                long start = System.nanoTime();
+                socketPerCall(request.toText(), ShareMarketImplementation.TOK_PORT);
+                fresh[i] = System.nanoTime() - start;
+            }
+            long[] pooled = new long[calls];
+            for (int i = 0; i < calls; i++) {
+                long start = System.nanoTime();
+                client.call(ShareMarketImplementation.TOK_PORT, request);
+                pooled[i] = System.nanoTime() - start;
+            }
+            if (measure) {
+                print("socket per call", fresh);
+                print("pooled", pooled);
+            }
+        }
+        client.close();
+        System.exit(0);
+    }
+
+    private static String socketPerCall(String message, int port) throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            byte[] data = message.getBytes();
+            socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("localhost"), port));
+            byte[] buffer = new byte[1000];
+            DatagramPacket reply = new DatagramPacket(buffer, buffer.length);
+            socket.receive(reply);
+            return new String(reply.getData(), 0, reply.getLength());
+        }
+    }
+
+    private static void print(String label, long[] nanos) {
+        Arrays.sort(nanos);
+        System.out.printf("%-16s %d calls: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, %.0f calls/s%n", label, nanos.length,
+                nanos[nanos.length / 2] / 1000.0, nanos[nanos.length * 99 / 100] / 1000.0, nanos[nanos.length * 999 / 1000] / 1000.0,
+                nanos.length * 1e9 / Arrays.stream(nanos).sum());
+    }
+}
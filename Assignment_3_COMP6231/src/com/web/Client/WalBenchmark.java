@@ -0,0 +1,136 @@
+package com.web.Client;
+
+import com.web.service.implimentation.ShareMarketImplementation;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// write ahead log of one city (NYK, no UDP) in wal.dir (default walbench, the NYK files in it are deleted first, empty = only 1.):
+//   1. purchase + sell rate with the log on, for 1 and [threads] threads (wal.fsync = always / interval / never)
+//   2. [purchases] purchases of 10000 buyers, then the same city recovered from the log: time + same state
+//   java -Dwal.fsync=always com.web.Client.WalBenchmark [purchases] [threads] [seconds]
+public class WalBenchmark {
+
+    private static final int BUYERS = 10000;
+    private static final Pattern PURCHASED = Pattern.compile("Purchased=(\\d+)");
+
+    public static void main(String[] args) throws Exception {
+        int purchases = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        if (System.getProperty("wal.dir") == null) {
+            System.setProperty("wal.dir", "walbench");
+        }
+        // no snapshot in the middle -> the recovery replays the whole log
+        System.setProperty("snapshot.intervalMs", "0");
+        File directory = new File(System.getProperty("wal.dir"));
+        File[] old = directory.listFiles((dir, name) -> name.startsWith("NYK"));
+        if (old != null) {
+            for (File file : old) {
+                file.delete();
+            }
+        }
+        String fsync = System.getProperty("wal.fsync", "always");
+
+        ShareMarketImplementation city = new ShareMarketImplementation("NYK", ShareMarketImplementation.MARKET_SERVER_NEWYORK);
+        city.recover();
+        int shares = (purchases + BUYERS - 1) / BUYERS;
+        for (int s = 0; s < Math.max(shares, threads); s++) {
+            city.addShare(shareID(s), ShareMarketImplementation.EQUITY, 1000000);
+        }
+
+        for (int n : threads == 1 ? new int[]{1} : new int[]{1, threads}) {
+            AtomicLong operations = new AtomicLong();
+            long end = System.nanoTime() + seconds * 1000000000L;
+            run(n, t -> {
+                String buyerID = String.format("NYKB9%05d", t);
+                while (System.nanoTime() < end) {
+                    city.purchaseShare(buyerID, shareID(t), ShareMarketImplementation.EQUITY, 1);
+                    city.sellShare(buyerID, shareID(t), 1);
+                    operations.addAndGet(2);
+                }
+            });
+            System.out.printf("%s, %d threads: %.0f ops/s%n", directory.getPath().isEmpty() ? "no log" : "wal.fsync=" + fsync, n, operations.get() / (double) seconds);
+        }
+        if (directory.getPath().isEmpty()) {
+            System.exit(0);
+        }
+
+        // every buyer buys each share once
+        long start = System.nanoTime();
+        run(threads, t -> {
+            for (int i = t; i < purchases; i += threads) {
+                city.purchaseShare(String.format("NYKB%04d", i % BUYERS), shareID(i / BUYERS), ShareMarketImplementation.EQUITY, 1);
+            }
+        });
+        long fillMillis = (System.nanoTime() - start) / 1000000;
+        long walBytes = 0;
+        for (File file : directory.listFiles((dir, name) -> name.startsWith("NYK"))) {
+            walBytes += file.length();
+        }
+        String listing = city.listShareAvailabilityUDP(ShareMarketImplementation.EQUITY);
+        System.out.printf("%d purchases on %d threads in %d ms, log %d MB%n", purchases, threads, fillMillis, walBytes >> 20);
+
+        // a restart: new servant on the same files (the old one is just left alone)
+        start = System.nanoTime();
+        ShareMarketImplementation recovered = new ShareMarketImplementation("NYK", ShareMarketImplementation.MARKET_SERVER_NEWYORK);
+        recovered.recover();
+        long recoverMillis = (System.nanoTime() - start) / 1000000;
+
+        int failures = 0;
+        boolean sameShares = listing.equals(recovered.listShareAvailabilityUDP(ShareMarketImplementation.EQUITY));
+        int differentBuyers = 0;
+        for (int b = 0; b < BUYERS; b += 97) {
+            String buyerID = String.format("NYKB%04d", b);
+            if (!city.getShares(buyerID).equals(recovered.getShares(buyerID))) {
+                differentBuyers++;
+            }
+        }
+        failures += sameShares ? 0 : 1;
+        failures += differentBuyers == 0 ? 0 : 1;
+        System.out.printf("%s recovered %d MB of log (%d units bought) in %d ms, shares %s, sampled buyers different: %d%n",
+                failures == 0 ? "ok  " : "FAIL", walBytes >> 20, purchased(listing), recoverMillis, sameShares ? "same" : "DIFFERENT", differentBuyers);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private static void run(int threads, Worker worker) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> running = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            running.add(pool.submit(() -> {
+                worker.run(thread);
+                return null;
+            }));
+        }
+        for (Future<?> f : running) {
+            f.get();
+        }
+        pool.shutdown();
+    }
+
+    // one share per day from 01/01/20 on
+    private static String shareID(int n) {
+        return String.format("NYKM%02d%02d%02d", n % 28 + 1, n / 28 % 12 + 1, 20 + n / 336);
+    }
+
+    private static long purchased(String listing) {
+        long units = 0;
+        Matcher m = PURCHASED.matcher(listing);
+        while (m.find()) {
+            units += Long.parseLong(m.group(1));
+        }
+        return units;
+    }
+}
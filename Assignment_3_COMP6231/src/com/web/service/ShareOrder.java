@@ -0,0 +1,59 @@
+package com.web.service;
+
+// one item of a batch call: purchaseShares / sellShares use buyerID, shareID, shareType, count
+// addShares uses shareID, shareType and count as the capacity
+// plain bean (no-arg constructor + getters / setters) so JAX-WS can map it
+public class ShareOrder {
+
+    private String buyerID;
+    private String shareID;
+    private String shareType;
+    private int count;
+
+    public ShareOrder() {
+    }
+
+    public ShareOrder(String buyerID, String shareID, String shareType, int count) {
+        this.buyerID   = buyerID;
+        this.shareID   = shareID;
+        this.shareType = shareType;
+        this.count     = count;
+    }
+
+    public String getBuyerID() {
+        return buyerID;
+    }
+
+    public void setBuyerID(String buyerID) {
+        this.buyerID = buyerID;
+    }
+
+    public String getShareID() {
+        return shareID;
+    }
+
+    public void setShareID(String shareID) {
+        this.shareID = shareID;
+    }
+
+    public String getShareType() {
+        return shareType;
+    }
+
+    public void setShareType(String shareType) {
+        this.shareType = shareType;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    @Override
+    public String toString() {
+        return buyerID + ":" + shareType + ":" + shareID + "-" + count;
+    }
+}
@@ -15,6 +15,9 @@ public interface WebInterface {
     
     String listShareAvailability(String shareType);
 
+    // one result per item, same order; count = capacity
+    String[] addShares(ShareOrder[] shares);
+
 
 
     //buyers
@@ -26,6 +29,11 @@ public interface WebInterface {
 
     String swapShare(String buyerID, String newShareID, String newShareType, String oldShareID, String oldShareType);
 
+    // one result per item, same order; items of another city go there in one UDP message per city
+    String[] purchaseShares(ShareOrder[] orders);
+
+    String[] sellShares(ShareOrder[] orders);
+
 }
 
 
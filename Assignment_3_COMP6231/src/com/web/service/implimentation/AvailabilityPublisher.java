@@ -0,0 +1,105 @@
+package com.web.service.implimentation;
+
+import com.web.service.udp.AvailabilityReport;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+// pushes the capacity changes of this city to the other cities (see RemoteAvailability)
+// add/remove/purchase/sell only mark the share dirty, a timer sends every availability.pushIntervalMs
+// -> 100 purchases of the same share in one interval are one entry, read at send time so always the latest value
+class AvailabilityPublisher {
+
+    private static final int MAX_ENTRIES = 256; // per message, keeps a delta well inside one datagram
+
+    private final int[] peerPorts;
+    private final BiFunction<String, ShareId, AvailabilityReport.Entry> describe; // shareType, shareID -> current values
+    private final BiConsumer<Integer, AvailabilityReport> send; // peer port, delta
+    private final Set<DirtyShare> dirty = ConcurrentHashMap.newKeySet();
+    private final AtomicLong seq = new AtomicLong(); // one per message, snapshots take one too
+    private final ScheduledExecutorService timer;
+
+    // the same share id can exist for several types -> the type is part of the key
+    private static final class DirtyShare {
+        final String shareType;
+        final ShareId shareID;
+
+        DirtyShare(String shareType, ShareId shareID) {
+            this.shareType = shareType;
+            this.shareID   = shareID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof DirtyShare) && ((DirtyShare) o).shareID.equals(shareID) && ((DirtyShare) o).shareType.equals(shareType);
+        }
+
+        @Override
+        public int hashCode() {
+            return shareID.hashCode() * 31 + shareType.hashCode();
+        }
+    }
+
+    AvailabilityPublisher(String originCity, int[] peerPorts, BiFunction<String, ShareId, AvailabilityReport.Entry> describe,
+                          BiConsumer<Integer, AvailabilityReport> send, long intervalMillis) {
+        this.peerPorts  = peerPorts;
+        this.describe   = describe;
+        this.send       = send;
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, originCity + "-availability-push");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::flush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void changed(String shareType, ShareId shareID) {
+        dirty.add(new DirtyShare(shareType, shareID));
+    }
+
+    long nextSeq() {
+        return seq.incrementAndGet();
+    }
+
+    private void flush() {
+        try {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            long messageSeq = nextSeq();
+            List<AvailabilityReport.Entry> entries = new ArrayList<>();
+            Iterator<DirtyShare> it = dirty.iterator();
+            while (it.hasNext()) {
+                DirtyShare share = it.next();
+                it.remove(); // removed before reading -> a change made meanwhile marks it dirty again
+                entries.add(describe.apply(share.shareType, share.shareID));
+                if (entries.size() == MAX_ENTRIES) {
+                    publish(new AvailabilityReport(messageSeq, entries));
+                    entries = new ArrayList<>();
+                }
+            }
+            if (!entries.isEmpty()) {
+                publish(new AvailabilityReport(messageSeq, entries));
+            }
+        }
+        catch (RuntimeException e) {
+            // keep the timer alive
+            e.printStackTrace();
+        }
+    }
+
+    private void publish(AvailabilityReport report) {
+        for (int port : peerPorts) {
+            send.accept(port, report);
+        }
+    }
+}
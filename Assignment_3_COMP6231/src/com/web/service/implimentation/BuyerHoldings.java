@@ -0,0 +1,162 @@
+package com.web.service.implimentation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// holdings of one buyer, one counter per share instead of one list entry per unit
+// only touched while the buyer lock is held
+// everything is in one primitive map, key = kind (4 bits) | share type number (28 bits) | 32 bit value:
+//   HOLDING  type + shareID bits -> units held
+//   DAY      type + dateKey      -> units of that type bought that day   (one share type per day rule)
+//   WEEK     weekKey             -> units of all types in that week      (3 cross city per week rule)
+// the DAY / WEEK counters are kept in step with the holdings -> no scan of the history, and dropped at 0;
+// a purchase in another city that is still waiting for its reply is counted in them too (reserve / unreserve)
+class BuyerHoldings {
+
+    private static final long HOLDING = 1;
+    private static final long DAY     = 2;
+    private static final long WEEK    = 3;
+
+    // share type -> its number in the keys, the same for every buyer (in practice the three types)
+    private static final List<String> TYPES = new CopyOnWriteArrayList<>();
+
+    interface Visitor {
+        void visit(String shareType, int shareBits, int units);
+    }
+
+    final String buyerID;
+    final int id; // interned buyer number, never 0 -> usable as a LongIntMap key
+    private final LongIntMap counters;
+    private int holdings; // HOLDING keys in counters
+
+    BuyerHoldings(String buyerID, int id) {
+        this(buyerID, id, new LongIntMap(), 0);
+    }
+
+    private BuyerHoldings(String buyerID, int id, LongIntMap counters, int holdings) {
+        this.buyerID = buyerID;
+        this.id = id;
+        this.counters = counters;
+        this.holdings = holdings;
+    }
+
+    // detached copy (array copies, no walk over the entries) -> the snapshot encodes it after the pause
+    public BuyerHoldings copy() {
+        return new BuyerHoldings(buyerID, id, counters.copy(), holdings);
+    }
+
+    // also the type part of the shareHolders keys of the servant
+    static int typeNumber(String shareType) {
+        int number = TYPES.indexOf(shareType);
+        if (number < 0) {
+            synchronized (TYPES) {
+                number = TYPES.indexOf(shareType);
+                if (number < 0) {
+                    TYPES.add(shareType);
+                    number = TYPES.size() - 1;
+                }
+            }
+        }
+        return number;
+    }
+
+    // every type some buyer has held, in number order
+    static List<String> knownTypes() {
+        return new ArrayList<>(TYPES);
+    }
+
+    private static long key(long kind, int type, int value) {
+        return (kind << 60) | ((long) type << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public void add(String shareType, ShareId shareID, int units) {
+        int type = typeNumber(shareType);
+        long holding = key(HOLDING, type, (int) shareID.bits());
+        boolean had = counters.containsKey(holding);
+        boolean has = counters.add(holding, units) > 0;
+        if (had != has) {
+            holdings += has ? 1 : -1;
+        }
+        counters.add(key(DAY, type, shareID.dateKey()), units);
+        counters.add(key(WEEK, 0, shareID.weekKey()), units);
+    }
+
+    // returns how many units were really removed; the same id can be held under several types -> only this one
+    public int remove(String shareType, ShareId shareID, int units) {
+        int type = TYPES.indexOf(shareType);
+        if (type < 0) {
+            return 0;
+        }
+        long holding = key(HOLDING, type, (int) shareID.bits());
+        int held = counters.get(holding);
+        if (held == 0) {
+            return 0;
+        }
+        int removed = Math.min(held, units);
+        counters.put(holding, held - removed);
+        if (held - removed <= 0) {
+            holdings--;
+        }
+        counters.add(key(DAY, type, shareID.dateKey()), -removed);
+        counters.add(key(WEEK, 0, shareID.weekKey()), -removed);
+        return removed;
+    }
+
+    // counts a purchase sent to another city in the DAY / WEEK rules until its reply is in, without holding anything
+    public void reserve(String shareType, ShareId shareID, int units) {
+        int type = typeNumber(shareType);
+        counters.add(key(DAY, type, shareID.dateKey()), units);
+        counters.add(key(WEEK, 0, shareID.weekKey()), units);
+    }
+
+    public void unreserve(String shareType, ShareId shareID, int units) {
+        int type = typeNumber(shareType);
+        counters.add(key(DAY, type, shareID.dateKey()), -units);
+        counters.add(key(WEEK, 0, shareID.weekKey()), -units);
+    }
+
+    public boolean heldOnDay(String shareType, int dateKey) {
+        int type = TYPES.indexOf(shareType);
+        return type >= 0 && counters.containsKey(key(DAY, type, dateKey));
+    }
+
+    public int unitsInWeek(int weekKey) {
+        return counters.get(key(WEEK, 0, weekKey));
+    }
+
+    public int removeAll(String shareType, ShareId shareID) {
+        int held = quantity(shareType, shareID);
+        if (held == 0) {
+            return 0;
+        }
+        return remove(shareType, shareID, held);
+    }
+
+    public int quantity(String shareType, ShareId shareID) {
+        int type = TYPES.indexOf(shareType);
+        return type < 0 ? 0 : counters.get(key(HOLDING, type, (int) shareID.bits()));
+    }
+
+    public String typeOf(ShareId shareID) {
+        for (int type = 0; type < TYPES.size(); type++) {
+            if (counters.containsKey(key(HOLDING, type, (int) shareID.bits()))) {
+                return TYPES.get(type);
+            }
+        }
+        return null;
+    }
+
+    // number of shares held (not units)
+    public int size() {
+        return holdings;
+    }
+
+    public void forEach(Visitor visitor) {
+        counters.forEach((key, units) -> {
+            if ((key >>> 60) == HOLDING) {
+                visitor.visit(TYPES.get((int) (key >>> 32) & 0x0FFFFFFF), (int) key, units);
+            }
+        });
+    }
+}
@@ -0,0 +1,172 @@
+package com.web.service.implimentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// shareType -> (shareID -> share), one object per share; capacity is claimed with CAS
+// share.claim=synchronized claims it under the share's monitor instead, the baseline HotShareBenchmark compares with
+class HeapShareCatalog implements ShareCatalog {
+
+    private final Map<String, Map<ShareId, HeapShare>> shares = new LinkedHashMap<>(); // fixed set of types, only the inner maps change
+    private final boolean synchronizedClaim;
+
+    HeapShareCatalog(List<String> types) {
+        for (String type : types) {
+            shares.put(type, new ConcurrentHashMap<>());
+        }
+        String claim = System.getProperty("share.claim", "cas").toLowerCase();
+        switch (claim) {
+            case "cas":
+                synchronizedClaim = false;
+                break;
+            case "synchronized":
+                synchronizedClaim = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown share.claim: " + claim);
+        }
+    }
+
+    private static class HeapShare extends ShareData {
+        private final int capacity;
+        private final AtomicInteger usedCapacity = new AtomicInteger(); // units claimed by all buyers -> no scan per purchase
+        private volatile boolean removed;
+
+        HeapShare(ShareId shareID, String shareType, int capacity) {
+            super(shareID, shareType);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public int getShareCapacity() {
+            return capacity;
+        }
+
+        @Override
+        public int getUsedCapacity() {
+            return usedCapacity.get();
+        }
+
+        @Override
+        public int claimCapacity(int count) {
+            while (true) {
+                int used = usedCapacity.get();
+                int free = capacity - used;
+                if (free <= 0 || removed) {
+                    return 0;
+                }
+                int take = Math.min(free, count);
+                if (usedCapacity.compareAndSet(used, used + take)) {
+                    return take;
+                }
+            }
+        }
+
+        @Override
+        public void releaseCapacity(int units) {
+            usedCapacity.accumulateAndGet(units, (used, given) -> Math.max(0, used - given));
+        }
+
+        @Override
+        public void restoreCapacity(int units) {
+            usedCapacity.addAndGet(units);
+        }
+
+        @Override
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    // same counter, every change of it under the monitor
+    private static class SynchronizedHeapShare extends HeapShare {
+
+        SynchronizedHeapShare(ShareId shareID, String shareType, int capacity) {
+            super(shareID, shareType, capacity);
+        }
+
+        @Override
+        public synchronized int claimCapacity(int count) {
+            int free = getShareCapacity() - getUsedCapacity();
+            if (free <= 0 || isRemoved()) {
+                return 0;
+            }
+            int take = Math.min(free, count);
+            super.restoreCapacity(take);
+            return take;
+        }
+
+        @Override
+        public synchronized void releaseCapacity(int units) {
+            super.releaseCapacity(units);
+        }
+
+        @Override
+        public synchronized void restoreCapacity(int units) {
+            super.restoreCapacity(units);
+        }
+    }
+
+    @Override
+    public boolean isType(String shareType) {
+        return shareType != null && shares.containsKey(shareType);
+    }
+
+    @Override
+    public List<String> types() {
+        return new ArrayList<>(shares.keySet());
+    }
+
+    @Override
+    public ShareData get(String shareType, ShareId shareID) {
+        Map<ShareId, HeapShare> ofType = shareType == null ? null : shares.get(shareType);
+        return ofType == null ? null : ofType.get(shareID);
+    }
+
+    @Override
+    public ShareData add(String shareType, ShareId shareID, int capacity) {
+        HeapShare share = synchronizedClaim ? new SynchronizedHeapShare(shareID, shareType, capacity) : new HeapShare(shareID, shareType, capacity);
+        return shares.get(shareType).putIfAbsent(shareID, share) == null ? share : null;
+    }
+
+    @Override
+    public ShareData remove(String shareType, ShareId shareID) {
+        Map<ShareId, HeapShare> ofType = shareType == null ? null : shares.get(shareType);
+        HeapShare removed = ofType == null ? null : ofType.remove(shareID);
+        if (removed != null) {
+            removed.removed = true;
+        }
+        return removed;
+    }
+
+    @Override
+    public List<ShareData> ofType(String shareType) {
+        Map<ShareId, HeapShare> ofType = shareType == null ? null : shares.get(shareType);
+        return ofType == null ? Collections.<ShareData>emptyList() : new ArrayList<ShareData>(ofType.values());
+    }
+
+    @Override
+    public void forEach(String shareType, Visitor visitor) {
+        Map<ShareId, HeapShare> ofType = shareType == null ? null : shares.get(shareType);
+        if (ofType == null) {
+            return;
+        }
+        for (HeapShare share : ofType.values()) {
+            visitor.visit((int) share.shareID.bits(), share.capacity, share.usedCapacity.get());
+        }
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Map<ShareId, HeapShare> ofType : shares.values()) {
+            size += ofType.size();
+        }
+        return size;
+    }
+}
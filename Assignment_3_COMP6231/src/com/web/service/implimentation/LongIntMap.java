@@ -0,0 +1,140 @@
+package com.web.service.implimentation;
+
+// long -> int map without boxing: open addressing with linear probing in two parallel arrays,
+// delete shifts the following entries back (no tombstones), grows at 3/4 full
+// key 0 marks a free slot -> 0 can't be a key; get() of a missing key is 0, so counts never store 0 either
+// not thread safe, the owner's lock covers it
+final class LongIntMap {
+
+    interface Visitor {
+        void visit(long key, int value);
+    }
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    LongIntMap() {
+        this(4);
+    }
+
+    LongIntMap(int expected) {
+        int capacity = 4;
+        while (capacity * 3 < expected * 4) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) ^ (int) h;
+    }
+
+    private int slotOf(long key) {
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            if (keys[slot] == key || keys[slot] == 0) {
+                return slot;
+            }
+        }
+    }
+
+    public int get(long key) {
+        return values[slotOf(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return keys[slotOf(key)] != 0;
+    }
+
+    // value <= 0 removes the key
+    public void put(long key, int value) {
+        if (value <= 0) {
+            remove(key);
+            return;
+        }
+        int slot = slotOf(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            if (++size * 4 > keys.length * 3) {
+                values[slot] = value;
+                grow();
+                return;
+            }
+        }
+        values[slot] = value;
+    }
+
+    // returns the new value, the key is dropped once it is 0 or less
+    public int add(long key, int delta) {
+        int value = get(key) + delta;
+        put(key, value);
+        return value;
+    }
+
+    // returns the old value, 0 if there was none
+    public int remove(long key) {
+        int gap = slotOf(key);
+        if (keys[gap] == 0) {
+            return 0;
+        }
+        int old = values[gap];
+        // every entry after the gap whose home slot is not between the gap and itself moves into the gap
+        for (int slot = (gap + 1) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(keys[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - gap) & mask)) {
+                keys[gap] = keys[slot];
+                values[gap] = values[slot];
+                gap = slot;
+            }
+        }
+        keys[gap] = 0;
+        values[gap] = 0;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != 0) {
+                visitor.visit(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    // two array copies, for a snapshot taken while changes are paused
+    public LongIntMap copy() {
+        LongIntMap copy = new LongIntMap();
+        copy.keys = keys.clone();
+        copy.values = values.clone();
+        copy.mask = mask;
+        copy.size = size;
+        return copy;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new int[oldValues.length << 1];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,460 @@
+package com.web.service.implimentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// shares as fixed width records in a memory mapped file -> no object per share for the GC to walk,
+// and the file (page cache) is still there when the process restarts
+// header (64 bytes): int MAGIC | int RECORD_SIZE | int slots | int live | int occupied | int next generation | int types hash
+// record (24 bytes): byte state | byte type index | short 0 | int shareID bits | int capacity | int used | int generation | int 0
+// the records are the index: open addressing on type + shareID with linear probing; a removed record stays as a
+// tombstone until an add reuses it or the table is rebuilt (into <file>.tmp, renamed over) once it is half occupied
+// every add gets a new generation -> a ShareData handed out before can tell its own record from a later share in that slot
+// add / remove / rebuild hold the write lock, everything else the read lock + one of 64 monitors for capacity and used
+// (both read together, ShareData.counts); forEach reads the records in place instead of a MappedShare per share
+class MappedShareCatalog implements ShareCatalog {
+
+    private static final int MAGIC       = 0x43415431; // "CAT1"
+    private static final int HEADER      = 64;
+    private static final int RECORD_SIZE = 24;
+    private static final int MAX_SLOTS   = 1 << 26;    // 1.5 GB of records, a mapping is at most 2 GB
+
+    private static final int H_SLOTS      = 8;
+    private static final int H_LIVE       = 12;
+    private static final int H_OCCUPIED   = 16; // live + tombstones
+    private static final int H_GENERATION = 20;
+    private static final int H_TYPES      = 24;
+
+    private static final int R_STATE      = 0;
+    private static final int R_TYPE       = 1;
+    private static final int R_BITS       = 4;
+    private static final int R_CAPACITY   = 8;
+    private static final int R_USED       = 12;
+    private static final int R_GENERATION = 16;
+
+    private static final byte EMPTY   = 0;
+    private static final byte LIVE    = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int MONITORS = 64;
+
+    private final File file;
+    private final List<String> types; // record type byte = index in here
+    private final ReentrantReadWriteLock structure = new ReentrantReadWriteLock();
+    private final Object[] monitors = new Object[MONITORS];
+    private MappedByteBuffer records; // replaced by rebuild, under the write lock
+    private int mask;
+
+    private MappedShareCatalog(File file, List<String> types, MappedByteBuffer records) {
+        this.file = file;
+        this.types = new ArrayList<>(types);
+        this.records = records;
+        this.mask = records.getInt(H_SLOTS) - 1;
+        for (int i = 0; i < MONITORS; i++) {
+            monitors[i] = new Object();
+        }
+    }
+
+    // catalog.initialSlots (default 1024) for a new file
+    static MappedShareCatalog open(File file, List<String> types, boolean keep) throws IOException {
+        if (!keep || !file.exists()) {
+            int slots = slotsFor(Integer.getInteger("catalog.initialSlots", 1024));
+            return new MappedShareCatalog(file, types, create(file, slots, types.hashCode(), 1));
+        }
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        int slots = mapped.capacity() < HEADER ? 0 : mapped.getInt(H_SLOTS);
+        if (mapped.capacity() < HEADER || mapped.getInt(0) != MAGIC || mapped.getInt(4) != RECORD_SIZE || slots != slotsFor(slots)
+                || mapped.capacity() != HEADER + (long) slots * RECORD_SIZE) {
+            throw new IOException("not a share catalog " + file);
+        }
+        if (mapped.getInt(H_TYPES) != types.hashCode()) {
+            throw new IOException("share catalog " + file + " was written for other share types");
+        }
+        MappedShareCatalog catalog = new MappedShareCatalog(file, types, mapped);
+        catalog.recount();
+        return catalog;
+    }
+
+    private static MappedByteBuffer create(File file, int slots, int typesHash, int generation) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0); // every record EMPTY
+            raf.setLength(HEADER + (long) slots * RECORD_SIZE);
+            MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            mapped.putInt(0, MAGIC).putInt(4, RECORD_SIZE).putInt(H_SLOTS, slots).putInt(H_GENERATION, generation).putInt(H_TYPES, typesHash);
+            return mapped;
+        }
+    }
+
+    private static int slotsFor(int wanted) {
+        int slots = 16;
+        while (slots < wanted && slots < MAX_SLOTS) {
+            slots <<= 1;
+        }
+        return slots;
+    }
+
+    // the counters of a file kept from the last run: the process may have stopped between a record and its header update
+    private void recount() {
+        int live = 0;
+        int occupied = 0;
+        int generation = records.getInt(H_GENERATION);
+        for (int slot = 0; slot <= mask; slot++) {
+            int at = offset(slot);
+            byte state = records.get(at + R_STATE);
+            if (state != EMPTY) {
+                occupied++;
+                generation = Math.max(generation, records.getInt(at + R_GENERATION) + 1);
+            }
+            if (state == LIVE) {
+                live++;
+            }
+        }
+        records.putInt(H_LIVE, live).putInt(H_OCCUPIED, occupied).putInt(H_GENERATION, generation);
+    }
+
+    private static int offset(int slot) {
+        return HEADER + slot * RECORD_SIZE;
+    }
+
+    private static int hash(int type, int bits) {
+        int h = ((bits << 2) | type) * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // slot of the live record of type + share, -1 if there is none; caller holds a lock of structure
+    private int find(int type, int bits) {
+        for (int slot = hash(type, bits) & mask; ; slot = (slot + 1) & mask) {
+            int at = offset(slot);
+            byte state = records.get(at + R_STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && records.get(at + R_TYPE) == type && records.getInt(at + R_BITS) == bits) {
+                return slot;
+            }
+        }
+    }
+
+    private class MappedShare extends ShareData {
+        private final int type;
+        private final int generation;
+        private int slot; // moves when the table is rebuilt, found again by key (a stale value is only a slower lookup)
+
+        MappedShare(ShareId shareID, String shareType, int type, int generation, int slot) {
+            super(shareID, shareType);
+            this.type = type;
+            this.generation = generation;
+            this.slot = slot;
+        }
+
+        // slot of this very share, -1 once it is removed; caller holds the read lock
+        private int locate() {
+            int at = offset(slot);
+            if (records.get(at + R_STATE) == LIVE && records.getInt(at + R_GENERATION) == generation) {
+                return slot;
+            }
+            int found = find(type, (int) shareID.bits());
+            if (found < 0 || records.getInt(offset(found) + R_GENERATION) != generation) {
+                return -1;
+            }
+            slot = found;
+            return found;
+        }
+
+        // capacity and used in one round: read lock + the record's monitor once, 0 / 0 once removed
+        @Override
+        public long counts() {
+            structure.readLock().lock();
+            try {
+                int s = locate();
+                if (s < 0) {
+                    return 0;
+                }
+                return readCounts(s);
+            }
+            finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        // used += delta, clamped to [0, capacity] when claiming; returns what really changed
+        private int addUsed(int delta, boolean claim) {
+            structure.readLock().lock();
+            try {
+                int s = locate();
+                if (s < 0) {
+                    return 0;
+                }
+                int at = offset(s);
+                synchronized (monitors[s & (MONITORS - 1)]) {
+                    int used = records.getInt(at + R_USED);
+                    int change = delta;
+                    if (claim) {
+                        change = Math.min(records.getInt(at + R_CAPACITY) - used, delta);
+                        if (change <= 0) {
+                            return 0;
+                        }
+                    }
+                    else if (used + change < 0) {
+                        change = -used;
+                    }
+                    records.putInt(at + R_USED, used + change);
+                    return change;
+                }
+            }
+            finally {
+                structure.readLock().unlock();
+            }
+        }
+
+        @Override
+        public int getShareCapacity() {
+            return capacityOf(counts());
+        }
+
+        @Override
+        public int getUsedCapacity() {
+            return usedOf(counts());
+        }
+
+        @Override
+        public int claimCapacity(int count) {
+            return addUsed(count, true);
+        }
+
+        @Override
+        public void releaseCapacity(int units) {
+            addUsed(-units, false);
+        }
+
+        @Override
+        public void restoreCapacity(int units) {
+            addUsed(units, false);
+        }
+
+        @Override
+        public boolean isRemoved() {
+            structure.readLock().lock();
+            try {
+                return locate() < 0;
+            }
+            finally {
+                structure.readLock().unlock();
+            }
+        }
+    }
+
+    // caller holds a lock of structure
+    private long readCounts(int slot) {
+        int at = offset(slot);
+        synchronized (monitors[slot & (MONITORS - 1)]) {
+            return ShareData.pack(records.getInt(at + R_CAPACITY), records.getInt(at + R_USED));
+        }
+    }
+
+    @Override
+    public boolean isType(String shareType) {
+        return shareType != null && types.contains(shareType);
+    }
+
+    @Override
+    public List<String> types() {
+        return new ArrayList<>(types);
+    }
+
+    @Override
+    public ShareData get(String shareType, ShareId shareID) {
+        int type = shareType == null ? -1 : types.indexOf(shareType);
+        if (type < 0) {
+            return null;
+        }
+        structure.readLock().lock();
+        try {
+            int slot = find(type, (int) shareID.bits());
+            if (slot < 0) {
+                return null;
+            }
+            return new MappedShare(shareID, shareType, type, records.getInt(offset(slot) + R_GENERATION), slot);
+        }
+        finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ShareData add(String shareType, ShareId shareID, int capacity) {
+        int type = types.indexOf(shareType);
+        int bits = (int) shareID.bits();
+        structure.writeLock().lock();
+        try {
+            if ((records.getInt(H_OCCUPIED) + 1) * 2 > mask + 1) {
+                rebuild();
+            }
+            int tombstone = -1;
+            int slot = hash(type, bits) & mask;
+            while (true) {
+                int at = offset(slot);
+                byte state = records.get(at + R_STATE);
+                if (state == EMPTY) {
+                    break;
+                }
+                if (state == REMOVED && tombstone < 0) {
+                    tombstone = slot;
+                }
+                else if (state == LIVE && records.get(at + R_TYPE) == type && records.getInt(at + R_BITS) == bits) {
+                    return null;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (tombstone >= 0) {
+                slot = tombstone;
+            }
+            else {
+                records.putInt(H_OCCUPIED, records.getInt(H_OCCUPIED) + 1);
+            }
+            int generation = records.getInt(H_GENERATION);
+            records.putInt(H_GENERATION, generation + 1);
+            int at = offset(slot);
+            records.put(at + R_TYPE, (byte) type).putInt(at + R_BITS, bits).putInt(at + R_CAPACITY, capacity)
+                    .putInt(at + R_USED, 0).putInt(at + R_GENERATION, generation);
+            records.put(at + R_STATE, LIVE); // last -> a record is never live with half its fields
+            records.putInt(H_LIVE, records.getInt(H_LIVE) + 1);
+            return new MappedShare(shareID, shareType, type, generation, slot);
+        }
+        finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public ShareData remove(String shareType, ShareId shareID) {
+        int type = shareType == null ? -1 : types.indexOf(shareType);
+        if (type < 0) {
+            return null;
+        }
+        structure.writeLock().lock();
+        try {
+            int slot = find(type, (int) shareID.bits());
+            if (slot < 0) {
+                return null;
+            }
+            int at = offset(slot);
+            ShareData removed = new MappedShare(shareID, shareType, type, records.getInt(at + R_GENERATION), slot);
+            records.put(at + R_STATE, REMOVED);
+            records.putInt(H_LIVE, records.getInt(H_LIVE) - 1);
+            return removed;
+        }
+        finally {
+            structure.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ShareData> ofType(String shareType) {
+        int type = shareType == null ? -1 : types.indexOf(shareType);
+        if (type < 0) {
+            return Collections.emptyList();
+        }
+        List<ShareData> shares = new ArrayList<>();
+        structure.readLock().lock();
+        try {
+            for (int slot = 0; slot <= mask; slot++) {
+                int at = offset(slot);
+                if (records.get(at + R_STATE) == LIVE && records.get(at + R_TYPE) == type) {
+                    ShareId shareID = ShareId.fromBits(records.getInt(at + R_BITS) & 0xFFFFFFFFL);
+                    shares.add(new MappedShare(shareID, shareType, type, records.getInt(at + R_GENERATION), slot));
+                }
+            }
+        }
+        finally {
+            structure.readLock().unlock();
+        }
+        return shares;
+    }
+
+    // straight over the records, one monitor per share for its counts
+    @Override
+    public void forEach(String shareType, Visitor visitor) {
+        int type = shareType == null ? -1 : types.indexOf(shareType);
+        if (type < 0) {
+            return;
+        }
+        structure.readLock().lock();
+        try {
+            for (int slot = 0; slot <= mask; slot++) {
+                int at = offset(slot);
+                if (records.get(at + R_STATE) == LIVE && records.get(at + R_TYPE) == type) {
+                    long counts = readCounts(slot);
+                    visitor.visit(records.getInt(at + R_BITS), ShareData.capacityOf(counts), ShareData.usedOf(counts));
+                }
+            }
+        }
+        finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        structure.readLock().lock();
+        try {
+            return records.getInt(H_LIVE);
+        }
+        finally {
+            structure.readLock().unlock();
+        }
+    }
+
+    // caller holds the write lock: live records into a new file (twice the slots if more than a quarter are live,
+    // else the same size without the tombstones), forced, then renamed over the old one
+    private void rebuild() {
+        int live = records.getInt(H_LIVE);
+        int slots = mask + 1;
+        if ((live + 1) * 4 > slots) {
+            slots <<= 1;
+        }
+        if (slots > MAX_SLOTS) {
+            throw new IllegalStateException("share catalog " + file + " is full");
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            MappedByteBuffer grown = create(temp, slots, records.getInt(H_TYPES), records.getInt(H_GENERATION));
+            int grownMask = slots - 1;
+            for (int slot = 0; slot <= mask; slot++) {
+                int from = offset(slot);
+                if (records.get(from + R_STATE) != LIVE) {
+                    continue;
+                }
+                int type = records.get(from + R_TYPE);
+                int bits = records.getInt(from + R_BITS);
+                int to = hash(type, bits) & grownMask;
+                while (grown.get(offset(to) + R_STATE) != EMPTY) {
+                    to = (to + 1) & grownMask;
+                }
+                for (int i = 0; i < RECORD_SIZE; i++) {
+                    grown.put(offset(to) + i, records.get(from + i));
+                }
+            }
+            grown.putInt(H_LIVE, live).putInt(H_OCCUPIED, live);
+            grown.force();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            records = grown;
+            mask = grownMask;
+        }
+        catch (IOException e) {
+            throw new IllegalStateException("cannot grow share catalog " + file + ": " + e.getMessage(), e);
+        }
+    }
+}
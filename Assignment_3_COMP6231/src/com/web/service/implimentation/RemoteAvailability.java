@@ -0,0 +1,123 @@
+package com.web.service.implimentation;
+
+import com.web.service.udp.AvailabilityReport;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// read cache of what the other cities have: shareType -> shareID -> (capacity, remaining)
+// kept up to date by the deltas the cities push (AvailabilityPublisher) and by a full snapshot
+// when the last snapshot of a city is older than the staleness bound
+class RemoteAvailability {
+
+    private final Map<String, CityView> cities = new ConcurrentHashMap<>();
+
+    private static class Entry {
+        final int capacity;
+        final int remaining;
+        final long seq; // of the report it came in, an older report never overwrites a newer one
+
+        Entry(int capacity, int remaining, long seq) {
+            this.capacity  = capacity;
+            this.remaining = remaining;
+            this.seq       = seq;
+        }
+    }
+
+    private static class CityView {
+        final Map<String, Map<ShareId, Entry>> shares = new ConcurrentHashMap<>(); // the same id can exist for several types
+        volatile long syncedAtNanos; // last full snapshot, 0 = never
+    }
+
+    void applyDelta(String city, AvailabilityReport report) {
+        apply(view(city), report);
+    }
+
+    // a snapshot is the whole city: what is not in it is gone, unless a newer delta already told us otherwise
+    // false if there is no snapshot (e.g. an error reply)
+    boolean applySnapshot(String city, AvailabilityReport report) {
+        if (report == null) {
+            return false;
+        }
+        CityView view = view(city);
+        Map<String, Set<ShareId>> seen = apply(view, report);
+        for (Map.Entry<String, Map<ShareId, Entry>> type : view.shares.entrySet()) {
+            Set<ShareId> seenOfType = seen.getOrDefault(type.getKey(), Collections.<ShareId>emptySet());
+            type.getValue().entrySet().removeIf(e -> !seenOfType.contains(e.getKey()) && e.getValue().seq < report.seq);
+        }
+        view.syncedAtNanos = System.nanoTime();
+        return true;
+    }
+
+    boolean isFresh(String city, long maxStalenessNanos) {
+        CityView view = cities.get(city);
+        return view != null && view.syncedAtNanos != 0 && System.nanoTime() - view.syncedAtNanos <= maxStalenessNanos;
+    }
+
+    // same text as listShareAvailabilityUDP of that city
+    String list(String city, String serverName, String shareType) {
+        StringBuilder sb = header(serverName, shareType);
+        boolean any = false;
+        Map<ShareId, Entry> ofType = view(city).shares.getOrDefault(shareType, Collections.<ShareId, Entry>emptyMap());
+        for (Map.Entry<ShareId, Entry> e : ofType.entrySet()) {
+            Entry share = e.getValue();
+            if (share.capacity == AvailabilityReport.REMOVED) {
+                continue;
+            }
+            any = true;
+            appendShare(sb, e.getKey(), shareType, share.capacity, share.remaining);
+        }
+        return footer(sb, any, shareType);
+    }
+
+    // a binary listing reply -> the same text the city would have sent with the text protocol
+    static String render(String serverName, String shareType, AvailabilityReport report) {
+        StringBuilder sb = header(serverName, shareType);
+        boolean any = false;
+        for (AvailabilityReport.Entry e : report.entries) {
+            if (!e.isRemoved() && e.shareType.equals(shareType)) {
+                any = true;
+                appendShare(sb, e.shareID, shareType, e.capacity, e.remaining);
+            }
+        }
+        return footer(sb, any, shareType);
+    }
+
+    private static StringBuilder header(String serverName, String shareType) {
+        return new StringBuilder().append(serverName).append(" [").append(shareType).append("]:\n");
+    }
+
+    private static void appendShare(StringBuilder sb, ShareId shareID, String shareType, int capacity, int remaining) {
+        sb.append("[ShareID=").append(shareID).append(", Type=").append(shareType)
+          .append(", Capacity=").append(capacity).append(", Purchased=").append(capacity - remaining)
+          .append(", Remaining=").append(remaining).append("] \n ");
+    }
+
+    private static String footer(StringBuilder sb, boolean any, String shareType) {
+        if (!any) {
+            sb.append("No shares of type ").append(shareType);
+        }
+        sb.append("\n");
+        return sb.toString();
+    }
+
+    private CityView view(String city) {
+        return cities.computeIfAbsent(city, c -> new CityView());
+    }
+
+    private static Map<String, Set<ShareId>> apply(CityView view, AvailabilityReport report) {
+        Map<String, Set<ShareId>> seen = new HashMap<>();
+        for (AvailabilityReport.Entry e : report.entries) {
+            seen.computeIfAbsent(e.shareType, t -> new HashSet<>()).add(e.shareID);
+            Entry incoming = new Entry(e.capacity, e.remaining, report.seq);
+            // removed shares stay as a tombstone, so a late older delta can't bring them back
+            view.shares.computeIfAbsent(e.shareType, t -> new ConcurrentHashMap<>())
+                       .merge(e.shareID, incoming, (old, now) -> old.seq > now.seq ? old : now);
+        }
+        return seen;
+    }
+}
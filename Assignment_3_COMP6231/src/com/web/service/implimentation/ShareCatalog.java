@@ -0,0 +1,55 @@
+package com.web.service.implimentation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+// where the shares of a city live: shareType + shareID -> capacity and units bought
+// share.catalog: heap (default) one object per share in per type maps
+//                mapped fixed width records in <catalog.dir>/<ID>-catalog.dat (default dir data), see MappedShareCatalog
+interface ShareCatalog {
+
+    interface Visitor {
+        // shareBits = ShareId.bits(); capacity and used are read as one pair
+        void visit(int shareBits, int capacity, int used);
+    }
+
+    boolean isType(String shareType);
+
+    List<String> types();
+
+    // null if there is no such share
+    ShareData get(String shareType, ShareId shareID);
+
+    // null if the share already exists
+    ShareData add(String shareType, ShareId shareID, int capacity);
+
+    // the removed share (isRemoved() from now on), null if there was none
+    ShareData remove(String shareType, ShareId shareID);
+
+    // empty for an unknown type
+    List<ShareData> ofType(String shareType);
+
+    // every share of the type without a ShareData (or ShareId) per share, nothing for an unknown type
+    // the visitor may run under the catalog's lock -> it must not add or remove shares
+    void forEach(String shareType, Visitor visitor);
+
+    int size();
+
+    // keep = false: start empty (the write ahead log rebuilds it), true: what the mapped file has from the last run
+    static ShareCatalog open(String serverID, List<String> types, boolean keep) throws IOException {
+        String kind = System.getProperty("share.catalog", "heap").toLowerCase();
+        switch (kind) {
+            case "heap":
+                return new HeapShareCatalog(types);
+            case "mapped":
+                File directory = new File(System.getProperty("catalog.dir", "data"));
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("cannot create catalog directory " + directory.getAbsolutePath());
+                }
+                return MappedShareCatalog.open(new File(directory, serverID + "-catalog.dat"), types, keep);
+            default:
+                throw new IllegalArgumentException("Unknown share.catalog: " + kind);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.web.service.implimentation;
+
+// one share of this city as the servant sees it, whatever ShareCatalog keeps it
+// who bought how much is in the buyer holdings, a share only knows its capacity and the units claimed from it
+// purchases claim without the share lock -> claim / release are atomic on their own
+abstract class ShareData {
+
+    final ShareId shareID;
+    final String shareType;
+
+    ShareData(ShareId shareID, String shareType) {
+        this.shareID   = shareID;
+        this.shareType = shareType;
+    }
+
+    public abstract int getShareCapacity();
+
+    public abstract int getUsedCapacity();
+
+    // capacity << 32 | used, read as one pair (see capacityOf / usedOf) -> the two can't come from different moments
+    public long counts() {
+        return pack(getShareCapacity(), getUsedCapacity());
+    }
+
+    static long pack(int capacity, int used) {
+        return ((long) capacity << 32) | (used & 0xFFFFFFFFL);
+    }
+
+    static int capacityOf(long counts) {
+        return (int) (counts >>> 32);
+    }
+
+    static int usedOf(long counts) {
+        return (int) counts;
+    }
+
+    public int getShareRemainCapacity() {
+        long counts = counts();
+        return capacityOf(counts) - usedOf(counts);
+    }
+
+    // up to count units, never more than what is left -> never oversold
+    // returns the number of units claimed, 0 if the share is full or was removed
+    public abstract int claimCapacity(int count);
+
+    // units given back by a sell / rollback, used never goes below 0
+    public abstract void releaseCapacity(int units);
+
+    // replay of a logged purchase: the units were already checked when it was made
+    public abstract void restoreCapacity(int units);
+
+    // set by removeShare, a purchase that raced with it gives its units back
+    public abstract boolean isRemoved();
+
+    @Override
+    public String toString() {
+        long counts = counts();
+        StringBuilder sb = new StringBuilder(96);
+        describe(sb, (int) shareID.bits(), shareType, capacityOf(counts), usedOf(counts));
+        return sb.toString();
+    }
+
+    // the listing form, appended in place -> a listing through ShareCatalog.forEach makes no object per share
+    static void describe(StringBuilder sb, int shareBits, String shareType, int capacity, int used) {
+        sb.append("[ShareID=");
+        ShareId.appendText(sb, shareBits & 0xFFFFFFFFL);
+        sb.append(", Type=").append(shareType).append(", Capacity=").append(capacity).append(", Purchased=").append(used)
+                .append(", Remaining=").append(capacity - used).append(']');
+    }
+}
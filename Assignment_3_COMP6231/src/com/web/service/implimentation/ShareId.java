@@ -0,0 +1,169 @@
+package com.web.service.implimentation;
+
+// a share id like NYKM101025 = city (NYK/LON/TOK) + slot (M/A/E) + dd mm yy
+// parsed once when a request comes in, then everything inside the servant uses this instead of substring/parseInt
+// the fields are packed into one long -> cheap equals/hashCode when used as a map key
+public final class ShareId {
+
+    public static final int CITY_NYK = 0;
+    public static final int CITY_LON = 1;
+    public static final int CITY_TOK = 2;
+
+    private static final String[] CITY_CODES = {"NYK", "LON", "TOK"};
+    private static final String SLOTS = "MAE";
+
+    // bit layout (low -> high): day 5 | month 4 | yy 7 | slot 2 | city 2
+    private static final int MONTH_SHIFT = 5;
+    private static final int YEAR_SHIFT  = 9;
+    private static final int SLOT_SHIFT  = 16;
+    private static final int CITY_SHIFT  = 18;
+
+    private final long bits;
+    private String text; // built on the first toString, most ids made from bits (catalog, codec, snapshot) are never printed
+
+    private ShareId(long bits) {
+        this.bits = bits;
+    }
+
+    // null if the id is not city + slot + 6 digits
+    public static ShareId tryParse(String raw) {
+        if (raw == null || raw.length() != 10) {
+            return null;
+        }
+        int city = cityIndex(raw.substring(0, 3).toUpperCase());
+        int slot = SLOTS.indexOf(Character.toUpperCase(raw.charAt(3)));
+        int day   = twoDigitValue(raw, 4);
+        int month = twoDigitValue(raw, 6);
+        int yy    = twoDigitValue(raw, 8);
+        if (city < 0 || slot < 0 || day < 1 || day > 31 || month < 1 || month > 12 || yy < 0) {
+            return null;
+        }
+        return new ShareId(pack(city, slot, day, month, yy));
+    }
+
+    public static ShareId parse(String raw) {
+        ShareId id = tryParse(raw);
+        if (id == null) {
+            throw new IllegalArgumentException("Invalid share ID: " + raw);
+        }
+        return id;
+    }
+
+    public static ShareId fromBits(long bits) {
+        return new ShareId(bits);
+    }
+
+    // null if the bits are not a share id (e.g. read from a damaged datagram)
+    public static ShareId tryFromBits(long bits) {
+        if ((bits >>> (CITY_SHIFT + 2)) != 0) {
+            return null;
+        }
+        int city  = (int) (bits >>> CITY_SHIFT) & 0x3;
+        int slot  = (int) (bits >>> SLOT_SHIFT) & 0x3;
+        int day   = (int) bits & 0x1F;
+        int month = (int) (bits >>> MONTH_SHIFT) & 0xF;
+        int yy    = (int) (bits >>> YEAR_SHIFT) & 0x7F;
+        if (city >= CITY_CODES.length || slot >= SLOTS.length() || day < 1 || month < 1 || month > 12 || yy > 99) {
+            return null;
+        }
+        return new ShareId(bits);
+    }
+
+    public long bits() {
+        return bits;
+    }
+
+    public int city() {
+        return (int) (bits >>> CITY_SHIFT) & 0x3;
+    }
+
+    public String cityCode() {
+        return CITY_CODES[city()];
+    }
+
+    public char slot() {
+        return SLOTS.charAt((int) (bits >>> SLOT_SHIFT) & 0x3);
+    }
+
+    public int day() {
+        return (int) bits & 0x1F;
+    }
+
+    public int month() {
+        return (int) (bits >>> MONTH_SHIFT) & 0xF;
+    }
+
+    public int year() {
+        return 2000 + ((int) (bits >>> YEAR_SHIFT) & 0x7F);
+    }
+
+    // same value <=> same dd mm yy (used for the one share type per day rule)
+    public int dateKey() {
+        return (int) bits & 0xFFFF;
+    }
+
+    // same value <=> same week bucket of the same month (used for the 3 cross city per week rule)
+    public int weekKey() {
+        return (((int) (bits >>> MONTH_SHIFT) & 0x7FF) << 3) | ((day() - 1) / 7);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return (o instanceof ShareId) && ((ShareId) o).bits == bits;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(bits);
+    }
+
+    @Override
+    public String toString() {
+        // a race only builds the same immutable String twice, like String.hashCode
+        String s = text;
+        if (s == null) {
+            StringBuilder sb = new StringBuilder(10);
+            appendText(sb, bits);
+            s = sb.toString();
+            text = s;
+        }
+        return s;
+    }
+
+    // the text form of these bits straight into sb, no ShareId or String on the way (listings of many shares)
+    static void appendText(StringBuilder sb, long bits) {
+        sb.append(CITY_CODES[(int) (bits >>> CITY_SHIFT) & 0x3]).append(SLOTS.charAt((int) (bits >>> SLOT_SHIFT) & 0x3));
+        appendTwoDigits(sb, (int) bits & 0x1F);
+        appendTwoDigits(sb, (int) (bits >>> MONTH_SHIFT) & 0xF);
+        appendTwoDigits(sb, (int) (bits >>> YEAR_SHIFT) & 0x7F);
+    }
+
+    private static long pack(int city, int slot, int day, int month, int yy) {
+        return ((long) city << CITY_SHIFT) | ((long) slot << SLOT_SHIFT) | ((long) yy << YEAR_SHIFT) | ((long) month << MONTH_SHIFT) | day;
+    }
+
+    private static int cityIndex(String code) {
+        for (int i = 0; i < CITY_CODES.length; i++) {
+            if (CITY_CODES[i].equals(code)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int twoDigitValue(String raw, int from) {
+        char tens = raw.charAt(from);
+        char ones = raw.charAt(from + 1);
+        if (tens < '0' || tens > '9' || ones < '0' || ones > '9') {
+            return -1;
+        }
+        return (tens - '0') * 10 + (ones - '0');
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10) {
+            sb.append('0');
+        }
+        sb.append(value);
+    }
+}
@@ -0,0 +1,501 @@
+package com.web.service.implimentation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// write ahead log of one city: every change of the share catalog / buyerShares is appended here before it is acknowledged
+// record:  int length | int crc32 of payload | payload = op | string buyer | string type | int32 share bits | int units
+//          string = u16 length + UTF-8, every field is written for every op ("" when it has none)
+// append() only queues the record (called under the lock that orders the change in memory -> same order in the log),
+// commit() makes everything queued so far durable: the first caller writes the whole group, the others wait for it
+// wal.fsync: always (default, force on every group) | interval (force every wal.fsyncIntervalMs, default 100) | never
+// files in wal.dir:  <ID>-<n>.wal  log segment n      <ID>-<n>.snap  whole state right before segment n
+// restart = newest snapshot (memory mapped) + the segments from its number on; a snapshot deletes everything older
+class ShareJournal {
+
+    static final byte ADD_SHARE    = 1; // type, share, capacity
+    static final byte REMOVE_SHARE = 2; // type, share
+    static final byte PURCHASE     = 3; // buyer, type, share, units   local share: capacity claimed + buyer holding
+    static final byte SELL         = 4; // buyer, type, share, units   local share: holding removed + capacity given back
+    static final byte HOLD         = 5; // buyer, type, share, units   holding of a share of another city
+    static final byte UNHOLD       = 6; // buyer, share, units
+
+    private static final int MAX_RECORD = 1 << 16;
+
+    // what a replay does with each record, same fields as the append methods
+    interface Replay {
+        void addShare(String shareType, ShareId shareID, int capacity);
+
+        void removeShare(String shareType, ShareId shareID);
+
+        void purchase(String buyerID, String shareType, ShareId shareID, int units);
+
+        void sell(String buyerID, String shareType, ShareId shareID, int units);
+
+        void hold(String buyerID, String shareType, ShareId shareID, int units);
+
+        void unhold(String buyerID, ShareId shareID, int units);
+
+        // the state written by a snapshot, before any record of the segments after it
+        void loadSnapshot(ByteBuffer state) throws IOException;
+    }
+
+    private enum Fsync { ALWAYS, INTERVAL, NEVER }
+
+    private final File directory;
+    private final String serverID;
+    private final Fsync fsync;
+    private volatile FileChannel channel; // current segment, replaced by rotate()
+    private long segment;
+    private long appendedAtRotate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition groupWritten = lock.newCondition();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(); // framed records not written yet
+    private long appended;  // records queued so far
+    private long committed; // records written (and forced with ALWAYS)
+    private boolean writing; // a commit is writing a group right now
+    private volatile boolean unforced; // INTERVAL: written since the last force
+
+    private ShareJournal(File directory, String serverID, Fsync fsync) {
+        this.directory = directory;
+        this.serverID = serverID;
+        this.fsync = fsync;
+    }
+
+    // journal that keeps nothing (wal.dir empty, or a servant that was never recovered)
+    static ShareJournal disabled() {
+        return new ShareJournal(null, null, Fsync.NEVER);
+    }
+
+    // wal.dir defaults to data, empty = no log
+    static boolean isConfigured() {
+        return !System.getProperty("wal.dir", "data").isEmpty();
+    }
+
+    // what is in wal.dir is replayed, new records go after them
+    static ShareJournal open(String serverID, Replay replay) throws IOException {
+        if (!isConfigured()) {
+            return disabled();
+        }
+        File directory = new File(System.getProperty("wal.dir", "data"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create WAL directory " + directory.getAbsolutePath());
+        }
+        Fsync fsync = Fsync.valueOf(System.getProperty("wal.fsync", "always").toUpperCase());
+        ShareJournal journal = new ShareJournal(directory, serverID, fsync);
+        journal.recover(replay);
+        if (fsync == Fsync.INTERVAL) {
+            journal.startForcing(Long.getLong("wal.fsyncIntervalMs", 100), serverID);
+        }
+        return journal;
+    }
+
+    boolean isEnabled() {
+        return channel != null;
+    }
+
+    File file() {
+        return segmentFile(segment, ".wal");
+    }
+
+    private File segmentFile(long n, String suffix) {
+        return new File(directory, String.format("%s-%06d%s", serverID, n, suffix));
+    }
+
+    // numbers of the <ID>-<n><suffix> files, ascending
+    private List<Long> numbered(String suffix) {
+        List<Long> numbers = new ArrayList<>();
+        String[] names = directory.list();
+        String prefix = serverID + "-";
+        for (String name : names == null ? new String[0] : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    numbers.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                }
+                catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    // newest snapshot, then every segment from it on; the last segment stays open for the new records
+    private void recover(Replay replay) throws IOException {
+        File single = new File(directory, serverID + ".wal"); // one file log of the first version = segment 0
+        if (single.exists() && !segmentFile(0, ".wal").exists()) {
+            Files.move(single.toPath(), segmentFile(0, ".wal").toPath());
+        }
+        List<Long> snapshots = numbered(".snap");
+        long first = snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size() - 1);
+        if (!snapshots.isEmpty()) {
+            loadSnapshot(segmentFile(first, ".snap"), replay);
+        }
+        List<Long> segments = new ArrayList<>();
+        for (long n : numbered(".wal")) {
+            if (n >= first) {
+                segments.add(n);
+            }
+        }
+        if (segments.isEmpty()) {
+            segments.add(first);
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i == segments.size() - 1;
+            File file = segmentFile(segments.get(i), ".wal");
+            FileChannel segmentChannel = last
+                    ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                    : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (last) {
+                replay(segmentChannel, file, true, replay);
+                channel = segmentChannel;
+                segment = segments.get(i);
+            }
+            else {
+                try {
+                    replay(segmentChannel, file, false, replay);
+                }
+                finally {
+                    segmentChannel.close();
+                }
+            }
+        }
+    }
+
+    private void loadSnapshot(File file, Replay replay) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size < 4 || size > Integer.MAX_VALUE) {
+                throw new IOException("bad snapshot " + file);
+            }
+            MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int checksum = mapped.getInt((int) size - 4);
+            ByteBuffer state = mapped.duplicate();
+            state.limit((int) size - 4);
+            CRC32 crc = new CRC32();
+            crc.update(state.duplicate());
+            // the older segments are gone -> a broken snapshot can't be worked around, better stop than start empty
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("corrupt snapshot " + file);
+            }
+            replay.loadSnapshot(state);
+        }
+    }
+
+    // records appended since the last rotate (or the start)
+    boolean hasChanges() {
+        lock.lock();
+        try {
+            return appended > appendedAtRotate;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // called while every change is paused (ShareLocks.pauseAll): what is queued goes to the current segment,
+    // every later record to the new one -> the state right now + segments from the returned number on = everything
+    long rotate() throws IOException {
+        lock.lock();
+        try {
+            while (writing) {
+                groupWritten.awaitUninterruptibly();
+            }
+            ByteArrayOutputStream group = pending;
+            pending = new ByteArrayOutputStream();
+            FileChannel old = channel;
+            write(old, group);
+            old.force(false);
+            committed = appended;
+            appendedAtRotate = appended;
+            groupWritten.signalAll();
+            segment++;
+            channel = FileChannel.open(segmentFile(segment, ".wal").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            old.close();
+            return segment;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // state + crc32 -> <ID>-<n>.snap (written aside, forced, renamed), then the older segments and snapshots are deleted
+    void saveSnapshot(long n, byte[] state) throws IOException {
+        File done = segmentFile(n, ".snap");
+        File temp = new File(directory, done.getName() + ".tmp");
+        CRC32 crc = new CRC32();
+        crc.update(state, 0, state.length);
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(state);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(4).putInt(0, (int) crc.getValue());
+            while (trailer.hasRemaining()) {
+                out.write(trailer);
+            }
+            out.force(true);
+        }
+        Files.move(temp.toPath(), done.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (long old : numbered(".wal")) {
+            if (old < n) {
+                Files.deleteIfExists(segmentFile(old, ".wal").toPath());
+            }
+        }
+        for (long old : numbered(".snap")) {
+            if (old < n) {
+                Files.deleteIfExists(segmentFile(old, ".snap").toPath());
+            }
+        }
+    }
+
+    void addShare(String shareType, ShareId shareID, int capacity) {
+        append(record(ADD_SHARE, null, shareType, shareID, capacity));
+    }
+
+    void removeShare(String shareType, ShareId shareID) {
+        append(record(REMOVE_SHARE, null, shareType, shareID, 0));
+    }
+
+    void purchase(String buyerID, String shareType, ShareId shareID, int units) {
+        append(record(PURCHASE, buyerID, shareType, shareID, units));
+    }
+
+    void sell(String buyerID, String shareType, ShareId shareID, int units) {
+        append(record(SELL, buyerID, shareType, shareID, units));
+    }
+
+    void hold(String buyerID, String shareType, ShareId shareID, int units) {
+        append(record(HOLD, buyerID, shareType, shareID, units));
+    }
+
+    void unhold(String buyerID, ShareId shareID, int units) {
+        append(record(UNHOLD, buyerID, null, shareID, units));
+    }
+
+    // the whole framed record, built before the lock is taken
+    private byte[] record(byte op, String buyerID, String shareType, ShareId shareID, int units) {
+        if (channel == null) {
+            return null;
+        }
+        byte[] buyer = (buyerID == null ? "" : buyerID).getBytes(StandardCharsets.UTF_8);
+        byte[] type = (shareType == null ? "" : shareType).getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + buyer.length + 2 + type.length + 4 + 4;
+        ByteBuffer out = ByteBuffer.allocate(8 + length);
+        out.position(8);
+        out.put(op);
+        out.putShort((short) buyer.length).put(buyer);
+        out.putShort((short) type.length).put(type);
+        out.putInt((int) shareID.bits());
+        out.putInt(units);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), 8, length);
+        out.putInt(0, length).putInt(4, (int) crc.getValue());
+        return out.array();
+    }
+
+    private void append(byte[] record) {
+        if (record == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            pending.write(record, 0, record.length);
+            appended++;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // returns once every record appended before the call is written (and forced, with ALWAYS)
+    // an IO error is reported but the change stays in memory -> the city keeps running, the log is short of it
+    void commit() {
+        if (channel == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            long target = appended;
+            while (committed < target) {
+                if (writing) {
+                    groupWritten.awaitUninterruptibly();
+                    continue;
+                }
+                // we lead this group: take everything queued, write it without holding the lock
+                writing = true;
+                ByteArrayOutputStream group = pending;
+                pending = new ByteArrayOutputStream(Math.max(256, group.size()));
+                long upTo = appended;
+                lock.unlock();
+                try {
+                    write(channel, group); // rotate waits for us -> still the segment the group belongs to
+                    if (fsync == Fsync.ALWAYS) {
+                        channel.force(false);
+                    }
+                    else {
+                        unforced = true;
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("WAL write failed on " + file() + ": " + e.getMessage());
+                    e.printStackTrace(System.out);
+                }
+                finally {
+                    lock.lock();
+                    writing = false;
+                    committed = upTo;
+                    groupWritten.signalAll();
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private static void write(FileChannel to, ByteArrayOutputStream group) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(group.toByteArray());
+        while (buffer.hasRemaining()) {
+            to.write(buffer);
+        }
+    }
+
+    private void startForcing(long intervalMillis, String serverID) {
+        Thread forcer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    if (unforced) {
+                        unforced = false;
+                        channel.force(false);
+                    }
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (ClosedChannelException e) {
+                    // rotated meanwhile, the old segment was forced by rotate
+                }
+                catch (IOException e) {
+                    System.err.println("WAL force failed on " + file() + ": " + e.getMessage());
+                }
+            }
+        }, serverID + "-wal-fsync");
+        forcer.setDaemon(true);
+        forcer.start();
+    }
+
+    // reads every whole record from the start, 1 MB at a time
+    // a torn or corrupt tail (crash in the middle of a write) is cut off the current segment, an older one is only reported
+    private void replay(FileChannel channel, File file, boolean current, Replay replay) throws IOException {
+        long good = 0;
+        long records = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+        buffer.limit(0);
+        channel.position(0);
+        CRC32 crc = new CRC32();
+        while (fill(channel, buffer, 8)) {
+            int start = buffer.position();
+            int length = buffer.getInt(start);
+            int checksum = buffer.getInt(start + 4);
+            if (length <= 0 || length > MAX_RECORD || !fill(channel, buffer, 8 + length)) {
+                break;
+            }
+            start = buffer.position(); // fill may have moved it
+            crc.reset();
+            crc.update(buffer.array(), start + 8, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            buffer.position(start + 8);
+            try {
+                apply(buffer, replay);
+            }
+            catch (RuntimeException e) {
+                break; // fields don't fit the length -> treat like a corrupt record
+            }
+            buffer.position(start + 8 + length);
+            good += 8 + length;
+            records++;
+        }
+        if (good < channel.size()) {
+            System.out.println(file + ": dropping " + (channel.size() - good) + " bytes of incomplete log after " + records + " records");
+            if (current) {
+                channel.truncate(good);
+            }
+        }
+        channel.position(good);
+    }
+
+    // at least n unread bytes in the buffer, false at the end of the file
+    private static boolean fill(FileChannel channel, ByteBuffer buffer, int n) throws IOException {
+        while (buffer.remaining() < n) {
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void apply(ByteBuffer in, Replay replay) {
+        byte op = in.get();
+        String buyerID = readString(in);
+        String shareType = readString(in);
+        ShareId shareID = ShareId.tryFromBits(in.getInt() & 0xFFFFFFFFL);
+        int units = in.getInt();
+        if (shareID == null) {
+            return;
+        }
+        switch (op) {
+            case ADD_SHARE:
+                replay.addShare(shareType, shareID, units);
+                break;
+            case REMOVE_SHARE:
+                replay.removeShare(shareType, shareID);
+                break;
+            case PURCHASE:
+                replay.purchase(buyerID, shareType, shareID, units);
+                break;
+            case SELL:
+                replay.sell(buyerID, shareType, shareID, units);
+                break;
+            case HOLD:
+                replay.hold(buyerID, shareType, shareID, units);
+                break;
+            case UNHOLD:
+                replay.unhold(buyerID, shareID, units);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        String s = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+}
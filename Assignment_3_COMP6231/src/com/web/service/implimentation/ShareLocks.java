@@ -0,0 +1,64 @@
+package com.web.service.implimentation;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// striped locks for the servant, keyed by shareID and buyerID instead of one monitor for the whole city
+// share capacity itself is claimed inside ShareData (CAS, or a monitor of the mapped catalog), so a request never needs more than one stripe
+// every stripe is taken under the read side of one barrier -> pauseAll waits for the changes that are running
+// and holds off new ones (snapshot); a thread never holds two stripes, so this can't deadlock
+class ShareLocks {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+    private final ReentrantReadWriteLock barrier = new ReentrantReadWriteLock();
+
+    ShareLocks() {
+        this(Integer.getInteger("share.lockStripes", DEFAULT_STRIPES));
+    }
+
+    ShareLocks(int stripeCount) {
+        int size = 1;
+        while (size < stripeCount) {
+            size <<= 1;
+        }
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public void lockShare(ShareId shareID) {
+        barrier.readLock().lock();
+        stripes[indexOf(shareID.hashCode())].lock();
+    }
+
+    public void unlockShare(ShareId shareID) {
+        stripes[indexOf(shareID.hashCode())].unlock();
+        barrier.readLock().unlock();
+    }
+
+    public void lockBuyer(String buyerID) {
+        barrier.readLock().lock();
+        stripes[indexOf(buyerID.hashCode())].lock();
+    }
+
+    public void unlockBuyer(String buyerID) {
+        stripes[indexOf(buyerID.hashCode())].unlock();
+        barrier.readLock().unlock();
+    }
+
+    public void pauseAll() {
+        barrier.writeLock().lock();
+    }
+
+    public void resumeAll() {
+        barrier.writeLock().unlock();
+    }
+
+    private int indexOf(int hash) {
+        int h = hash ^ (hash >>> 16);
+        return h & (stripes.length - 1);
+    }
+}
@@ -1,13 +1,31 @@
 package com.web.service.implimentation;
 
+import com.web.service.ShareOrder;
 import com.web.service.WebInterface;
+import com.web.service.udp.AvailabilityReport;
+import com.web.service.udp.UdpClient;
+import com.web.service.udp.UdpReply;
+import com.web.service.udp.UdpRequest;
 import javax.jws.WebService;
 import javax.jws.soap.SOAPBinding;
 import Logger.Logger;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 
 
 @WebService(endpointInterface = "com.web.service.WebInterface")
@@ -25,162 +43,451 @@ public class ShareMarketImplementation implements WebInterface{
     public static final String MARKET_SERVER_NEWYORK = "NEWYORK";
     public static final String MARKET_SERVER_LONDON  = "LONDON";
     public static final String MARKET_SERVER_TOKYO   = "TOKYO";
+    private static final String[] CITY_IDS = {"NYK", "LON", "TOK"};
     private  String serverID;    // like TOK
     private  String serverName;
-    private Map<String, Map<String, ShareData>> allShares; //shareType -> (shareID -> ShareData)
-    private Map<String, Map<String, List<String>>> buyerShares; // which buyer bought which share  buyerID -> (shareType -> list of shareIDs)
+    private static final List<String> SHARE_TYPES = Arrays.asList(BONUS, EQUITY, DIVIDEND);
+    private ShareCatalog catalog; // shareType + shareID -> ShareData, on the heap or in a mapped file (share.catalog)
+    private Map<String, BuyerHoldings> buyerShares; // which buyer bought which share  buyerID -> (shareType + shareID -> units)
+    private Map<ShareId, LongIntMap> shareHolders;  // reverse of buyerShares  shareID -> (type number << 32 | buyer id) -> 1
+    // interned buyer id -> holdings, id 0 unused; read without a lock, grown and filled under buyerIdLock
+    private volatile AtomicReferenceArray<BuyerHoldings> buyersById = new AtomicReferenceArray<>(64);
+    private int buyerCount; // guarded by buyerIdLock
+    private final Object buyerIdLock = new Object();
+    private final ShareLocks locks = new ShareLocks(); // per share / per buyer locks instead of synchronized methods
+    private final UdpClient udpClient; // one shared channel per other city, replies matched by request id
+    private final RemoteAvailability remoteAvailability = new RemoteAvailability(); // what the other cities have, for the admin listing
+    private AvailabilityPublisher availabilityPublisher; // tells the other cities what we have
+    private ShareJournal journal = ShareJournal.disabled(); // write ahead log, opened by recover()
+    private SwapReservations swaps; // swaps prepared here for the city coordinating them (swapPrepare / swapCommit / swapAbort)
+    private final AtomicLong swapSeq = new AtomicLong(); // swap ids of this city: serverID-time-seq
     
-    private static class ShareData {
-        private final String shareID;
-        private final String shareType;
-        private int capacity;
-        private final Map<String, Integer> buyerCounts; // buyer id : number of shares it buyes
+    public ShareMarketImplementation(){
+        udpClient = new UdpClient("UNKNOWN");
+    }
 
-        public static final int SHARE_FULL         = -1;
-        public static final int ALREADY_REGISTERED = 0;
-        public static final int ADD_SUCCESS        = 1;
 
-        public ShareData(String shareID, String shareType, int capacity) {
-            this.shareID    = shareID;
-            this.shareType  = shareType;
-            this.capacity   = capacity;
-            this.buyerCounts  = new HashMap<>();
-        }
+    public ShareMarketImplementation(String serverID, String serverName) {
+        super();
+        this.serverID   = serverID;
+        this.serverName = serverName;
+        udpClient = new UdpClient(serverID);
+        catalog = new HeapShareCatalog(SHARE_TYPES);
+        buyerShares   = new ConcurrentHashMap<>();
+        shareHolders  = new ConcurrentHashMap<>();
+        int[] peerPorts = Arrays.stream(CITY_IDS).filter(city -> !city.equals(serverID)).mapToInt(this::getServerPort).toArray();
+        availabilityPublisher = new AvailabilityPublisher(serverID, peerPorts, this::availabilityEntry,
+                (port, delta) -> udpClient.callAsync(port, UdpRequest.availabilityDelta(serverID, delta)), Long.getLong("availability.pushIntervalMs", 50));
+        // swap.leaseMs: how long a prepared swap waits for its commit, well above the udp.timeoutMs of the two phases
+        swaps = new SwapReservations(serverID, Long.getLong("swap.leaseMs", 30000), this::expireSwap);
+    }
 
-        public int getShareCapacity() {
-            return capacity;
+    // rebuilds shares and holdings from the last snapshot + write ahead log, then keeps logging to it; call before publishing
+    // snapshot.intervalMs (default 60000, 0 = never): how often the state is snapshotted if it changed -> bounds the replay
+    // share.catalog=mapped: with the log the catalog file is rebuilt like the heap one; without it the shares of the
+    // last run are kept from the file, their units are given back (the buyers holding them were not kept)
+    public void recover() throws IOException {
+        long start = System.nanoTime();
+        catalog = ShareCatalog.open(serverID, SHARE_TYPES, !ShareJournal.isConfigured());
+        journal = ShareJournal.open(serverID, new JournalReplay());
+        if (!journal.isEnabled()) {
+            if (catalog.size() > 0) {
+                for (String type : catalog.types()) {
+                    for (ShareData share : catalog.ofType(type)) {
+                        share.releaseCapacity(share.getUsedCapacity());
+                    }
+                }
+                Logger.serverLog(serverID, "kept " + catalog.size() + " shares from the share catalog");
+            }
+            return;
+        }
+        Logger.serverLog(serverID, "recovered " + catalog.size() + " shares and " + buyerShares.size() + " buyers up to " + journal.file()
+                + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        long interval = Long.getLong("snapshot.intervalMs", 60000);
+        if (interval > 0) {
+            Thread snapshotter = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(interval);
+                        if (journal.hasChanges()) {
+                            snapshot();
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    catch (IOException e) {
+                        System.err.println(serverID + ": snapshot failed: " + e.getMessage());
+                        e.printStackTrace(System.out);
+                    }
+                }
+            }, serverID + "-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
         }
+    }
 
-        public void setShareCapacity(int capacity) {
-            this.capacity = capacity;
+    // every change runs under a ShareLocks stripe -> with all of them paused nothing is half done;
+    // the log is switched to a new segment in the same pause, so the snapshot + that segment on = the whole state
+    // the pause only copies the state (array copies per buyer, 4 ints per share), the encoding and the file come after it
+    public void snapshot() throws IOException {
+        long start = System.nanoTime();
+        long segment;
+        StateCopy copy;
+        locks.pauseAll();
+        try {
+            segment = journal.rotate();
+            copy = copyState();
+        }
+        finally {
+            locks.resumeAll();
         }
+        long paused = System.nanoTime() - start;
+        byte[] state = copy.encode();
+        journal.saveSnapshot(segment, state);
+        Logger.serverLog(serverID, "snapshot " + segment + ": " + state.length + " bytes, changes paused " + TimeUnit.NANOSECONDS.toMillis(paused)
+                + " ms, total " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
 
-        public int getUsedCapacity() {
-            int sum = 0;
-            for (int units : buyerCounts.values()) {
-                sum += units;
+    // snapshot layout (big endian, string = u16 length + UTF-8):
+    //   int SNAPSHOT_MAGIC | int typeCount | types
+    //   int buyerCount | per buyer: string buyerID | int n | n x (byte type | int shareID bits | int units)
+    //   int shareCount | per share: byte type | int shareID bits | int capacity | int used
+    // SNP1 (first version) had the buyers of each share instead of used: int n | n x (int buyer index | int units)
+    private static final int SNAPSHOT_MAGIC = 0x534E5032; // "SNP2"
+    private static final int SNAPSHOT_MAGIC_V1 = 0x534E5031; // "SNP1", still read
+
+    // caller has paused every change
+    private StateCopy copyState() {
+        List<String> types = catalog.types();
+        for (String type : BuyerHoldings.knownTypes()) {
+            if (!types.contains(type)) {
+                types.add(type);
             }
-            return sum;
         }
-
-
-        public int getShareRemainCapacity() {
-            return capacity - getUsedCapacity();
+        StateCopy copy = new StateCopy(types, buyerShares.size(), catalog.size());
+        for (BuyerHoldings holdings : buyerShares.values()) {
+            copy.addBuyer(holdings.copy());
         }
+        // units claimed by swaps that are still open are not in the log either -> left out here too
+        Map<String, Integer> reserved = swaps.reservedUnits();
+        for (String shareType : catalog.types()) {
+            int type = types.indexOf(shareType);
+            catalog.forEach(shareType, (shareBits, capacity, used) -> copy.addShare(type, shareBits, capacity,
+                    reserved.isEmpty() ? used : used - reserved.getOrDefault(shareType + "/" + (shareBits & 0xFFFFFFFFL), 0)));
+        }
+        return copy;
+    }
 
-
-        public int addBuyerPurchase(String buyerID, int count) {
-            if (buyerCounts.containsKey(buyerID)) {
-                return ALREADY_REGISTERED;
+    // what a snapshot writes, detached from the live maps -> encoded while purchases go on
+    private static class StateCopy {
+        private final List<String> types;
+        private final List<BuyerHoldings> buyers;
+        private byte[] shareTypes;
+        private int[] shareBits;
+        private int[] capacities;
+        private int[] used;
+        private int shareCount;
+
+        StateCopy(List<String> types, int buyerCount, int shareCount) {
+            this.types = types;
+            buyers = new ArrayList<>(buyerCount);
+            shareTypes = new byte[Math.max(shareCount, 16)];
+            shareBits  = new int[shareTypes.length];
+            capacities = new int[shareTypes.length];
+            used       = new int[shareTypes.length];
+        }
+
+        void addBuyer(BuyerHoldings holdings) {
+            buyers.add(holdings);
+        }
+
+        void addShare(int type, int bits, int capacity, int usedUnits) {
+            if (shareCount == shareTypes.length) {
+                int size = shareCount * 2;
+                shareTypes = Arrays.copyOf(shareTypes, size);
+                shareBits  = Arrays.copyOf(shareBits, size);
+                capacities = Arrays.copyOf(capacities, size);
+                used       = Arrays.copyOf(used, size);
+            }
+            shareTypes[shareCount] = (byte) type;
+            shareBits[shareCount]  = bits;
+            capacities[shareCount] = capacity;
+            used[shareCount]       = usedUnits;
+            shareCount++;
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(bytes, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(types.size());
+                for (String type : types) {
+                    writeSnapshotString(out, type);
+                }
+                out.writeInt(buyers.size());
+                for (BuyerHoldings holdings : buyers) {
+                    writeSnapshotString(out, holdings.buyerID);
+                    out.writeInt(holdings.size());
+                    holdings.forEach((type, shareBits, units) -> {
+                        try {
+                            out.writeByte(types.indexOf(type));
+                            out.writeInt(shareBits);
+                            out.writeInt(units);
+                        }
+                        catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+                }
+                out.writeInt(shareCount);
+                for (int i = 0; i < shareCount; i++) {
+                    out.writeByte(shareTypes[i]);
+                    out.writeInt(shareBits[i]);
+                    out.writeInt(capacities[i]);
+                    out.writeInt(used[i]);
+                }
             }
-            if (getUsedCapacity() + count > capacity) {
-                return SHARE_FULL;
+            catch (IOException e) {
+                throw new IllegalStateException(e); // in memory, can't happen
             }
-            buyerCounts.put(buyerID, count);
-            return ADD_SUCCESS;
+            return bytes.toByteArray();
         }
+    }
 
-        public int removeBuyerPurchase(String buyerID, int count) {
-            if (!buyerCounts.containsKey(buyerID)) {
-                return 0;
-            }
-            int privious = buyerCounts.get(buyerID);
-            int removed = Math.min(privious, count);
-            int remaining = privious - removed;
-            if (remaining > 0) {
-                buyerCounts.put(buyerID, remaining);
+    private static void writeSnapshotString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readSnapshotString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getShort() & 0xFFFF];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    // replay runs before the city is published -> nothing else touches the maps, no availability push
+    private class JournalReplay implements ShareJournal.Replay {
+        @Override
+        public void loadSnapshot(ByteBuffer in) throws IOException {
+            try {
+                int magic = in.getInt();
+                if (magic != SNAPSHOT_MAGIC && magic != SNAPSHOT_MAGIC_V1) {
+                    throw new IOException("not a snapshot");
+                }
+                String[] types = new String[in.getInt()];
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = readSnapshotString(in);
+                }
+                // buyers are read twice: names first (SNP1 shares point at them), holdings after the shares exist
+                String[] buyers = new String[in.getInt()];
+                int holdingsStart = in.position();
+                for (int b = 0; b < buyers.length; b++) {
+                    buyers[b] = readSnapshotString(in);
+                    int held = in.getInt();
+                    in.position(in.position() + held * 9);
+                }
+                for (int s = in.getInt(); s > 0; s--) {
+                    String type = types[in.get()];
+                    ShareId shareID = ShareId.fromBits(in.getInt() & 0xFFFFFFFFL);
+                    int capacity = in.getInt();
+                    int used = 0;
+                    if (magic == SNAPSHOT_MAGIC_V1) {
+                        for (int n = in.getInt(); n > 0; n--) {
+                            int buyer = in.getInt();
+                            int units = in.getInt();
+                            if (buyer >= 0) {
+                                used += units;
+                            }
+                        }
+                    }
+                    else {
+                        used = in.getInt();
+                    }
+                    ShareData share = catalog.isType(type) ? catalog.add(type, shareID, capacity) : null;
+                    if (share != null) {
+                        share.restoreCapacity(used);
+                    }
+                }
+                in.position(holdingsStart);
+                for (String buyerID : buyers) {
+                    in.position(in.position() + 2 + (in.getShort(in.position()) & 0xFFFF));
+                    for (int n = in.getInt(); n > 0; n--) {
+                        String type = types[in.get()];
+                        ShareId shareID = ShareId.fromBits(in.getInt() & 0xFFFFFFFFL);
+                        int units = in.getInt();
+                        // snapshot taken while removeShare was still cleaning the buyers -> it would have taken this one too
+                        if (detectShareServer(shareID).equals(serverName) && catalog.get(type, shareID) == null) {
+                            continue;
+                        }
+                        addBuyerRecord(buyerID, type, shareID, units);
+                    }
+                }
             }
-            else {
-                buyerCounts.remove(buyerID);
+            catch (RuntimeException e) {
+                throw new IOException("broken snapshot: " + e, e);
             }
-            return removed;
         }
 
-        public boolean isFull() {
-            return (getUsedCapacity() >= capacity);
+        @Override
+        public void addShare(String shareType, ShareId shareID, int capacity) {
+            if (isShareType(shareType)) {
+                catalog.add(shareType, shareID, capacity);
+            }
         }
 
         @Override
-        public String toString() {
-            return "[ShareID=" + shareID + ", Type=" + shareType + ", Capacity=" + capacity + ", Purchased=" +  getUsedCapacity() + ", Remaining=" + getShareRemainCapacity() + "]";
+        public void removeShare(String shareType, ShareId shareID) {
+            if (catalog.remove(shareType, shareID) != null) {
+                removeShareFromBuyers(shareType, shareID);
+            }
         }
-    }
 
-    public ShareMarketImplementation(){
+        @Override
+        public void purchase(String buyerID, String shareType, ShareId shareID, int units) {
+            ShareData share = catalog.get(shareType, shareID);
+            // removed after the purchase was logged -> the removal took the holding back too
+            if (share != null) {
+                share.restoreCapacity(units);
+                addBuyerRecord(buyerID, shareType, shareID, units);
+            }
+        }
 
-    }
+        @Override
+        public void sell(String buyerID, String shareType, ShareId shareID, int units) {
+            int removed = removeSharesFromBuyer(buyerID, shareType, shareID, units);
+            ShareData share = catalog.get(shareType, shareID);
+            if (share != null) {
+                share.releaseCapacity(removed);
+            }
+        }
 
+        @Override
+        public void hold(String buyerID, String shareType, ShareId shareID, int units) {
+            addBuyerRecord(buyerID, shareType, shareID, units);
+        }
 
-    public ShareMarketImplementation(String serverID, String serverName) {
-        super();
-        this.serverID   = serverID;
-        this.serverName = serverName;
-        allShares = new ConcurrentHashMap<>();
-        allShares.put(BONUS, new ConcurrentHashMap<>());
-        allShares.put(EQUITY, new ConcurrentHashMap<>());
-        allShares.put(DIVIDEND, new ConcurrentHashMap<>());
-        buyerShares   = new ConcurrentHashMap<>();
+        @Override
+        public void unhold(String buyerID, ShareId shareID, int units) {
+            removeSharesFromBuyer(buyerID, findShareTypeForBuyer(buyerID, shareID), shareID, units);
+        }
     }
 
 
     @Override
-    public synchronized String addShare(String shareID, String shareType, int capacity) {
+    public String addShare(String shareID, String shareType, int capacity) {
         try {
             Logger.serverLog(serverID, "Admin", "  addShare", "shareID=" + shareID + ", shareType=" + shareType + ", capacity=" + capacity, "request received");
         }
         catch (IOException e) {
             e.printStackTrace();
         }
+        String response = addLocalShare(shareID, shareType, capacity);
+        journal.commit();
+        logResponse("Admin", "addShare", shareID, shareType, response);
+        return response;
+    }
+
+    // no logging here -> addShare logs one share, addShares the whole batch
+    private String addLocalShare(String shareID, String shareType, int capacity) {
+        ShareId id = ShareId.tryParse(shareID);
+        if (id == null) {
+            return invalidShareID(shareID);
+        }
         // is share in your server? if not can't ...
-        if (!detectShareServer(shareID).equals(serverName)) {
-            String response = "Failed: Cannot add share " + shareID + " from a different server. please contact the server admin";
-            logResponse("Admin", "addShare", shareID, shareType, response);
-            return response;
+        if (!detectShareServer(id).equals(serverName)) {
+            return "Failed: Cannot add share " + shareID + " from a different server. please contact the server admin";
+        }
+        if (!isShareType(shareType)) {
+            return unknownShareType(shareType);
         }
 
-        if (allShares.get(shareType).containsKey(shareID)) {
-            String resp = "Failed: share " + shareID + " already exists for shareType of " + shareType;
-            logResponse("Admin", "addShare", shareID, shareType, resp);
-            return resp;
+        // add / remove of a share hold its lock -> check + log + put can't interleave, and the record
+        // is queued before anyone can buy the share, so its purchases come after it in the log
+        ShareData existing;
+        locks.lockShare(id);
+        try {
+            existing = catalog.get(shareType, id);
+            if (existing == null) {
+                journal.addShare(shareType, id, capacity);
+                catalog.add(shareType, id, capacity);
+            }
+        }
+        finally {
+            locks.unlockShare(id);
+        }
+        if (existing != null) {
+            return "Failed: share " + shareID + " already exists for shareType of " + shareType;
         }
 
-        ShareData newShare = new ShareData(shareID, shareType, capacity);
-        allShares.get(shareType).put(shareID, newShare);
-        String response = "Success: share " + shareID + " added with capacity=" + capacity;
-        logResponse("Admin", "addShare", shareID, shareType, response);
-        return response;
+        availabilityChanged(shareType, id);
+        return "Success: share " + shareID + " added with capacity=" + capacity;
+    }
+
+    @Override
+    public String[] addShares(ShareOrder[] shares) {
+        logBatchReceived("Admin", "addShares", shares);
+        String[] results = new String[shares.length];
+        for (int i = 0; i < shares.length; i++) {
+            ShareOrder share = shares[i];
+            results[i] = share == null ? invalidShareID(null) : addLocalShare(share.getShareID(), share.getShareType(), share.getCount());
+        }
+        journal.commit();
+        logBatchResponse("Admin", "addShares", results);
+        return results;
     }
 
     @Override
-    public synchronized String removeShare(String shareID, String shareType) {
+    public String removeShare(String shareID, String shareType) {
         try {
             Logger.serverLog(serverID, "Admin", "  removeShare", "shareID=" + shareID + ", shareType=" + shareType, "request received");
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        if (!detectShareServer(shareID).equals(serverName)) {
+        ShareId id = ShareId.tryParse(shareID);
+        if (id == null) {
+            String response = invalidShareID(shareID);
+            logResponse("Admin", "removeShare", shareID, shareType, response);
+            return response;
+        }
+        if (!detectShareServer(id).equals(serverName)) {
             String response = "Failed: Cannot remove share " + shareID + " from another server. please contact the server admin";
             logResponse("Admin", "removeShare", shareID, shareType, response);
             return response;
         }
 
-        if (!allShares.get(shareType).containsKey(shareID)) {
+        ShareData removed;
+        locks.lockShare(id);
+        try {
+            removed = catalog.remove(shareType, id);
+            if (removed != null) {
+                journal.removeShare(shareType, id);
+            }
+        }
+        finally {
+            locks.unlockShare(id);
+        }
+        if (removed == null) {
             String response = "Failed: share " + shareID + " does not exist on " + serverName;
             logResponse("Admin", "removeShare", shareID, shareType, response);
             return response;
         }
+        availabilityChanged(shareType, id);
 
-        allShares.get(shareType).remove(shareID);
         // be careful with the power -> if admin remove -> remove from all buyer even if they have it
-        removeShareFromBuyers(shareType, shareID);
+        // the share is already gone from the catalog so nobody can buy it again while we clean the buyers one by one
+        removeShareFromBuyers(shareType, id);
+        journal.commit();
         String response = "Success: share " + shareID + " removed from " + serverName;
         logResponse("Admin", "removeShare", shareID, shareType, response);
         return response;
     }
 
     @Override
-    public synchronized String listShareAvailability(String shareType) {
+    public String listShareAvailability(String shareType) {
         try {
             Logger.serverLog(serverID, "Admin", "  listShareAvailability", "shareType=" + shareType, "request received");
         }
@@ -188,47 +495,88 @@ public class ShareMarketImplementation implements WebInterface{
             e.printStackTrace();
         }
 
+        // scatter: both other cities are asked first, the local listing is built while they answer
+        // every remote future ends by udp.listDeadlineMs (reply or timeout) -> a slow city can't hold the admin up
+        // availability.maxStalenessMs > 0: a city is listed from the pushed cache, it is only asked again
+        // (one snapshot of all its shares) when its last snapshot is older than that; 0 = always ask
+        long deadlineMillis = Long.getLong("udp.listDeadlineMs", 2000);
+        long maxStalenessNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("availability.maxStalenessMs", 5000));
+        Map<String, CompletableFuture<String>> remote = new LinkedHashMap<>(); // city -> reply
+        for (String city : CITY_IDS) {
+            if (city.equals(serverID)) {
+                continue;
+            }
+            if (maxStalenessNanos <= 0) {
+                // a binary reply is the bare report, formatted here like the text one
+                remote.put(city, sendUDPMessageAsync(getServerPort(city), UdpRequest.listShareAvailability("Admin", shareType), deadlineMillis)
+                        .thenApply(reply -> reply.isReport() ? RemoteAvailability.render(serverNameOf(city), shareType, reply.report()) : reply.text()));
+            }
+            else if (remoteAvailability.isFresh(city, maxStalenessNanos)) {
+                remote.put(city, CompletableFuture.completedFuture(remoteAvailability.list(city, serverNameOf(city), shareType)));
+            }
+            else {
+                remote.put(city, sendUDPMessageAsync(getServerPort(city), UdpRequest.availabilitySnapshot("Admin"), deadlineMillis).thenApply(snapshot -> {
+                    if (!remoteAvailability.applySnapshot(city, snapshot.report())) {
+                        throw new CompletionException(new IOException("bad snapshot reply " + snapshot));
+                    }
+                    return remoteAvailability.list(city, serverNameOf(city), shareType);
+                }));
+            }
+        }
+
         StringBuilder sb = new StringBuilder();
         sb.append(serverName).append(" [").append(shareType).append("]:\n");
-        Map<String, ShareData> localMap = allShares.get(shareType);
-        if (localMap.isEmpty()) {
+        int before = sb.length();
+        catalog.forEach(shareType, (shareBits, capacity, used) -> {
+            ShareData.describe(sb, shareBits, shareType, capacity, used);
+            sb.append(" \n");
+        });
+        if (sb.length() == before) {
             sb.append("No shares of type ").append(shareType).append("\n");
         }
         else {
-            for (ShareData share : localMap.values()) {
-                sb.append(share.toString()).append(" \n");
-            }
             sb.append("\n");
         }
 
-        switch (serverID) {
-            case "NYK":
-                sb.append(sendUDPMessage(LON_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                sb.append(sendUDPMessage(TOK_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                break;
-            case "LON":
-                sb.append(sendUDPMessage(NYK_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                sb.append(sendUDPMessage(TOK_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                break;
-            case "TOK":
-                sb.append(sendUDPMessage(NYK_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                sb.append(sendUDPMessage(LON_PORT, "listShareAvailability", "Admin", shareType, "N/A"));
-                break;
+        // gather: partial result if some city did not answer in time
+        List<String> responded = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        responded.add(serverID);
+        for (Map.Entry<String, CompletableFuture<String>> reply : remote.entrySet()) {
+            try {
+                sb.append(udpClient.await(reply.getValue()));
+                responded.add(reply.getKey());
+            }
+            catch (IOException e) {
+                missing.add(reply.getKey());
+                sb.append(serverNameOf(reply.getKey())).append(" [").append(shareType).append("]: no response (").append(e.getMessage()).append(")\n\n");
+            }
+        }
+        sb.append("\nResponded: ").append(String.join(", ", responded));
+        if (!missing.isEmpty()) {
+            sb.append(" | No response: ").append(String.join(", ", missing));
         }
+        sb.append("\n");
         String response = sb.toString();
         logResponse("Admin", "listShareAvailability", "N/A", shareType, response);
         return response;
     }
 
     @Override
-    public synchronized String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
         try {
             Logger.serverLog(serverID, buyerID, "  purchaseShare", "shareID=" + shareID + ", shareType=" + shareType + ", shareCount=" + shareCount, "request received");
         }
         catch (IOException e) {
             e.printStackTrace();
         }
-        String shareServer = detectShareServer(shareID);
+        ShareId id = ShareId.tryParse(shareID);
+        if (id == null) {
+            String response = invalidShareID(shareID);
+            logResponse(buyerID, "purchaseShare", shareID, shareType, response);
+            return response;
+        }
+        String shareServer = detectShareServer(id);
         // not your own city --> UDP called + check number of purchases
         if (!shareServer.equals(serverName)) {
             if (shareCount > 3){
@@ -236,73 +584,112 @@ public class ShareMarketImplementation implements WebInterface{
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
-            if (exceededCrossCityLimit(buyerID, shareID)) {
-                String failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
-                logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-                return failMsg;
+            String failMsg = null;
+            locks.lockBuyer(buyerID);
+            try {
+                if (exceededCrossCityLimit(buyerID, id)) {
+                    failMsg = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
+                }
+                // condition: one share type per day
+                else if (TodayPurchased(buyerID, shareType, id)) {
+                    failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+                }
+                else {
+                    // counted in both rules from now on -> a second purchase running meanwhile sees this one
+                    buyerShares.computeIfAbsent(buyerID, this::newBuyer).reserve(shareType, id, shareCount);
+                }
             }
-            // condition: one share type per day
-            if (TodayPurchased(buyerID, shareType, shareID)) {
-                String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            if (failMsg != null) {
                 logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
                 return failMsg;
             }
 
-            String extra = shareID + "-" + shareCount;
-            String res = sendUDPMessage(getServerPort(shareID.substring(0,3)), "purchaseShare", buyerID, shareType, extra);
-            if (res.startsWith("Success")) {
-                for (int i = 0; i < shareCount; i++) {
-                    addBuyerRecord(buyerID, shareType, shareID);
+            // no lock is held while we wait for the other city
+            String res = sendUDPMessage(getServerPort(id.cityCode()), UdpRequest.purchaseShare(buyerID, shareType, id.toString(), shareCount));
+            boolean inDoubt;
+            locks.lockBuyer(buyerID);
+            try {
+                // no answer at all -> the other city may have done it; unless the buyer held it already (then it said no)
+                // it is sold back there, and the reservation stays until that is through
+                inDoubt = res.startsWith("UDP Error") && getBuyerShareQuantity(buyerID, id, shareType) == 0;
+                if (!inDoubt) {
+                    buyerShares.get(buyerID).unreserve(shareType, id, shareCount);
                 }
-//                System.out.println("buyer id recoards is:" + buyerShares);
+                if (res.startsWith("Success")) {
+                    addBuyerRecord(buyerID, shareType, id, shareCount);
+                    journal.hold(buyerID, shareType, id, shareCount);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            if (inDoubt) {
+                undoRemotePurchase(buyerID, shareType, id, shareCount, Integer.getInteger("udp.undoAttempts", 10));
+            }
+            if (res.startsWith("Success")) {
+                journal.commit();
             }
             logResponse(buyerID, "purchaseShare", shareID, shareType, res);
             return res;
         }
 
-        // it's your own city
+        // it's your own city -> only this buyer is locked, capacity is claimed with CAS inside ShareData
+        String response;
+        locks.lockBuyer(buyerID);
+        try {
+            response = purchaseLocalShare(buyerID, id, shareType, shareCount);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
+        if (response.startsWith("Success")) {
+            journal.commit();
+            availabilityChanged(shareType, id);
+        }
+        logResponse(buyerID, "purchaseShare", shareID, shareType, response);
+        return response;
+    }
+
+    // caller holds the buyer lock
+    private String purchaseLocalShare(String buyerID, ShareId shareID, String shareType, int shareCount) {
         if (TodayPurchased(buyerID, shareType, shareID)) {
-            String failMsg = "Failed: " + buyerID + " already purchased this share type today.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+            return "Failed: " + buyerID + " already purchased this share type today.";
         }
 
-        if (!allShares.get(shareType).containsKey(shareID)) {
-            String failMsg = "Failed: share " + shareID + " not found in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        ShareData share = catalog.get(shareType, shareID);
+        if (share == null) {
+            return "Failed: share " + shareID + " not found in " + serverName;
         }
-        ShareData share = allShares.get(shareType).get(shareID);
-        int available = share.getShareRemainCapacity();
-        if (available <= 0) {
-            String failMsg = "Failed: share " + shareID + " is full in " + serverName;
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        if (share.getShareRemainCapacity() <= 0) {
+            return "Failed: share " + shareID + " is full in " + serverName;
         }
-        int realPurchase = Math.min(shareCount, available);
-        int result = share.addBuyerPurchase(buyerID, realPurchase);
-        if (result == ShareData.SHARE_FULL) {
-            String failMsg = "Failed: share " + shareID + " is full.";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        // the buyer lock is held -> what it holds can't change between this check and the record below
+        // an open swap buying the same share counts as held already
+        if (getBuyerShareQuantity(buyerID, shareID, shareType) > 0 || swaps.pending(buyerID, shareID) > 0) {
+            return "Failed: " + buyerID + " already purchased " + shareID + ".";
         }
-        else if (result == ShareData.ALREADY_REGISTERED) {
-            String failMsg = "Failed: " + buyerID + " already purchased " + shareID + ".";
-            logResponse(buyerID, "purchaseShare", shareID, shareType, failMsg);
-            return failMsg;
+        int realPurchase = share.claimCapacity(shareCount);
+        if (realPurchase == 0) {
+            return "Failed: share " + shareID + " is full.";
         }
 
         // save to buyerShares
-        for (int i = 0; i < realPurchase; i++) {
-            addBuyerRecord(buyerID, shareType, shareID);
-        }
-        String successMsg = "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
-        logResponse(buyerID, "purchaseShare", shareID, shareType, successMsg);
-        return successMsg;
+        addBuyerRecord(buyerID, shareType, shareID, realPurchase);
+        // removeShare ran in between -> it may have missed this buyer, so undo our own record
+        if (share.isRemoved()) {
+            removeSharesFromBuyer(buyerID, shareType, shareID, realPurchase);
+            share.releaseCapacity(realPurchase);
+            return "Failed: share " + shareID + " not found in " + serverName;
+        }
+        journal.purchase(buyerID, shareType, shareID, realPurchase);
+        return "Success: " + buyerID + " purchased " + realPurchase + " of share " + shareID;
     }
 
     @Override
-    public synchronized String getShares(String buyerID) {
+    public String getShares(String buyerID) {
         try {
             Logger.serverLog(serverID, buyerID, "  getShares", "", "request received");
         }
@@ -310,37 +697,37 @@ public class ShareMarketImplementation implements WebInterface{
             e.printStackTrace();
         }
 
-        if (!buyerShares.containsKey(buyerID)) {
-            String res = "No shares found for buyer " + buyerID;
-            logResponse(buyerID, "getShares", "N/A", "N/A", res);
-            return res;
+        String resp;
+        locks.lockBuyer(buyerID);
+        try {
+            resp = describeBuyerShares(buyerID);
         }
-        StringBuilder sb = new StringBuilder("Shares for " + buyerID + ":\n");
-        Map<String, List<String>> stMap = buyerShares.get(buyerID);
-//        System.out.println("buyer shares is : " + stMap);
-        for (String shareType : stMap.keySet()) {
-            sb.append("Type [").append(shareType).append("]:\n");
-            Map<String, Integer> counts = new HashMap<>();
-            for (String shareID : stMap.get(shareType)) {
-                if (!counts.containsKey(shareID)) {
-                    counts.put(shareID, 1);
-                }
-                else {
-                    int tmp = counts.get(shareID);
-                    counts.put(shareID, tmp + 1);
-                }
-            }
-            for (Map.Entry<String, Integer> e : counts.entrySet()) {
-                sb.append("\t").append(e.getKey()).append("\tcount: ").append(e.getValue()).append("\n");
-            }
+        finally {
+            locks.unlockBuyer(buyerID);
         }
-        String resp = sb.toString();
         logResponse(buyerID, "getShares", "N/A", "N/A", resp);
         return resp;
     }
 
+    // caller holds the buyer lock
+    private String describeBuyerShares(String buyerID) {
+        // a record without shares: everything sold, or the first purchase still on its way to another city
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null || holdings.size() == 0) {
+            return "No shares found for buyer " + buyerID;
+        }
+        StringBuilder sb = new StringBuilder("Shares for " + buyerID + ":\n");
+        Map<String, StringBuilder> byType = new LinkedHashMap<>(); // shareType -> its lines
+        holdings.forEach((shareType, shareBits, units) -> byType.computeIfAbsent(shareType, t -> new StringBuilder())
+                .append("\t").append(ShareId.fromBits(shareBits & 0xFFFFFFFFL)).append("\tcount: ").append(units).append("\n"));
+        for (Map.Entry<String, StringBuilder> type : byType.entrySet()) {
+            sb.append("Type [").append(type.getKey()).append("]:\n").append(type.getValue());
+        }
+        return sb.toString();
+    }
+
     @Override
-    public synchronized String sellShare(String buyerID, String shareID, int shareCount) {
+    public String sellShare(String buyerID, String shareID, int shareCount) {
         try {
             Logger.serverLog(serverID, buyerID, "  sellShare", "shareID=" + shareID + ", shareCount=" + shareCount, "request received");
         }
@@ -348,35 +735,66 @@ public class ShareMarketImplementation implements WebInterface{
             e.printStackTrace();
         }
 
-        String shareServer = detectShareServer(shareID);
+        ShareId id = ShareId.tryParse(shareID);
+        if (id == null) {
+            String response = invalidShareID(shareID);
+            logResponse(buyerID, "sellShare", shareID, "N/A", response);
+            return response;
+        }
+        String shareServer = detectShareServer(id);
         if (!shareServer.equals(serverName)) {
-            String extra = shareID + "-" + shareCount;
-            String resp  = sendUDPMessage(getServerPort(shareID.substring(0,3)), "sellShare", buyerID, "N/A", extra);
+            String resp  = sendUDPMessage(getServerPort(id.cityCode()), UdpRequest.sellShare(buyerID, id.toString(), shareCount));
             if (resp.startsWith("Success")) {
-                removeSharesFromBuyer(buyerID, shareID, shareCount);
+                locks.lockBuyer(buyerID);
+                try {
+                    removeSharesFromBuyer(buyerID, findShareTypeForBuyer(buyerID, id), id, shareCount);
+                    journal.unhold(buyerID, id, shareCount);
+                }
+                finally {
+                    locks.unlockBuyer(buyerID);
+                }
+                journal.commit();
             }
             logResponse(buyerID, "sellShare", shareID, "N/A", resp);
             return resp;
         }
+        String response;
+        locks.lockBuyer(buyerID);
+        try {
+            response = sellLocalShare(buyerID, id, shareCount);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
+        journal.commit();
+        logResponse(buyerID, "sellShare", shareID, "N/A", response);
+        return response;
+    }
+
+    // caller holds the buyer lock
+    private String sellLocalShare(String buyerID, ShareId shareID, int shareCount) {
         //buyer has it?
         String st = findShareTypeForBuyer(buyerID, shareID);
         if (st == null) {
-            String failMsg = "Failed: " + buyerID + " does not own " + shareID;
-            logResponse(buyerID, "sellShare", shareID, "N/A", failMsg);
-            return failMsg;
+            return "Failed: " + buyerID + " does not own " + shareID;
         }
-
-        int buyerShareRemoved = removeSharesFromBuyer(buyerID, shareID, shareCount);
-//        System.out.println("remove from buyer share:  " + buyerShareRemoved);
-        ShareData shareData = allShares.get(st).get(shareID);
-        int removedCount = shareData.removeBuyerPurchase(buyerID, buyerShareRemoved);
-        String successMsg = "Success: " + buyerID + " sold " + buyerShareRemoved + " of share " + shareID;
-        logResponse(buyerID, "sellShare", shareID, st, successMsg);
-        return successMsg;
+        // units an open swap gives back are not for sale
+        int free = getBuyerShareQuantity(buyerID, shareID, st) - swaps.pending(buyerID, shareID);
+        if (free <= 0) {
+            return "Failed: " + buyerID + " is swapping " + shareID;
+        }
+        int buyerShareRemoved = removeSharesFromBuyer(buyerID, st, shareID, Math.min(shareCount, free));
+        journal.sell(buyerID, st, shareID, buyerShareRemoved);
+        ShareData shareData = catalog.get(st, shareID);
+        if (shareData != null) {
+            shareData.releaseCapacity(buyerShareRemoved);
+            availabilityChanged(st, shareID);
+        }
+        return "Success: " + buyerID + " sold " + buyerShareRemoved + " of share " + shareID;
     }
 
     @Override
-    public synchronized String swapShare(String buyerID, String oldShareID, String oldShareType, String newShareID, String newShareType) {
+    public String swapShare(String buyerID, String oldShareID, String oldShareType, String newShareID, String newShareType) {
         try {
             Logger.serverLog(serverID, buyerID, " swapShare", "oldShareID=" + oldShareID + ", oldShareType=" + oldShareType + ", newShareID=" + newShareID + ", newShareType=" + newShareType, "request received");
         }
@@ -384,77 +802,542 @@ public class ShareMarketImplementation implements WebInterface{
             e.printStackTrace();
         }
 
-        int oldQuantity = getBuyerShareQuantity(buyerID, oldShareID, oldShareType);
+        ShareId oldID = ShareId.tryParse(oldShareID);
+        ShareId newID = ShareId.tryParse(newShareID);
+        if (oldID == null || newID == null) {
+            String fail = invalidShareID(oldID == null ? oldShareID : newShareID);
+            logResponse(buyerID, "swapShare", oldShareID+"->"+newShareID, oldShareType+"->"+newShareType, fail);
+            return fail;
+        }
+
+        int oldQuantity;
+        locks.lockBuyer(buyerID);
+        try {
+            oldQuantity = getBuyerShareQuantity(buyerID, oldID, oldShareType);
+        }
+        finally {
+            locks.unlockBuyer(buyerID);
+        }
         if (oldQuantity <= 0) {
             String fail = "Failed: " + buyerID + " does not own share " + oldShareID;
             logResponse(buyerID, "swapShare", oldShareID, oldShareType, fail);
             return fail;
         }
 
-        String newShareCity = detectShareServer(newShareID);  // NYK or TOK or LON
-        int newSharePort = getServerPort(newShareID.substring(0,3));
+        // two phases with one message per city each, the cities work in parallel and no lock is held while waiting:
+        // prepare -> the city of the new share claims the units, the city of the old share puts the buyer's units aside
+        // commit everywhere once all are prepared, else abort everywhere; a city that never hears back drops its part
+        // when its lease ends (swap.leaseMs), and as nothing is logged before the commit a restart drops it too
+        String txId = serverID + "-" + Long.toString(System.currentTimeMillis(), 36) + "-" + swapSeq.incrementAndGet();
+        Map<String, List<ShareOrder>> legs = new LinkedHashMap<>(); // city code -> legs of that city
+        legs.computeIfAbsent(newID.cityCode(), city -> new ArrayList<>()).add(new ShareOrder(buyerID, newID.toString(), newShareType, oldQuantity));
+        legs.computeIfAbsent(oldID.cityCode(), city -> new ArrayList<>()).add(new ShareOrder(buyerID, oldID.toString(), oldShareType, -oldQuantity));
+
+        Map<String, String> prepared = swapPhase(legs.keySet(), city -> UdpRequest.swapPrepare(serverID, txId, legs.get(city)),
+                () -> prepareSwap(txId, legs.get(serverID)));
+        String failure = firstFailure(prepared);
+        if (failure != null) {
+            // a city that did not answer may still have prepared -> all of them are told
+            swapPhase(legs.keySet(), city -> UdpRequest.swapAbort(serverID, txId), () -> abortSwap(txId));
+            String fail = "Failed: cannot swap " + oldShareID + " for " + newShareID + " with quantity=" + oldQuantity + ". Reason: " + failure;
+            logResponse(buyerID, "swapShare", oldShareID+"->"+newShareID, oldShareType+"->"+newShareType, fail);
+            return fail;
+        }
 
-        String purchaseResult;
-        if (!newShareCity.equals(serverName)) {
-            // not your city -> UDP
-            String extra = newShareID + "-" + oldQuantity;
-            purchaseResult = sendUDPMessage(newSharePort, "purchaseShare", buyerID, newShareType, extra);
+        Map<String, String> committed = swapPhase(legs.keySet(), city -> UdpRequest.swapCommit(serverID, txId), () -> commitSwap(txId));
+        boolean newDone = committed.get(newID.cityCode()).startsWith("Success");
+        boolean oldDone = committed.get(oldID.cityCode()).startsWith("Success");
+        // shares of other cities: this city keeps the buyer's copy of what it holds there, like purchaseShare / sellShare
+        boolean newRemote = !newID.cityCode().equals(serverID);
+        boolean oldRemote = !oldID.cityCode().equals(serverID);
+        if ((newDone && newRemote) || (oldDone && oldRemote)) {
+            locks.lockBuyer(buyerID);
+            try {
+                if (newDone && newRemote) {
+                    addBuyerRecord(buyerID, newShareType, newID, oldQuantity);
+                    journal.hold(buyerID, newShareType, newID, oldQuantity);
+                }
+                if (oldDone && oldRemote) {
+                    removeSharesFromBuyer(buyerID, oldShareType, oldID, oldQuantity);
+                    journal.unhold(buyerID, oldID, oldQuantity);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            journal.commit();
         }
-        else {
-            purchaseResult = purchaseShare(buyerID, newShareID, newShareType, oldQuantity);
+        if (!newDone || !oldDone) {
+            // a city lost its part between the phases (lease over, restarted) after the other one committed
+            String fail = "Failed: swap " + txId + " committed only in part. " + newShareID + ": " + committed.get(newID.cityCode())
+                    + " " + oldShareID + ": " + committed.get(oldID.cityCode());
+            logResponse(buyerID, "swapShare", oldShareID+"->"+newShareID, oldShareType+"->"+newShareType, fail);
+            return fail;
         }
 
-        if (!purchaseResult.startsWith("Success")) {
-            String fail = "Failed: cannot purchase new share " + newShareID + " with quantity=" + oldQuantity + ". Reason: " + purchaseResult;
-            logResponse(buyerID, "swapShare", newShareID, newShareType, fail);
-            return fail;
+        String success = "Success: " + buyerID + " swapped old share " + oldShareID + " with new share " + newShareID + " for quantity=" + oldQuantity;
+        logResponse(buyerID, "swapShare", oldShareID+"->"+newShareID, oldShareType+"->"+newShareType, success);
+        return success;
+    }
+
+    // one phase of a swap: city code -> reply; the other cities get their message first, this city's part runs meanwhile
+    private Map<String, String> swapPhase(Collection<String> cities, Function<String, UdpRequest> request, Supplier<String> local) {
+        Map<String, CompletableFuture<String>> remote = new LinkedHashMap<>();
+        for (String city : cities) {
+            if (!city.equals(serverID)) {
+                remote.put(city, sendUDPMessageAsync(getServerPort(city), request.apply(city)).thenApply(UdpReply::text));
+            }
+        }
+        Map<String, String> replies = new LinkedHashMap<>();
+        if (cities.contains(serverID)) {
+            replies.put(serverID, local.get());
         }
-//        System.out.println("this issssssssss: " + buyerID + oldShareID +  oldQuantity);
-        // sell same number -> fail? -> roll back
-        String sellResult;
-        String oldShareCity = detectShareServer(oldShareID);
-        int oldSharePort = getServerPort(oldShareID.substring(0,3));
+        for (Map.Entry<String, CompletableFuture<String>> reply : remote.entrySet()) {
+            replies.put(reply.getKey(), awaitUDPReply(reply.getValue()));
+        }
+        return replies;
+    }
 
-        if (!oldShareCity.equals(serverName)) {
-            String extra = oldShareID + "-" + oldQuantity;
-            sellResult = sendUDPMessage(oldSharePort, "sellShare", buyerID, "N/A", extra);
+    private static String firstFailure(Map<String, String> replies) {
+        for (String reply : replies.values()) {
+            if (!reply.startsWith("Success")) {
+                return reply;
+            }
         }
-        else {
-            sellResult = sellShare(buyerID, oldShareID, oldQuantity);
+        return null;
+    }
+
+    // first phase of a swap, for the coordinating city (this one or another): reserves all the legs or none
+    // legs are for one buyer and shares of this city: count > 0 buys that many (all or nothing, the units are claimed now),
+    // count < 0 gives that many back (the buyer must hold them, they can't be sold until the end)
+    // nothing is logged yet -> commitSwap makes it real, abortSwap or the end of the lease gives it back
+    public String prepareSwap(String txId, List<ShareOrder> legs) {
+        String buyerID = legs.isEmpty() ? "N/A" : legs.get(0).getBuyerID();
+        try {
+            Logger.serverLog(serverID, buyerID, "  swapPrepare", "txId=" + txId + ", legs=" + legs, "request received");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
         }
 
+        String response = legs.isEmpty() ? "Failed: swap " + txId + " has nothing to prepare" : null;
+        ShareId[] ids = new ShareId[legs.size()];
+        for (int i = 0; i < legs.size() && response == null; i++) {
+            ShareOrder leg = legs.get(i);
+            ids[i] = ShareId.tryParse(leg.getShareID());
+            if (ids[i] == null) {
+                response = invalidShareID(leg.getShareID());
+            }
+            else if (!leg.getBuyerID().equals(buyerID)) {
+                response = "Failed: swap " + txId + " is for more than one buyer";
+            }
+            else if (!detectShareServer(ids[i]).equals(serverName)) {
+                response = "Failed: share " + leg.getShareID() + " is not in " + serverName;
+            }
+            else if (leg.getCount() == 0) {
+                response = "Failed: swap " + txId + " has nothing to swap for " + leg.getShareID();
+            }
+        }
+        SwapReservations.Reservation r = null;
+        if (response == null) {
+            locks.lockBuyer(buyerID);
+            try {
+                r = swaps.open(txId, buyerID);
+                if (r == null) {
+                    response = "Failed: swap " + txId + " is prepared already";
+                }
+                for (int i = 0; i < legs.size() && response == null; i++) {
+                    response = reserveSwapLeg(r, legs.get(i), ids[i]);
+                }
+                if (response != null && r != null && swaps.close(r)) {
+                    releaseSwapLegs(r);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+        }
+        if (r != null) {
+            swapAvailabilityChanged(r);
+        }
+        if (response == null) {
+            response = "Success: swap " + txId + " prepared in " + serverName;
+        }
+        logResponse(buyerID, "swapPrepare", legs.toString(), "N/A", response);
+        return response;
+    }
 
-        if (!sellResult.startsWith("Success")) {
-            rollbackNewPurchase(buyerID, newShareID, newShareType, oldQuantity);
-            String fail = "Failed: could not sell old share " + oldShareID + ". Rolling back new share. Reason: " + sellResult;
-            logResponse(buyerID, "swapShare", oldShareID, oldShareType, fail);
-            return fail;
+    // caller holds the buyer lock; null when the leg is reserved
+    private String reserveSwapLeg(SwapReservations.Reservation r, ShareOrder leg, ShareId shareID) {
+        String buyerID = r.buyerID;
+        if (leg.getCount() > 0) {
+            // the rules of purchaseLocalShare
+            String shareType = leg.getShareType();
+            if (TodayPurchased(buyerID, shareType, shareID)) {
+                return "Failed: " + buyerID + " already purchased this share type today.";
+            }
+            ShareData share = catalog.get(shareType, shareID);
+            if (share == null) {
+                return "Failed: share " + shareID + " not found in " + serverName;
+            }
+            if (getBuyerShareQuantity(buyerID, shareID, shareType) > 0 || swaps.pending(buyerID, shareID) > 0) {
+                return "Failed: " + buyerID + " already purchased " + shareID + ".";
+            }
+            int claimed = share.claimCapacity(leg.getCount());
+            if (claimed < leg.getCount()) {
+                share.releaseCapacity(claimed);
+                return "Failed: share " + shareID + " has less than " + leg.getCount() + " left in " + serverName;
+            }
+            swaps.addLeg(r, new SwapReservations.Leg(shareType, shareID, leg.getCount(), share));
+            return null;
+        }
+        // given back: the type is the one the buyer holds, like sellLocalShare
+        int units = -leg.getCount();
+        String heldType = findShareTypeForBuyer(buyerID, shareID);
+        if (heldType == null) {
+            return "Failed: " + buyerID + " does not own " + shareID;
+        }
+        if (getBuyerShareQuantity(buyerID, shareID, heldType) - swaps.pending(buyerID, shareID) < units) {
+            return "Failed: " + buyerID + " does not own " + units + " of " + shareID;
+        }
+        swaps.addLeg(r, new SwapReservations.Leg(heldType, shareID, units, null));
+        return null;
+    }
+
+    // second phase: the prepared legs become normal purchases / sales, logged like them
+    public String commitSwap(String txId) {
+        SwapReservations.Reservation r = swaps.get(txId);
+        String buyerID = r == null ? "N/A" : r.buyerID;
+        try {
+            Logger.serverLog(serverID, buyerID, "  swapCommit", "txId=" + txId, "request received");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
         }
 
-        String success = "Success: " + buyerID + " swapped old share " + oldShareID + " with new share " + newShareID + " for quantity=" + oldQuantity;
-        logResponse(buyerID, "swapShare", oldShareID+"->"+newShareID, oldShareType+"->"+newShareType, success);
-        return success;
+        String response = "Failed: swap " + txId + " is not prepared in " + serverName + " (aborted or lease over)";
+        if (r != null) {
+            locks.lockBuyer(buyerID);
+            try {
+                if (swaps.close(r)) {
+                    if (r.isExpired()) {
+                        // the timer did not get to it yet
+                        releaseSwapLegs(r);
+                    }
+                    else {
+                        for (SwapReservations.Leg leg : r.legs) {
+                            applySwapLeg(buyerID, leg);
+                        }
+                        response = "Success: swap " + txId + " committed in " + serverName;
+                    }
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            journal.commit();
+            swapAvailabilityChanged(r);
+        }
+        logResponse(buyerID, "swapCommit", txId, "N/A", response);
+        return response;
+    }
+
+    // caller holds the buyer lock
+    private void applySwapLeg(String buyerID, SwapReservations.Leg leg) {
+        if (leg.isBuy()) {
+            addBuyerRecord(buyerID, leg.shareType, leg.shareID, leg.units);
+            // removeShare ran in between -> the units went with the share, as if bought just before (see purchaseLocalShare)
+            if (leg.share.isRemoved()) {
+                removeSharesFromBuyer(buyerID, leg.shareType, leg.shareID, leg.units);
+                return;
+            }
+            journal.purchase(buyerID, leg.shareType, leg.shareID, leg.units);
+            return;
+        }
+        int removed = removeSharesFromBuyer(buyerID, leg.shareType, leg.shareID, leg.units);
+        journal.sell(buyerID, leg.shareType, leg.shareID, removed);
+        ShareData share = catalog.get(leg.shareType, leg.shareID);
+        if (share != null) {
+            share.releaseCapacity(removed);
+        }
+    }
+
+    // unknown swaps are fine -> the coordinator aborts everywhere without knowing who prepared
+    public String abortSwap(String txId) {
+        SwapReservations.Reservation r = swaps.get(txId);
+        String buyerID = r == null ? "N/A" : r.buyerID;
+        try {
+            Logger.serverLog(serverID, buyerID, "  swapAbort", "txId=" + txId, "request received");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (r != null) {
+            locks.lockBuyer(buyerID);
+            try {
+                if (swaps.close(r)) {
+                    releaseSwapLegs(r);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+            swapAvailabilityChanged(r);
+        }
+        String response = "Success: swap " + txId + " aborted in " + serverName;
+        logResponse(buyerID, "swapAbort", txId, "N/A", response);
+        return response;
+    }
+
+    // lease timer of SwapReservations
+    private void expireSwap(SwapReservations.Reservation r) {
+        boolean expired;
+        locks.lockBuyer(r.buyerID);
+        try {
+            expired = swaps.close(r);
+            if (expired) {
+                releaseSwapLegs(r);
+            }
+        }
+        finally {
+            locks.unlockBuyer(r.buyerID);
+        }
+        if (expired) {
+            swapAvailabilityChanged(r);
+            logResponse(r.buyerID, "swapExpired", r.txId, "N/A", "lease over, reservation given back");
+        }
+    }
+
+    // caller holds the buyer lock and closed the reservation
+    private void releaseSwapLegs(SwapReservations.Reservation r) {
+        for (SwapReservations.Leg leg : r.legs) {
+            if (leg.isBuy()) {
+                leg.share.releaseCapacity(leg.units);
+            }
+        }
+    }
+
+    private void swapAvailabilityChanged(SwapReservations.Reservation r) {
+        for (SwapReservations.Leg leg : r.legs) {
+            availabilityChanged(leg.shareType, leg.shareID);
+        }
+    }
+
+
+
+    // batch of purchases, same rules as purchaseShare item by item:
+    // - items of this city run under one lock per buyer
+    // - items of another city are checked here (limit per week, one type per day; earlier items of the batch count
+    //   as if they went through) and go to that city in one UDP message per udp.batchSize items (default 256),
+    //   sent before the local items run so both overlap
+    // - one log record for the request and one for all the results
+    @Override
+    public String[] purchaseShares(ShareOrder[] orders) {
+        logBatchReceived("Batch", "purchaseShares", orders);
+        String[] results = new String[orders.length];
+        ShareId[] ids = new ShareId[orders.length];
+        List<Integer> local = new ArrayList<>();
+        List<Integer> remote = new ArrayList<>();
+        for (int i = 0; i < orders.length; i++) {
+            ShareOrder order = orders[i];
+            ids[i] = order == null || order.getBuyerID() == null ? null : ShareId.tryParse(order.getShareID());
+            if (ids[i] == null) {
+                results[i] = invalidShareID(order == null ? null : order.getShareID());
+            }
+            else if (!isShareType(order.getShareType())) {
+                results[i] = unknownShareType(order.getShareType());
+            }
+            else if (detectShareServer(ids[i]).equals(serverName)) {
+                local.add(i);
+            }
+            else {
+                remote.add(i);
+            }
+        }
+
+        // items sent are reserved in the buyer's day / week counters like purchaseShare does -> later items of this
+        // batch and other requests of the same buyer running meanwhile count them
+        List<Integer> sent = new ArrayList<>();
+        forEachByBuyer(orders, remote, i -> {
+            ShareOrder order = orders[i];
+            String buyerID = order.getBuyerID();
+            if (order.getCount() > 3) {
+                results[i] = "Failed: " + buyerID + " can not buy more than 3 shares from other cities in total per week.";
+            }
+            else if (exceededCrossCityLimit(buyerID, ids[i])) {
+                results[i] = "Failed: " + buyerID + " exceeded your limit for buying from other cities.";
+            }
+            else if (TodayPurchased(buyerID, order.getShareType(), ids[i])) {
+                results[i] = "Failed: " + buyerID + " already purchased this share type today.";
+            }
+            else {
+                buyerShares.computeIfAbsent(buyerID, this::newBuyer).reserve(order.getShareType(), ids[i], order.getCount());
+                sent.add(i);
+            }
+        });
+        // no lock is held while we wait for the other cities
+        Map<List<Integer>, CompletableFuture<String>> replies = sendBatches(orders, ids, sent, UdpRequest::purchaseShares);
+
+        forEachByBuyer(orders, local, i -> {
+            results[i] = purchaseLocalShare(orders[i].getBuyerID(), ids[i], orders[i].getShareType(), orders[i].getCount());
+            if (results[i].startsWith("Success")) {
+                availabilityChanged(orders[i].getShareType(), ids[i]);
+            }
+        });
+
+        awaitBatches(replies, results);
+        forEachByBuyer(orders, sent, i -> {
+            buyerShares.get(orders[i].getBuyerID()).unreserve(orders[i].getShareType(), ids[i], orders[i].getCount());
+            if (results[i].startsWith("Success")) {
+                addBuyerRecord(orders[i].getBuyerID(), orders[i].getShareType(), ids[i], orders[i].getCount());
+                journal.hold(orders[i].getBuyerID(), orders[i].getShareType(), ids[i], orders[i].getCount());
+            }
+        });
+        journal.commit(); // one group for the whole batch
+        logBatchResponse("Batch", "purchaseShares", results);
+        return results;
+    }
+
+    // batch of sells, grouped like purchaseShares
+    @Override
+    public String[] sellShares(ShareOrder[] orders) {
+        logBatchReceived("Batch", "sellShares", orders);
+        String[] results = new String[orders.length];
+        ShareId[] ids = new ShareId[orders.length];
+        List<Integer> local = new ArrayList<>();
+        List<Integer> remote = new ArrayList<>();
+        for (int i = 0; i < orders.length; i++) {
+            ShareOrder order = orders[i];
+            ids[i] = order == null || order.getBuyerID() == null ? null : ShareId.tryParse(order.getShareID());
+            if (ids[i] == null) {
+                results[i] = invalidShareID(order == null ? null : order.getShareID());
+            }
+            else if (detectShareServer(ids[i]).equals(serverName)) {
+                local.add(i);
+            }
+            else {
+                remote.add(i);
+            }
+        }
+
+        Map<List<Integer>, CompletableFuture<String>> replies = sendBatches(orders, ids, remote, UdpRequest::sellShares);
+
+        forEachByBuyer(orders, local, i -> results[i] = sellLocalShare(orders[i].getBuyerID(), ids[i], orders[i].getCount()));
+
+        awaitBatches(replies, results);
+        forEachByBuyer(orders, remote, i -> {
+            if (results[i].startsWith("Success")) {
+                removeSharesFromBuyer(orders[i].getBuyerID(), findShareTypeForBuyer(orders[i].getBuyerID(), ids[i]), ids[i], orders[i].getCount());
+                journal.unhold(orders[i].getBuyerID(), ids[i], orders[i].getCount());
+            }
+        });
+        journal.commit();
+        logBatchResponse("Batch", "sellShares", results);
+        return results;
+    }
+
+    // indexes grouped by buyer (first appearance order), each buyer locked once for all of its items
+    private void forEachByBuyer(ShareOrder[] orders, List<Integer> indexes, IntConsumer action) {
+        Map<String, List<Integer>> byBuyer = new LinkedHashMap<>();
+        for (int i : indexes) {
+            byBuyer.computeIfAbsent(orders[i].getBuyerID(), buyer -> new ArrayList<>()).add(i);
+        }
+        for (Map.Entry<String, List<Integer>> buyer : byBuyer.entrySet()) {
+            locks.lockBuyer(buyer.getKey());
+            try {
+                for (int i : buyer.getValue()) {
+                    action.accept(i);
+                }
+            }
+            finally {
+                locks.unlockBuyer(buyer.getKey());
+            }
+        }
     }
 
+    // one UDP message per city and udp.batchSize items -> (indexes it carries, reply)
+    private Map<List<Integer>, CompletableFuture<String>> sendBatches(ShareOrder[] orders, ShareId[] ids, List<Integer> indexes,
+                                                                    BiFunction<String, List<ShareOrder>, UdpRequest> batchRequest) {
+        int batchSize = Math.max(1, Integer.getInteger("udp.batchSize", 256));
+        Map<String, List<Integer>> byCity = new LinkedHashMap<>();
+        for (int i : indexes) {
+            byCity.computeIfAbsent(ids[i].cityCode(), city -> new ArrayList<>()).add(i);
+        }
+        Map<List<Integer>, CompletableFuture<String>> replies = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> city : byCity.entrySet()) {
+            List<Integer> all = city.getValue();
+            for (int from = 0; from < all.size(); from += batchSize) {
+                List<Integer> chunk = all.subList(from, Math.min(from + batchSize, all.size()));
+                List<ShareOrder> items = new ArrayList<>(chunk.size());
+                for (int i : chunk) {
+                    String shareType = orders[i].getShareType() == null ? UdpRequest.NONE : orders[i].getShareType();
+                    items.add(new ShareOrder(orders[i].getBuyerID(), ids[i].toString(), shareType, orders[i].getCount()));
+                }
+                replies.put(chunk, sendUDPMessageAsync(getServerPort(city.getKey()), batchRequest.apply(serverID, items)).thenApply(UdpReply::text));
+            }
+        }
+        return replies;
+    }
 
+    // one result per line; anything else (timeout, error) is the result of every item of that message
+    private void awaitBatches(Map<List<Integer>, CompletableFuture<String>> replies, String[] results) {
+        for (Map.Entry<List<Integer>, CompletableFuture<String>> reply : replies.entrySet()) {
+            String text = awaitUDPReply(reply.getValue());
+            if (text.endsWith(";")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            List<Integer> chunk = reply.getKey();
+            String[] lines = text.split("\n");
+            for (int k = 0; k < chunk.size(); k++) {
+                results[chunk.get(k)] = lines.length == chunk.size() ? lines[k] : text;
+            }
+        }
+    }
 
-    public synchronized String listShareAvailabilityUDP(String shareType) {
+    public String listShareAvailabilityUDP(String shareType) {
         StringBuilder sb = new StringBuilder();
         sb.append(serverName).append(" [").append(shareType).append("]:\n");
-        Map<String, ShareData> map = allShares.get(shareType);
-        if (map.isEmpty()) {
+        int before = sb.length();
+        catalog.forEach(shareType, (shareBits, capacity, used) -> {
+            ShareData.describe(sb, shareBits, shareType, capacity, used);
+            sb.append(" \n ");
+        });
+        if (sb.length() == before) {
             sb.append("No shares of type ").append(shareType);
         }
-        else {
-            for (ShareData sd : map.values()) {
-                sb.append(sd.toString()).append(" \n ");
-            }
-        }
         sb.append("\n");
         return sb.toString();
     }
 
-    public synchronized String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
+    // the binary form of listShareAvailabilityUDP, the caller does the formatting
+    public AvailabilityReport availabilityReport(String shareType) {
+        List<AvailabilityReport.Entry> entries = new ArrayList<>();
+        addAvailability(entries, shareType);
+        return new AvailabilityReport(0, entries);
+    }
+
+    // all shares of this city in one message, for the RemoteAvailability of the other cities
+    public AvailabilityReport availabilitySnapshot() {
+        long seq = availabilityPublisher.nextSeq(); // taken before reading -> deltas sent after this one win
+        List<AvailabilityReport.Entry> entries = new ArrayList<>();
+        for (String shareType : catalog.types()) {
+            addAvailability(entries, shareType);
+        }
+        return new AvailabilityReport(seq, entries);
+    }
+
+    private void addAvailability(List<AvailabilityReport.Entry> entries, String shareType) {
+        catalog.forEach(shareType, (shareBits, capacity, used) ->
+                entries.add(new AvailabilityReport.Entry(ShareId.fromBits(shareBits & 0xFFFFFFFFL), shareType, capacity, capacity - used)));
+    }
+
+    public String applyAvailabilityDelta(String originCity, AvailabilityReport delta) {
+        remoteAvailability.applyDelta(originCity, delta);
+        return "Success: availability of " + originCity + " updated";
+    }
+
+    public String purchaseShareUDP(String buyerID, String shareType, String extra) { //extra = shareID;shareCount
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
@@ -462,16 +1345,35 @@ public class ShareMarketImplementation implements WebInterface{
         return purchaseShare(buyerID, shareID, shareType, shareCount);
     }
 
-    public synchronized String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
+    public String sellShareUDP(String buyerID, String shareType, String extra) { // same extra
         String[] arr = extra.split("-");
         String shareID = arr[0];
         int shareCount = Integer.parseInt(arr[1]);
         return sellShare(buyerID, shareID, shareCount);
     }
 
-    private String detectShareServer(String shareID) {
-        String prefix = shareID.substring(0,3).toUpperCase();
-        switch (prefix) {
+    private void availabilityChanged(String shareType, ShareId shareID) {
+        if (availabilityPublisher != null) {
+            availabilityPublisher.changed(shareType, shareID);
+        }
+    }
+
+    // current values of one local share for the push, or "removed" if it is gone
+    private AvailabilityReport.Entry availabilityEntry(String shareType, ShareId shareID) {
+        ShareData share = catalog.get(shareType, shareID);
+        if (share == null) {
+            return AvailabilityReport.Entry.removed(shareID, shareType);
+        }
+        long counts = share.counts();
+        return new AvailabilityReport.Entry(shareID, shareType, ShareData.capacityOf(counts), ShareData.capacityOf(counts) - ShareData.usedOf(counts));
+    }
+
+    private String detectShareServer(ShareId shareID) {
+        return serverNameOf(shareID.cityCode());
+    }
+
+    private String serverNameOf(String cityID) {
+        switch (cityID) {
             case "NYK": return MARKET_SERVER_NEWYORK;
             case "LON": return MARKET_SERVER_LONDON;
             case "TOK": return MARKET_SERVER_TOKYO;
@@ -489,125 +1391,181 @@ public class ShareMarketImplementation implements WebInterface{
     }
 
 
-    private String sendUDPMessage(int serverPort, String method, String callerID, String shareType, String extra) {
-        DatagramSocket socket = null;
-        String result = "";
-        String data = method + ";" + callerID + ";" + shareType + ";" + extra;
+    private String sendUDPMessage(int serverPort, UdpRequest request) {
+        CompletableFuture<String> reply = sendUDPMessageAsync(serverPort, request).thenApply(UdpReply::text);
+        return awaitUDPReply(reply);
+    }
+
+    // returns as soon as the datagram is out, the future completes with the reply (already logged)
+    private CompletableFuture<UdpReply> sendUDPMessageAsync(int serverPort, UdpRequest request) {
+        return sendUDPMessageAsync(serverPort, request, udpClient.getTimeoutMillis());
+    }
+
+    private CompletableFuture<UdpReply> sendUDPMessageAsync(int serverPort, UdpRequest request, long deadlineMillis) {
+        String method = request.method.textName();
+        String params = "shareType=" + request.shareType + ", extra=" + request.extra();
 
         try {
-            Logger.serverLog(serverID, callerID, "UDP request: " + method, "shareType=" + shareType + ", extra=" + extra, "...");
+            Logger.serverLog(serverID, request.callerID, "UDP request: " + method, params, "...");
         }
         catch (IOException e) {
             e.printStackTrace();
         }
 
+        return udpClient.callAsync(serverPort, request, deadlineMillis).thenApply(reply -> {
+            try {
+                Logger.serverLog(serverID, request.callerID, "UDP reply: " + method, params, reply.toString());
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            return reply;
+        });
+    }
+
+    // sells back what a purchase that got no answer may have bought in the other city, asking again until it answers
+    // (sold, or the buyer doesn't hold it = the purchase never got there); gives the purchase's reservation back after
+    private void undoRemotePurchase(String buyerID, String shareType, ShareId id, int shareCount, int attempts) {
+        sendUDPMessageAsync(getServerPort(id.cityCode()), UdpRequest.sellShare(buyerID, id.toString(), shareCount)).whenComplete((reply, error) -> {
+            if (error != null && attempts > 1) {
+                undoRemotePurchase(buyerID, shareType, id, shareCount, attempts - 1);
+                return;
+            }
+            if (error != null) {
+                System.err.println(serverID + ": could not undo the purchase of " + id + " by " + buyerID + ": " + error.getMessage());
+            }
+            locks.lockBuyer(buyerID);
+            try {
+                buyerShares.get(buyerID).unreserve(shareType, id, shareCount);
+            }
+            finally {
+                locks.unlockBuyer(buyerID);
+            }
+        });
+    }
+
+    private String awaitUDPReply(CompletableFuture<String> reply) {
         try {
-            socket = new DatagramSocket();
-            InetAddress host = InetAddress.getByName("localhost");
-            byte[] buffer = data.getBytes();
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, host, serverPort);
-            socket.send(request);
-            byte[] recvBuf = new byte[1000];
-            DatagramPacket reply = new DatagramPacket(recvBuf, recvBuf.length);
-            socket.receive(reply);
-            result = new String(reply.getData(), 0, reply.getLength());
-//            result = rawdata;
-            Logger.serverLog(serverID, callerID, "UDP reply: " + method, "shareType=" + shareType + ", extra=" + extra, result);
+            return udpClient.await(reply);
         }
         catch (IOException e) {
-            result = "UDP Error: " + e.getMessage();
+            return "UDP Error: " + e.getMessage();
         }
-        finally {
-            if (socket != null)
-                socket.close();
+    }
+
+    // create the buyer holdings if needed -> add the units (+ keep shareHolders in sync)
+    private void addBuyerRecord(String buyerID, String shareType, ShareId shareID, int units) {
+        BuyerHoldings holdings = buyerShares.computeIfAbsent(buyerID, this::newBuyer);
+        holdings.add(shareType, shareID, units);
+        // the holder maps are only changed inside compute -> one at a time per share
+        long holder = holderKey(shareType, holdings);
+        shareHolders.compute(shareID, (id, holders) -> {
+            if (holders == null) {
+                holders = new LongIntMap();
+            }
+            holders.put(holder, 1);
+            return holders;
+        });
+    }
+
+    // the same id can be held under several types -> the type is part of the holder
+    private static long holderKey(String shareType, BuyerHoldings holdings) {
+        return ((long) BuyerHoldings.typeNumber(shareType) << 32) | holdings.id;
+    }
+
+    // a buyer gets its number once, the first time it holds something (inside buyerShares.computeIfAbsent)
+    // own lock, not the servant's -> only buyers that are new at the same moment wait for each other
+    private BuyerHoldings newBuyer(String buyerID) {
+        synchronized (buyerIdLock) {
+            AtomicReferenceArray<BuyerHoldings> byId = buyersById;
+            if (++buyerCount == byId.length()) {
+                AtomicReferenceArray<BuyerHoldings> grown = new AtomicReferenceArray<>(byId.length() * 2);
+                for (int i = 1; i < buyerCount; i++) {
+                    grown.set(i, byId.get(i));
+                }
+                buyersById = byId = grown;
+            }
+            BuyerHoldings holdings = new BuyerHoldings(buyerID, buyerCount);
+            byId.set(buyerCount, holdings);
+            return holdings;
         }
-        return result;
     }
 
-    // create share type map -> inseart shareId
-    private void addBuyerRecord(String buyerID, String shareType, String shareID) {
-        buyerShares.putIfAbsent(buyerID, new ConcurrentHashMap<>());
-        buyerShares.get(buyerID).putIfAbsent(shareType, new ArrayList<>());
-        buyerShares.get(buyerID).get(shareType).add(shareID);
+    // the id came from a holder key, written after newBuyer returned -> the current array has it
+    private BuyerHoldings buyerById(int id) {
+        return buyersById.get(id);
     }
 
 
-    private int removeSharesFromBuyer(String buyerID, String shareID, int shareCount) {
-        if (!buyerShares.containsKey(buyerID))
-            return 0;
-        String st = findShareTypeForBuyer(buyerID, shareID);
-        if (st == null)
-            return 0;
-        List<String> shareList = buyerShares.get(buyerID).get(st);
-        if (shareList == null)
+    // shareType null (the buyer does not hold the id) -> nothing removed
+    private int removeSharesFromBuyer(String buyerID, String shareType, ShareId shareID, int shareCount) {
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null || shareType == null)
             return 0;
-        int removed = 0;
-        while (removed < shareCount && shareList.remove(shareID)) {
-            removed++;
+        int removed = holdings.remove(shareType, shareID, shareCount);
+        if (removed > 0 && holdings.quantity(shareType, shareID) == 0) {
+            long holder = holderKey(shareType, holdings);
+            shareHolders.computeIfPresent(shareID, (id, holders) -> {
+                holders.remove(holder);
+                return holders.isEmpty() ? null : holders;
+            });
         }
         return removed;
     }
 
-    private void removeShareFromBuyers(String shareType, String shareID) {
-        for (String buyerID : buyerShares.keySet()) {
-            Map<String, List<String>> typeMap = buyerShares.get(buyerID);
-            if (typeMap.containsKey(shareType)) {
-                typeMap.get(shareType).removeIf(id -> id.equalsIgnoreCase(shareID));
+    // only the buyers found in shareHolders are visited, not every buyer of the city
+    // holders of the same id under another type stay where they are
+    private void removeShareFromBuyers(String shareType, ShareId shareID) {
+        long type = (long) BuyerHoldings.typeNumber(shareType) << 32;
+        List<BuyerHoldings> buyers = new ArrayList<>();
+        shareHolders.computeIfPresent(shareID, (id, holders) -> {
+            List<Long> matching = new ArrayList<>();
+            holders.forEach((holder, one) -> {
+                if ((holder & 0xFFFFFFFF00000000L) == type) {
+                    matching.add(holder);
+                }
+            });
+            for (long holder : matching) {
+                holders.remove(holder);
+                buyers.add(buyerById((int) holder));
+            }
+            return holders.isEmpty() ? null : holders;
+        });
+        for (BuyerHoldings holdings : buyers) {
+            locks.lockBuyer(holdings.buyerID);
+            try {
+                holdings.removeAll(shareType, shareID);
+            }
+            finally {
+                locks.unlockBuyer(holdings.buyerID);
             }
         }
     }
 
     // share type for buyer --> with that shareID
-    private String findShareTypeForBuyer(String buyerID, String shareID) {
-        if (!buyerShares.containsKey(buyerID))
+    private String findShareTypeForBuyer(String buyerID, ShareId shareID) {
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null)
             return null;
-        for (String st : buyerShares.get(buyerID).keySet()) {
-            if (buyerShares.get(buyerID).get(st).contains(shareID)) {
-                return st;
-            }
-        }
-        return null;
+        return holdings.typeOf(shareID);
     }
 
     // if buyer bought more than 3 shares in other cities --> true
-    private boolean exceededCrossCityLimit(String buyerID, String shareID) {
-        int day   = Integer.parseInt(shareID.substring(4, 6));
-        int month = Integer.parseInt(shareID.substring(6, 8));
-        int year  = Integer.parseInt("20" + shareID.substring(8, 10));
-        int thisWeek = (day - 1) / 7;
-        int BuyFromOtherCities = 0;
-        Map<String, List<String>> stMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        for (String st : stMap.keySet()) {
-//            System.out.println("haaaa : " + st);
-            for (String sID : stMap.get(st)) {
-                int d2 = Integer.parseInt(sID.substring(4, 6));
-                int m2 = Integer.parseInt(sID.substring(6, 8));
-                int y2 = Integer.parseInt("20" + sID.substring(8, 10));
-                int w2 = (d2 - 1) / 7;
-                if (m2 == month && y2 == year && w2 == thisWeek) {
-                    BuyFromOtherCities++;
-                }
-            }
+    private boolean exceededCrossCityLimit(String buyerID, ShareId shareID) {
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null) {
+            return false;
         }
-        return (BuyFromOtherCities >= 3);
+        return (holdings.unitsInWeek(shareID.weekKey()) >= 3);
     }
 
 
-    private boolean TodayPurchased(String buyerID, String shareType, String shareID) {
-        int day   = Integer.parseInt(shareID.substring(4, 6));
-        int month = Integer.parseInt(shareID.substring(6, 8));
-        int year  = Integer.parseInt("20" + shareID.substring(8, 10));
-        Map<String, List<String>> typeMap = buyerShares.getOrDefault(buyerID, new ConcurrentHashMap<>());
-        List<String> shareList = typeMap.getOrDefault(shareType, new ArrayList<>());
-        for (String existingID : shareList) {
-            int d2 = Integer.parseInt(existingID.substring(4, 6));
-            int m2 = Integer.parseInt(existingID.substring(6, 8));
-            int y2 = Integer.parseInt("20" + existingID.substring(8, 10));
-            if (d2 == day && m2 == month && y2 == year) {
-                return true;
-            }
+    private boolean TodayPurchased(String buyerID, String shareType, ShareId shareID) {
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null) {
+            return false;
         }
-        return false;
+        return holdings.heldOnDay(shareType, shareID.dateKey());
     }
 
 
@@ -620,36 +1578,41 @@ public class ShareMarketImplementation implements WebInterface{
         }
     }
 
-    private int getBuyerShareQuantity(String buyerID, String shareID, String shareType) {
-        if (!buyerShares.containsKey(buyerID)) return 0;
-        if (!buyerShares.get(buyerID).containsKey(shareType)) return 0;
-        int count = 0;
-        for (String sID : buyerShares.get(buyerID).get(shareType)) {
-            if (sID.equalsIgnoreCase(shareID)) {
-                count++;
-            }
+    private void logBatchReceived(String user, String operation, ShareOrder[] items) {
+        try {
+            Logger.serverLog(serverID, user, "  " + operation, items.length + " items: " + Arrays.toString(items), "request received");
+        }
+        catch (IOException e) {
+            e.printStackTrace();
         }
-        return count;
     }
 
-    private void rollbackNewPurchase(String buyerID, String newShareID, String newShareType, int quantity) {
-        String city = detectShareServer(newShareID);
-        // is that you?
-        if (city.equals(serverName)) {
-            //  remove from buyerShares
-            removeSharesFromBuyer(buyerID, newShareID, quantity);
-            //remove from buyerCounts
-            ShareData sd = allShares.get(newShareType).get(newShareID);
-            if (sd != null) {
-                sd.removeBuyerPurchase(buyerID, quantity);
-            }
+    private void logBatchResponse(String user, String operation, String[] results) {
+        try {
+            Logger.serverLog(serverID, user, "  " + operation, results.length + " items", String.join(" | ", results));
         }
-        else {
-            // calling udp
-            String extra = newShareID + "-" + quantity;
-            sendUDPMessage(getServerPort(newShareID.substring(0,3)), "sellShare", buyerID, "N/A", extra);
+        catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
+    private boolean isShareType(String shareType) {
+        return catalog.isType(shareType);
+    }
+
+    private String unknownShareType(String shareType) {
+        return "Failed: unknown share type " + shareType + " (expected " + EQUITY + ", " + BONUS + " or " + DIVIDEND + ")";
+    }
+
+    private String invalidShareID(String shareID) {
+        return "Failed: invalid share ID " + shareID + " (expected city + M/A/E + ddmmyy)";
+    }
+
+    private int getBuyerShareQuantity(String buyerID, ShareId shareID, String shareType) {
+        BuyerHoldings holdings = buyerShares.get(buyerID);
+        if (holdings == null) return 0;
+        return holdings.quantity(shareType, shareID);
+    }
+
 }
 
@@ -0,0 +1,136 @@
+package com.web.service.implimentation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// the prepared side of swapShare in this city: what each open swap has reserved, until commit / abort / lease end
+// a buy leg has its capacity claimed already, a sell leg keeps its units from being sold by anything else
+// nothing of it is in the write ahead log -> after a crash the open swaps are simply gone (= aborted),
+// so the snapshot leaves the claimed units of buy legs out (see reservedUnits)
+// a swap has one buyer and is only changed while that buyer's lock is held
+class SwapReservations {
+
+    static final class Leg {
+        final String shareType;
+        final ShareId shareID;
+        final int units;
+        final ShareData share; // buy legs: where the units were claimed, else null
+
+        Leg(String shareType, ShareId shareID, int units, ShareData share) {
+            this.shareType = shareType;
+            this.shareID   = shareID;
+            this.units     = units;
+            this.share     = share;
+        }
+
+        boolean isBuy() {
+            return share != null;
+        }
+    }
+
+    static final class Reservation {
+        final String txId;
+        final String buyerID;
+        final long deadlineNanos;
+        final List<Leg> legs = new ArrayList<>();
+
+        Reservation(String txId, String buyerID, long deadlineNanos) {
+            this.txId          = txId;
+            this.buyerID       = buyerID;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - deadlineNanos >= 0;
+        }
+    }
+
+    private final Map<String, Reservation> open = new ConcurrentHashMap<>(); // txId -> reservation
+    private final Map<String, Integer> pending = new ConcurrentHashMap<>();  // buyerID/shareID bits -> units held by open swaps
+    private final long leaseMillis;
+    private final Consumer<Reservation> expire;
+    private final ScheduledExecutorService timer;
+
+    // expire is called once the lease is over, without any lock, for a reservation that may be closed already
+    SwapReservations(String city, long leaseMillis, Consumer<Reservation> expire) {
+        this.leaseMillis = leaseMillis;
+        this.expire      = expire;
+        timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, city + "-swap-leases");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // null if this swap is open already; caller holds the buyer lock
+    Reservation open(String txId, String buyerID) {
+        Reservation r = new Reservation(txId, buyerID, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis));
+        if (open.putIfAbsent(txId, r) != null) {
+            return null;
+        }
+        timer.schedule(() -> {
+            try {
+                expire.accept(r);
+            }
+            catch (RuntimeException e) {
+                // keep the timer alive
+                e.printStackTrace();
+            }
+        }, leaseMillis, TimeUnit.MILLISECONDS);
+        return r;
+    }
+
+    Reservation get(String txId) {
+        return open.get(txId);
+    }
+
+    // caller holds the buyer lock
+    void addLeg(Reservation r, Leg leg) {
+        r.legs.add(leg);
+        pending.merge(key(r.buyerID, leg.shareID), leg.units, Integer::sum);
+    }
+
+    // true for the one caller (commit, abort or the lease timer) that closes it; caller holds the buyer lock
+    boolean close(Reservation r) {
+        if (!open.remove(r.txId, r)) {
+            return false;
+        }
+        for (Leg leg : r.legs) {
+            pending.computeIfPresent(key(r.buyerID, leg.shareID), (k, units) -> units == leg.units ? null : units - leg.units);
+        }
+        return true;
+    }
+
+    // units of this share the buyer has in open swaps, bought or given back; caller holds the buyer lock
+    int pending(String buyerID, ShareId shareID) {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        Integer units = pending.get(key(buyerID, shareID));
+        return units == null ? 0 : units;
+    }
+
+    // shareType/shareID bits -> units claimed by open buy legs; caller has paused every change
+    Map<String, Integer> reservedUnits() {
+        Map<String, Integer> reserved = new HashMap<>();
+        for (Reservation r : open.values()) {
+            for (Leg leg : r.legs) {
+                if (leg.isBuy()) {
+                    reserved.merge(leg.shareType + "/" + leg.shareID.bits(), leg.units, Integer::sum);
+                }
+            }
+        }
+        return reserved;
+    }
+
+    private static String key(String buyerID, ShareId shareID) {
+        return buyerID + "/" + shareID.bits();
+    }
+}
@@ -0,0 +1,98 @@
+package com.web.service.udp;
+
+import com.web.service.implimentation.ShareId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// capacity of some shares of one city: the push deltas, the snapshots and the binary listing reply
+// seq orders the reports of one city (0 for a plain listing), capacity -1 = share removed
+// text form: <seq>|<shareID>:<type>:<capacity>:<remaining>,...
+public final class AvailabilityReport {
+
+    public static final int REMOVED = -1;
+
+    public static final class Entry {
+        public final ShareId shareID;
+        public final String shareType;
+        public final int capacity;
+        public final int remaining;
+
+        public Entry(ShareId shareID, String shareType, int capacity, int remaining) {
+            this.shareID   = shareID;
+            this.shareType = shareType;
+            this.capacity  = capacity;
+            this.remaining = remaining;
+        }
+
+        public static Entry removed(ShareId shareID, String shareType) {
+            return new Entry(shareID, shareType, REMOVED, 0);
+        }
+
+        public boolean isRemoved() {
+            return capacity == REMOVED;
+        }
+    }
+
+    public final long seq;
+    public final List<Entry> entries;
+
+    public AvailabilityReport(long seq, List<Entry> entries) {
+        this.seq = seq;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public String toText() {
+        StringBuilder sb = new StringBuilder(16 + entries.size() * 28);
+        sb.append(seq).append('|');
+        for (int i = 0; i < entries.size(); i++) {
+            Entry e = entries.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(e.shareID).append(':').append(e.shareType).append(':').append(e.capacity).append(':').append(e.remaining);
+        }
+        return sb.toString();
+    }
+
+    // null if the text is not a report (e.g. an error reply), bad entries are skipped
+    public static AvailabilityReport parseText(String text) {
+        int bar = text.indexOf('|');
+        if (bar < 0) {
+            return null;
+        }
+        long seq;
+        try {
+            seq = Long.parseLong(text.substring(0, bar));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+        String items = text.substring(bar + 1);
+        // a text reply comes with the ';' terminator of the listener
+        if (items.endsWith(";")) {
+            items = items.substring(0, items.length() - 1);
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (String item : items.split(",")) {
+            String[] f = item.split(":");
+            ShareId id = f.length == 4 ? ShareId.tryParse(f[0]) : null;
+            if (id == null) {
+                continue;
+            }
+            try {
+                entries.add(new Entry(id, f[1], Integer.parseInt(f[2]), Integer.parseInt(f[3])));
+            }
+            catch (NumberFormatException e) {
+                // skip it
+            }
+        }
+        return new AvailabilityReport(seq, entries);
+    }
+
+    @Override
+    public String toString() {
+        return "report seq=" + seq + ", entries=" + entries.size();
+    }
+}
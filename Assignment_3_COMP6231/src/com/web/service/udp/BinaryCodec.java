@@ -0,0 +1,338 @@
+package com.web.service.udp;
+
+import com.web.service.ShareOrder;
+import com.web.service.implimentation.ShareId;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// binary form of UdpRequest / UdpReply, read and written straight on ByteBuffers
+// header:  magic 0xB2 | version | kind | varint requestId
+// request: method byte | string callerID | type | (purchase, sell) int32 shareID bits + varint count | (delta) report
+//          | (batches) varint n | n x (string buyerID | type | int32 shareID bits | varint count)
+//          | (swap prepare) string txId | orders like a batch | (swap commit, abort) string txId
+// reply:   string text  or  report
+// report:  varint seq | varint n | n x (int32 shareID bits | type | zigzag capacity | zigzag remaining)
+// type:    one byte for the known share types, 0x7F + string for anything else; string = varint length + UTF-8
+// the first byte can't start a text message (ASCII) -> the listener tells the two protocols apart by it
+public final class BinaryCodec {
+
+    public static final byte MAGIC = (byte) 0xB2;
+    public static final byte VERSION = 1; // readers accept this one and older
+
+    public static final byte KIND_REQUEST      = 1;
+    public static final byte KIND_TEXT_REPLY   = 2;
+    public static final byte KIND_REPORT_REPLY = 3;
+
+    private static final String[] TYPES = {UdpRequest.NONE, "Equity", "Bonus", "Dividend"}; // index = code, never reorder
+    private static final byte OTHER_TYPE = 0x7F;
+    private static final int HEADER_MAX = 3 + 10;
+
+    public static final class Header {
+        public final int version;
+        public final byte kind;
+        public final long requestId;
+
+        Header(int version, byte kind, long requestId) {
+            this.version = version;
+            this.kind = kind;
+            this.requestId = requestId;
+        }
+    }
+
+    private BinaryCodec() {
+    }
+
+    public static boolean isBinary(byte[] data, int length) {
+        return length > 0 && data[0] == MAGIC;
+    }
+
+    // the share id goes out as its packed bits -> it has to be a valid one
+    public static boolean canEncode(UdpRequest request) {
+        if (request.orders != null) {
+            for (ShareOrder order : request.orders) {
+                if (ShareId.tryParse(order.getShareID()) == null) {
+                    return false;
+                }
+            }
+        }
+        return request.shareID == null || ShareId.tryParse(request.shareID) != null;
+    }
+
+    public static byte[] encodeRequest(long requestId, UdpRequest request) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_MAX + 1 + stringMax(request.callerID) + typeMax(request.shareType) + 4 + 5
+                + (request.report == null ? 0 : reportMax(request.report)) + (request.orders == null ? 0 : ordersMax(request.orders))
+                + (request.txId == null ? 0 : stringMax(request.txId)));
+        writeHeader(out, KIND_REQUEST, requestId);
+        out.put(request.method.code());
+        writeString(out, request.callerID);
+        writeType(out, request.shareType);
+        switch (request.method) {
+            case PURCHASE_SHARE:
+            case SELL_SHARE:
+                out.putInt((int) ShareId.parse(request.shareID).bits());
+                writeVarint(out, request.count);
+                break;
+            case AVAILABILITY_DELTA:
+                writeReport(out, request.report);
+                break;
+            case PURCHASE_BATCH:
+            case SELL_BATCH:
+                writeOrders(out, request.orders);
+                break;
+            case SWAP_PREPARE:
+                writeString(out, request.txId);
+                writeOrders(out, request.orders);
+                break;
+            case SWAP_COMMIT:
+            case SWAP_ABORT:
+                writeString(out, request.txId);
+                break;
+            default:
+                break;
+        }
+        return toArray(out);
+    }
+
+    public static byte[] encodeReply(long requestId, UdpReply reply) {
+        if (reply.isReport()) {
+            AvailabilityReport report = reply.report();
+            ByteBuffer out = ByteBuffer.allocate(HEADER_MAX + reportMax(report));
+            writeHeader(out, KIND_REPORT_REPLY, requestId);
+            writeReport(out, report);
+            return toArray(out);
+        }
+        String text = reply.text();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_MAX + stringMax(text));
+        writeHeader(out, KIND_TEXT_REPLY, requestId);
+        writeString(out, text);
+        return toArray(out);
+    }
+
+    // null if this is not a binary message; the layout of the header never changes,
+    // so a newer version can still be answered (with an error) -> check isSupported before reading on
+    public static Header readHeader(ByteBuffer in) {
+        if (in.remaining() < 4 || in.get() != MAGIC) {
+            return null;
+        }
+        int version = in.get();
+        byte kind = in.get();
+        long requestId = readVarint(in);
+        return new Header(version, kind, requestId);
+    }
+
+    public static boolean isSupported(Header header) {
+        return header.version >= 1 && header.version <= VERSION;
+    }
+
+    // after readHeader of a KIND_REQUEST; throws IllegalArgumentException on bad data
+    public static UdpRequest readRequest(ByteBuffer in) {
+        UdpMethod method = UdpMethod.fromCode(in.get());
+        if (method == null) {
+            throw new IllegalArgumentException("unknown method");
+        }
+        String callerID = readString(in);
+        String shareType = readType(in);
+        switch (method) {
+            case PURCHASE_SHARE:
+            case SELL_SHARE:
+                String shareID = readShareId(in).toString();
+                return new UdpRequest(method, callerID, shareType, shareID, (int) readVarint(in), null);
+            case AVAILABILITY_DELTA:
+                return new UdpRequest(method, callerID, shareType, null, 0, readReport(in));
+            case PURCHASE_BATCH:
+            case SELL_BATCH:
+                return new UdpRequest(method, callerID, shareType, null, 0, null, readOrders(in));
+            case SWAP_PREPARE:
+                String txId = readString(in);
+                return new UdpRequest(method, callerID, shareType, null, 0, null, readOrders(in), txId);
+            case SWAP_COMMIT:
+            case SWAP_ABORT:
+                return new UdpRequest(method, callerID, shareType, null, 0, null, null, readString(in));
+            default:
+                return new UdpRequest(method, callerID, shareType, null, 0, null);
+        }
+    }
+
+    // after readHeader of a reply
+    public static UdpReply readReply(ByteBuffer in, byte kind) {
+        switch (kind) {
+            case KIND_TEXT_REPLY:
+                return UdpReply.text(readString(in));
+            case KIND_REPORT_REPLY:
+                return UdpReply.report(readReport(in));
+            default:
+                throw new IllegalArgumentException("not a reply: kind " + kind);
+        }
+    }
+
+    private static void writeHeader(ByteBuffer out, byte kind, long requestId) {
+        out.put(MAGIC).put(VERSION).put(kind);
+        writeVarint(out, requestId);
+    }
+
+    private static void writeReport(ByteBuffer out, AvailabilityReport report) {
+        writeVarint(out, report.seq);
+        writeVarint(out, report.entries.size());
+        for (AvailabilityReport.Entry e : report.entries) {
+            out.putInt((int) e.shareID.bits());
+            writeType(out, e.shareType);
+            writeVarint(out, zigzag(e.capacity));
+            writeVarint(out, zigzag(e.remaining));
+        }
+    }
+
+    private static AvailabilityReport readReport(ByteBuffer in) {
+        long seq = readVarint(in);
+        int n = (int) readVarint(in);
+        if (n < 0 || n > in.remaining() / 4) {
+            throw new IllegalArgumentException("bad entry count " + n);
+        }
+        List<AvailabilityReport.Entry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            ShareId id = readShareId(in);
+            String type = readType(in);
+            int capacity = unzigzag(readVarint(in));
+            int remaining = unzigzag(readVarint(in));
+            entries.add(new AvailabilityReport.Entry(id, type, capacity, remaining));
+        }
+        return new AvailabilityReport(seq, entries);
+    }
+
+    private static void writeOrders(ByteBuffer out, List<ShareOrder> orders) {
+        writeVarint(out, orders.size());
+        for (ShareOrder order : orders) {
+            writeString(out, order.getBuyerID());
+            writeType(out, order.getShareType());
+            out.putInt((int) ShareId.parse(order.getShareID()).bits());
+            writeVarint(out, order.getCount() & 0xFFFFFFFFL); // as unsigned -> a negative swap leg stays 5 bytes
+        }
+    }
+
+    private static List<ShareOrder> readOrders(ByteBuffer in) {
+        int n = (int) readVarint(in);
+        if (n < 0 || n > in.remaining() / 6) {
+            throw new IllegalArgumentException("bad order count " + n);
+        }
+        List<ShareOrder> orders = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String buyerID = readString(in);
+            String type = readType(in);
+            ShareId id = readShareId(in);
+            orders.add(new ShareOrder(buyerID, id.toString(), type, (int) readVarint(in)));
+        }
+        return orders;
+    }
+
+    private static ShareId readShareId(ByteBuffer in) {
+        ShareId id = ShareId.tryFromBits(in.getInt() & 0xFFFFFFFFL);
+        if (id == null) {
+            throw new IllegalArgumentException("bad share id");
+        }
+        return id;
+    }
+
+    private static void writeType(ByteBuffer out, String shareType) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(shareType)) {
+                out.put((byte) i);
+                return;
+            }
+        }
+        out.put(OTHER_TYPE);
+        writeString(out, shareType);
+    }
+
+    private static String readType(ByteBuffer in) {
+        byte code = in.get();
+        if (code == OTHER_TYPE) {
+            return readString(in);
+        }
+        if (code < 0 || code >= TYPES.length) {
+            throw new IllegalArgumentException("bad share type " + code);
+        }
+        return TYPES[code];
+    }
+
+    private static void writeString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = (int) readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("bad string length " + length);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static void writeVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    private static long zigzag(int value) {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value) {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int stringMax(String s) {
+        return 5 + s.length() * 3;
+    }
+
+    private static int typeMax(String shareType) {
+        for (String known : TYPES) {
+            if (known.equals(shareType)) {
+                return 1;
+            }
+        }
+        return 1 + stringMax(shareType);
+    }
+
+    private static int reportMax(AvailabilityReport report) {
+        int size = 20;
+        for (AvailabilityReport.Entry e : report.entries) {
+            size += 4 + typeMax(e.shareType) + 5 + 5;
+        }
+        return size;
+    }
+
+    private static int ordersMax(List<ShareOrder> orders) {
+        int size = 5;
+        for (ShareOrder order : orders) {
+            size += stringMax(order.getBuyerID()) + typeMax(order.getShareType()) + 4 + 5;
+        }
+        return size;
+    }
+
+    private static byte[] toArray(ByteBuffer out) {
+        byte[] bytes = new byte[out.position()];
+        System.arraycopy(out.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,353 @@
+package com.web.service.udp;
+
+import Logger.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// v2 client for the other cities: one connected DatagramChannel per peer port shared by every caller,
+// each request gets an id, one reader thread per peer completes the matching future when the reply comes in
+// -> any number of calls in flight, no thread blocked per call unless the caller wants to wait (call)
+public class UdpClient {
+
+    private static final int MAX_RESEND_INDEXES = 500;
+    private static final long DEFAULT_TIMEOUT_MS = 5000;
+    private static final int DEFAULT_RETRIES = 3;
+    private static final long DEFAULT_BACKOFF_MS = 200;
+
+    private final String ownerID; // whose server log the reader problems go to
+    private final InetAddress host;
+    private final long timeoutMillis;
+    private final int retries;
+    private final long backoffMillis;
+    // random start -> ids of a restarted server don't hit the dedup entries of its previous run on the peers
+    private final AtomicLong nextRequestId = new AtomicLong(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    private final ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread t = new Thread(task, "udp-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private final boolean binary; // udp.codec=binary (default) or text
+    private final Map<Long, CompletableFuture<UdpReply>> pending = new ConcurrentHashMap<>();
+    private final Map<Long, Reassembly> partial = new ConcurrentHashMap<>(); // fragmented replies still coming in
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final AtomicLong damaged = new AtomicLong(); // datagrams that could not be read
+    private final AtomicLong receiveErrors = new AtomicLong();
+
+    // fragments of one reply, in any order, duplicates ignored
+    private static class Reassembly {
+        private final byte[][] parts;
+        private int received;
+
+        Reassembly(int total) {
+            parts = new byte[total][];
+        }
+
+        // the whole reply once the last missing fragment came in, null before that
+        synchronized byte[] add(UdpProtocol.Fragment fragment) {
+            if (fragment.total != parts.length || parts[fragment.index] != null) {
+                return null;
+            }
+            parts[fragment.index] = fragment.data;
+            received++;
+            if (received < parts.length) {
+                return null;
+            }
+            int size = 0;
+            for (byte[] part : parts) {
+                size += part.length;
+            }
+            byte[] whole = new byte[size];
+            int offset = 0;
+            for (byte[] part : parts) {
+                System.arraycopy(part, 0, whole, offset, part.length);
+                offset += part.length;
+            }
+            return whole;
+        }
+
+        synchronized int received() {
+            return received;
+        }
+
+        synchronized List<Integer> missing(int limit) {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < parts.length && missing.size() < limit; i++) {
+                if (parts[i] == null) {
+                    missing.add(i);
+                }
+            }
+            return missing;
+        }
+    }
+
+    private class Peer {
+        private final int port;
+        private final DatagramChannel channel;
+        private final Thread reader;
+
+        Peer(int port) throws IOException {
+            this.port = port;
+            channel = DatagramChannel.open();
+            // a big reply arrives as a burst of fragments, give the kernel room for it (capped by the OS)
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, Integer.getInteger("udp.socketBuffer", 4 * 1024 * 1024));
+            channel.connect(new InetSocketAddress(host, port));
+            reader = new Thread(this::readLoop, "udp-reader-" + port);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // write() on a DatagramChannel is thread safe, every datagram goes out whole
+        void send(byte[] message) throws IOException {
+            channel.write(ByteBuffer.wrap(message));
+        }
+
+        private void readLoop() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(UdpProtocol.RECEIVE_BUFFER_SIZE);
+            byte[] bytes = new byte[UdpProtocol.RECEIVE_BUFFER_SIZE];
+            while (channel.isOpen()) {
+                try {
+                    buffer.clear();
+                    channel.read(buffer);
+                    buffer.flip();
+                    int length = buffer.remaining();
+                    buffer.get(bytes, 0, length);
+                    if (UdpProtocol.isFragment(bytes, length)) {
+                        onFragment(UdpProtocol.parseFragment(bytes, length));
+                    }
+                    else {
+                        onMessage(bytes, length);
+                    }
+                }
+                catch (RuntimeException e) {
+                    // damaged datagram, drop it -> the retry asks again
+                    counted(damaged, "damaged datagrams dropped", e);
+                }
+                catch (ClosedChannelException e) {
+                    break;
+                }
+                catch (IOException e) {
+                    // e.g. ICMP port unreachable while the peer is down, keep reading
+                    if (!channel.isOpen()) {
+                        break;
+                    }
+                    counted(receiveErrors, "receive errors", e);
+                }
+            }
+        }
+
+        // the fragments of a reply put back together are the same message a small reply is in one datagram
+        private void onFragment(UdpProtocol.Fragment fragment) {
+            if (fragment == null || !pending.containsKey(fragment.requestId)) {
+                return;
+            }
+            Reassembly parts = partial.computeIfAbsent(fragment.requestId, id -> new Reassembly(fragment.total));
+            // the call ended between the check and here -> its cleanup may have run before the entry existed
+            if (!pending.containsKey(fragment.requestId)) {
+                partial.remove(fragment.requestId, parts);
+                return;
+            }
+            byte[] whole = parts.add(fragment);
+            if (whole != null) {
+                onMessage(whole, whole.length);
+            }
+        }
+
+        private void onMessage(byte[] bytes, int length) {
+            long id;
+            UdpReply reply;
+            if (BinaryCodec.isBinary(bytes, length)) {
+                ByteBuffer in = ByteBuffer.wrap(bytes, 0, length);
+                BinaryCodec.Header header = BinaryCodec.readHeader(in);
+                if (header == null || !BinaryCodec.isSupported(header)) {
+                    return;
+                }
+                id = header.requestId;
+                reply = BinaryCodec.readReply(in, header.kind);
+            }
+            else {
+                String text = new String(bytes, 0, length, Charset.defaultCharset());
+                id = UdpProtocol.requestId(text);
+                reply = UdpReply.text(UdpProtocol.body(text));
+            }
+            CompletableFuture<UdpReply> future = id < 0 ? null : pending.get(id);
+            // unknown id = late reply of a call that already gave up
+            if (future != null) {
+                future.complete(reply);
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                log("closing the channel to port " + port + ": " + e);
+            }
+        }
+    }
+
+    // udp.timeoutMs = deadline of one call, udp.retries = resends inside that deadline,
+    // udp.backoffMs = wait before the first resend (doubles every time)
+    // udp.codec = binary (BinaryCodec) or text (v2 text frames), the listener answers in the form it was asked in
+    public UdpClient(String ownerID) {
+        this(ownerID, InetAddress.getLoopbackAddress(), Long.getLong("udp.timeoutMs", DEFAULT_TIMEOUT_MS),
+                Integer.getInteger("udp.retries", DEFAULT_RETRIES), Long.getLong("udp.backoffMs", DEFAULT_BACKOFF_MS),
+                !"text".equalsIgnoreCase(System.getProperty("udp.codec", "binary")));
+    }
+
+    public UdpClient(String ownerID, InetAddress host, long timeoutMillis, int retries, long backoffMillis, boolean binary) {
+        this.ownerID = ownerID;
+        this.host = host;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.backoffMillis = backoffMillis;
+        this.binary = binary;
+    }
+
+    // the first one and then every 1000th, a bad peer or a dead port repeats it for every datagram
+    private void counted(AtomicLong counter, String what, Exception e) {
+        long count = counter.incrementAndGet();
+        if (count == 1 || count % 1000 == 0) {
+            log(count + " " + what + ", last: " + e);
+        }
+    }
+
+    private void log(String message) {
+        try {
+            Logger.serverLog(ownerID, "UDP client: " + message);
+        }
+        catch (IOException e) {
+            System.err.println(ownerID + " UDP client: " + message);
+        }
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public CompletableFuture<UdpReply> callAsync(int port, UdpRequest request) {
+        return callAsync(port, request, timeoutMillis);
+    }
+
+    // sends right away, the future completes with the reply or with a TimeoutException once the deadline is over
+    // a resend uses the same request id -> the peer answers it from its dedup table instead of running it twice
+    public CompletableFuture<UdpReply> callAsync(int port, UdpRequest request, long deadlineMillis) {
+        long id = nextRequestId.incrementAndGet();
+        byte[] frame = binary && BinaryCodec.canEncode(request)
+                ? BinaryCodec.encodeRequest(id, request)
+                : UdpProtocol.frame(id, request.toText()).getBytes(Charset.defaultCharset());
+        CompletableFuture<UdpReply> future = new CompletableFuture<>();
+        pending.put(id, future);
+        // however it ends (reply, timeout, error) the id is not waited for anymore
+        future.whenComplete((reply, error) -> {
+            pending.remove(id);
+            partial.remove(id);
+        });
+        try {
+            Peer peer = peerFor(port);
+            peer.send(frame);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+            scheduleRetry(peer, id, frame, future, deadline, 1, backoffMillis, 0);
+        }
+        catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    // blocking version, gives up after udp.timeoutMs
+    public UdpReply call(int port, UdpRequest request) throws IOException {
+        return await(callAsync(port, request));
+    }
+
+    public <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                throw new IOException(cause.getMessage());
+            }
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for reply");
+        }
+    }
+
+    // a reply that is still coming in fragment by fragment does not use up a retry,
+    // when the fragments stop only the missing ones are asked for again
+    private void scheduleRetry(Peer peer, long id, byte[] frame, CompletableFuture<UdpReply> future, long deadline, int attempt, long delayMillis, int receivedBefore) {
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        boolean lastWait = attempt > retries || delayMillis >= left;
+        timers.schedule(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            Reassembly parts = partial.get(id);
+            int received = parts == null ? 0 : parts.received();
+            if (received > receivedBefore && System.nanoTime() < deadline) {
+                scheduleRetry(peer, id, frame, future, deadline, attempt, backoffMillis, received);
+                return;
+            }
+            if (lastWait) {
+                future.completeExceptionally(new TimeoutException("no reply within deadline after " + (attempt - 1) + " retries"));
+                return;
+            }
+            try {
+                peer.send(parts == null ? frame : UdpProtocol.resendRequest(id, parts.missing(MAX_RESEND_INDEXES)).getBytes(Charset.defaultCharset()));
+                scheduleRetry(peer, id, frame, future, deadline, attempt + 1, delayMillis * 2, received);
+            }
+            catch (IOException e) {
+                future.completeExceptionally(e);
+            }
+        }, lastWait ? Math.max(left, 0) : delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        timers.shutdownNow();
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+        for (CompletableFuture<UdpReply> future : pending.values()) {
+            future.completeExceptionally(new IOException("client closed"));
+        }
+    }
+
+    private Peer peerFor(int port) throws IOException {
+        Peer peer = peers.get(port);
+        if (peer != null) {
+            return peer;
+        }
+        synchronized (peers) {
+            peer = peers.get(port);
+            if (peer == null) {
+                peer = new Peer(port);
+                peers.put(port, peer);
+            }
+            return peer;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.web.service.udp;
+
+// the calls one city makes on another, with the name used by the text protocol and the byte used by the binary one
+// codes are part of the wire format -> never renumber, only add
+public enum UdpMethod {
+    LIST_SHARE_AVAILABILITY("listShareAvailability", 1),
+    PURCHASE_SHARE("purchaseShare", 2),
+    SELL_SHARE("sellShare", 3),
+    AVAILABILITY_DELTA("availabilityDelta", 4),
+    AVAILABILITY_SNAPSHOT("availabilitySnapshot", 5),
+    PURCHASE_BATCH("purchaseShares", 6),
+    SELL_BATCH("sellShares", 7),
+    SWAP_PREPARE("swapPrepare", 8),
+    SWAP_COMMIT("swapCommit", 9),
+    SWAP_ABORT("swapAbort", 10);
+
+    private final String textName;
+    private final byte code;
+
+    UdpMethod(String textName, int code) {
+        this.textName = textName;
+        this.code = (byte) code;
+    }
+
+    public String textName() {
+        return textName;
+    }
+
+    public byte code() {
+        return code;
+    }
+
+    // null if unknown
+    public static UdpMethod fromText(String name) {
+        for (UdpMethod m : values()) {
+            if (m.textName.equalsIgnoreCase(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    public static UdpMethod fromCode(byte code) {
+        for (UdpMethod m : values()) {
+            if (m.code == code) {
+                return m;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,179 @@
+package com.web.service.udp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// inter-server wire format
+// v1: method;callerID;shareType;extra           reply: result;
+// v2: v2#<requestId>#method;callerID;shareType;extra   reply: v2#<requestId>#result;
+// the request id lets many calls share one channel, the reply is matched back by id instead of by socket
+// binary: see BinaryCodec, same ids / fragments / resends, only the message itself is encoded differently
+// a v2 reply bigger than udp.maxDatagram goes out as fragments: v2f#<requestId>#<index>#<total>#<bytes>
+// the caller puts them back together, and asks for the ones it is missing with v2r#<requestId>#<index>,<index>,...
+public final class UdpProtocol {
+
+    public static final String V2_PREFIX = "v2#";
+    public static final String FRAGMENT_PREFIX = "v2f#";
+    public static final String RESEND_PREFIX = "v2r#";
+
+    public static final int RECEIVE_BUFFER_SIZE = 65507; // biggest UDP payload -> a datagram is never cut
+    public static final int MAX_DATAGRAM = Integer.getInteger("udp.maxDatagram", 8192);
+    // most fragments one reply may have (512 MB at the default datagram size); the caller sizes its reassembly
+    // from the total in the first fragment -> a bigger total is not trusted
+    public static final int MAX_FRAGMENTS = 1 << 16;
+    private static final int FRAGMENT_HEADER_MAX = 64;
+
+    public static final class Fragment {
+        public final long requestId;
+        public final int index;
+        public final int total;
+        public final byte[] data;
+
+        Fragment(long requestId, int index, int total, byte[] data) {
+            this.requestId = requestId;
+            this.index = index;
+            this.total = total;
+            this.data  = data;
+        }
+    }
+
+    private UdpProtocol() {
+    }
+
+    public static boolean isV2(String message) {
+        return message.startsWith(V2_PREFIX);
+    }
+
+    public static String frame(long requestId, String body) {
+        return V2_PREFIX + requestId + "#" + body;
+    }
+
+    // -1 if the message is not a well formed v2 frame
+    public static long requestId(String message) {
+        int end = message.indexOf('#', V2_PREFIX.length());
+        if (!isV2(message) || end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(message.substring(V2_PREFIX.length(), end));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static int fragmentCount(byte[] body) {
+        int chunk = MAX_DATAGRAM - FRAGMENT_HEADER_MAX;
+        return Math.max(1, (body.length + chunk - 1) / chunk);
+    }
+
+    public static byte[] fragment(long requestId, byte[] body, int index) {
+        int chunk = MAX_DATAGRAM - FRAGMENT_HEADER_MAX;
+        int from = index * chunk;
+        int length = Math.min(chunk, body.length - from);
+        byte[] header = (FRAGMENT_PREFIX + requestId + "#" + index + "#" + fragmentCount(body) + "#").getBytes(StandardCharsets.US_ASCII);
+        byte[] out = new byte[header.length + length];
+        System.arraycopy(header, 0, out, 0, header.length);
+        System.arraycopy(body, from, out, header.length, length);
+        return out;
+    }
+
+    public static boolean isFragment(byte[] data, int length) {
+        return startsWith(data, length, FRAGMENT_PREFIX);
+    }
+
+    // null if not a well formed fragment, or one of a reply with more than MAX_FRAGMENTS fragments
+    public static Fragment parseFragment(byte[] data, int length) {
+        int[] hashes = new int[4];
+        int found = 0;
+        for (int i = 0; i < length && i < FRAGMENT_HEADER_MAX && found < 4; i++) {
+            if (data[i] == '#') {
+                hashes[found++] = i;
+            }
+        }
+        if (found < 4 || !isFragment(data, length)) {
+            return null;
+        }
+        try {
+            long requestId = Long.parseLong(ascii(data, hashes[0] + 1, hashes[1]));
+            int index = Integer.parseInt(ascii(data, hashes[1] + 1, hashes[2]));
+            int total = Integer.parseInt(ascii(data, hashes[2] + 1, hashes[3]));
+            if (total > MAX_FRAGMENTS || index < 0 || index >= total) {
+                return null;
+            }
+            return new Fragment(requestId, index, total, Arrays.copyOfRange(data, hashes[3] + 1, length));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public static String resendRequest(long requestId, List<Integer> missing) {
+        StringBuilder sb = new StringBuilder(RESEND_PREFIX).append(requestId).append('#');
+        for (int i = 0; i < missing.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(missing.get(i));
+        }
+        return sb.toString();
+    }
+
+    public static boolean isResend(String message) {
+        return message.startsWith(RESEND_PREFIX);
+    }
+
+    // request id of a v2r# message, or -1
+    public static long resendRequestId(String message) {
+        int end = message.indexOf('#', RESEND_PREFIX.length());
+        if (!isResend(message) || end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(message.substring(RESEND_PREFIX.length(), end));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static List<Integer> resendIndexes(String message) {
+        List<Integer> indexes = new ArrayList<>();
+        int end = message.indexOf('#', RESEND_PREFIX.length());
+        if (end < 0) {
+            return indexes;
+        }
+        for (String item : message.substring(end + 1).split(",")) {
+            try {
+                indexes.add(Integer.parseInt(item.trim()));
+            }
+            catch (NumberFormatException e) {
+                // skip it
+            }
+        }
+        return indexes;
+    }
+
+    private static boolean startsWith(byte[] data, int length, String prefix) {
+        if (length < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (data[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String ascii(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.US_ASCII);
+    }
+
+    public static String body(String message) {
+        int end = message.indexOf('#', V2_PREFIX.length());
+        return end < 0 ? message : message.substring(end + 1);
+    }
+}
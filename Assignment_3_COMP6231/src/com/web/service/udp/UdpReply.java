@@ -0,0 +1,40 @@
+package com.web.service.udp;
+
+// what a city answers: a result text ("Success: ...", a listing) or, with the binary codec, a report
+public final class UdpReply {
+
+    private final String text;
+    private final AvailabilityReport report;
+
+    private UdpReply(String text, AvailabilityReport report) {
+        this.text = text;
+        this.report = report;
+    }
+
+    public static UdpReply text(String text) {
+        return new UdpReply(text, null);
+    }
+
+    public static UdpReply report(AvailabilityReport report) {
+        return new UdpReply(null, report);
+    }
+
+    public boolean isReport() {
+        return report != null;
+    }
+
+    // the text, or the text form of the report
+    public String text() {
+        return report != null ? report.toText() : text;
+    }
+
+    // the report, or the report parsed from a text reply; null if it is not one
+    public AvailabilityReport report() {
+        return report != null ? report : AvailabilityReport.parseText(text);
+    }
+
+    @Override
+    public String toString() {
+        return report != null ? report.toString() : text;
+    }
+}
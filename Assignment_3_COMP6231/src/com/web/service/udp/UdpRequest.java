@@ -0,0 +1,187 @@
+package com.web.service.udp;
+
+import com.web.service.ShareOrder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// one call of a city on another, built once by the caller and read field by field by the listener
+// text form (v1 / v2 text): method;callerID;shareType;extra   extra = shareID-count, report text or N/A
+// batches: extra = buyerID:shareType:shareID-count,buyerID:shareType:shareID-count,...  reply = one result per line
+// swaps: prepare extra = txId/legs (legs like a batch, count < 0 = units given back), commit / abort extra = txId
+public final class UdpRequest {
+
+    public static final String NONE = "N/A";
+
+    public final UdpMethod method;
+    public final String callerID;
+    public final String shareType;
+    public final String shareID;          // purchase / sell only, else null
+    public final int count;               // purchase / sell only
+    public final AvailabilityReport report; // delta only
+    public final List<ShareOrder> orders;   // batches and swap prepare, callerID is then the calling city
+    public final String txId;               // swaps only
+
+    public UdpRequest(UdpMethod method, String callerID, String shareType, String shareID, int count, AvailabilityReport report) {
+        this(method, callerID, shareType, shareID, count, report, null);
+    }
+
+    public UdpRequest(UdpMethod method, String callerID, String shareType, String shareID, int count, AvailabilityReport report,
+                      List<ShareOrder> orders) {
+        this(method, callerID, shareType, shareID, count, report, orders, null);
+    }
+
+    public UdpRequest(UdpMethod method, String callerID, String shareType, String shareID, int count, AvailabilityReport report,
+                      List<ShareOrder> orders, String txId) {
+        this.method    = method;
+        this.callerID  = callerID;
+        this.shareType = shareType;
+        this.shareID   = shareID;
+        this.count     = count;
+        this.report    = report;
+        this.orders    = orders;
+        this.txId      = txId;
+    }
+
+    public static UdpRequest listShareAvailability(String callerID, String shareType) {
+        return new UdpRequest(UdpMethod.LIST_SHARE_AVAILABILITY, callerID, shareType, null, 0, null);
+    }
+
+    public static UdpRequest purchaseShare(String buyerID, String shareType, String shareID, int count) {
+        return new UdpRequest(UdpMethod.PURCHASE_SHARE, buyerID, shareType, shareID, count, null);
+    }
+
+    public static UdpRequest sellShare(String buyerID, String shareID, int count) {
+        return new UdpRequest(UdpMethod.SELL_SHARE, buyerID, NONE, shareID, count, null);
+    }
+
+    // callerID carries the city the delta is about
+    public static UdpRequest availabilityDelta(String originCity, AvailabilityReport report) {
+        return new UdpRequest(UdpMethod.AVAILABILITY_DELTA, originCity, NONE, null, 0, report);
+    }
+
+    public static UdpRequest availabilitySnapshot(String callerID) {
+        return new UdpRequest(UdpMethod.AVAILABILITY_SNAPSHOT, callerID, NONE, null, 0, null);
+    }
+
+    public static UdpRequest purchaseShares(String callerCity, List<ShareOrder> orders) {
+        return new UdpRequest(UdpMethod.PURCHASE_BATCH, callerCity, NONE, null, 0, null, orders);
+    }
+
+    public static UdpRequest sellShares(String callerCity, List<ShareOrder> orders) {
+        return new UdpRequest(UdpMethod.SELL_BATCH, callerCity, NONE, null, 0, null, orders);
+    }
+
+    // legs of one swap that are in the called city, all for one buyer
+    public static UdpRequest swapPrepare(String callerCity, String txId, List<ShareOrder> legs) {
+        return new UdpRequest(UdpMethod.SWAP_PREPARE, callerCity, NONE, null, 0, null, legs, txId);
+    }
+
+    public static UdpRequest swapCommit(String callerCity, String txId) {
+        return new UdpRequest(UdpMethod.SWAP_COMMIT, callerCity, NONE, null, 0, null, null, txId);
+    }
+
+    public static UdpRequest swapAbort(String callerCity, String txId) {
+        return new UdpRequest(UdpMethod.SWAP_ABORT, callerCity, NONE, null, 0, null, null, txId);
+    }
+
+    public String extra() {
+        switch (method) {
+            case PURCHASE_SHARE:
+            case SELL_SHARE:
+                return shareID + "-" + count;
+            case AVAILABILITY_DELTA:
+                return report.toText();
+            case PURCHASE_BATCH:
+            case SELL_BATCH:
+                return ordersText();
+            case SWAP_PREPARE:
+                return txId + "/" + ordersText();
+            case SWAP_COMMIT:
+            case SWAP_ABORT:
+                return txId;
+            default:
+                return NONE;
+        }
+    }
+
+    private String ordersText() {
+        StringBuilder sb = new StringBuilder();
+        for (ShareOrder order : orders) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(order);
+        }
+        return sb.toString();
+    }
+
+    public String toText() {
+        return method.textName() + ";" + callerID + ";" + shareType + ";" + extra();
+    }
+
+    // the old string protocol, null if the method is unknown or a field is missing
+    public static UdpRequest parseText(String sentence) {
+        String[] parts = sentence.split(";");
+        if (parts.length < 4) {
+            return null;
+        }
+        UdpMethod method = UdpMethod.fromText(parts[0]);
+        if (method == null) {
+            return null;
+        }
+        String raw = parts[3];
+        switch (method) {
+            case PURCHASE_SHARE:
+            case SELL_SHARE:
+                String[] arr = raw.split("-");
+                int count = 1;
+                if (arr.length == 2) {
+                    try {
+                        count = Integer.parseInt(arr[1]);
+                    }
+                    catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                return new UdpRequest(method, parts[1], parts[2], arr[0], count, null);
+            case AVAILABILITY_DELTA:
+                AvailabilityReport report = AvailabilityReport.parseText(raw);
+                return report == null ? null : new UdpRequest(method, parts[1], parts[2], null, 0, report);
+            case PURCHASE_BATCH:
+            case SELL_BATCH:
+                List<ShareOrder> orders = parseOrders(raw);
+                return orders == null ? null : new UdpRequest(method, parts[1], parts[2], null, 0, null, orders);
+            case SWAP_PREPARE:
+                int slash = raw.indexOf('/');
+                List<ShareOrder> legs = slash < 0 ? null : parseOrders(raw.substring(slash + 1));
+                return legs == null ? null : new UdpRequest(method, parts[1], parts[2], null, 0, null, legs, raw.substring(0, slash));
+            case SWAP_COMMIT:
+            case SWAP_ABORT:
+                return new UdpRequest(method, parts[1], parts[2], null, 0, null, null, raw);
+            default:
+                return new UdpRequest(method, parts[1], parts[2], null, 0, null);
+        }
+    }
+
+    // buyerID:shareType:shareID-count,... -> null if an item is broken
+    // share ids have no '-', so the first one ends the id (a swap leg can have a negative count)
+    private static List<ShareOrder> parseOrders(String raw) {
+        List<ShareOrder> orders = new ArrayList<>();
+        for (String item : raw.split(",")) {
+            String[] fields = item.split(":");
+            int dash = fields.length == 3 ? fields[2].indexOf('-') : -1;
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                int count = Integer.parseInt(fields[2].substring(dash + 1));
+                orders.add(new ShareOrder(fields[0], fields[2].substring(0, dash), fields[1], count));
+            }
+            catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return orders;
+    }
+}